@@ -37,6 +37,7 @@ package com.code.queue;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.AbstractQueue;
@@ -44,8 +45,10 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Spliterators;
 import java.util.Spliterator;
+import java.util.function.Consumer;
 
 /**
  * A bounded {@linkplain BlockingQueue blocking queue} backed by an
@@ -153,6 +156,36 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
      */
     private final Condition notFull;
 
+    /**
+     * Recorder of the metrics, or null while metrics are disabled.  Set
+     * once under the lock, but read racily before the lock is acquired
+     * (for contention) and by {@code metrics()}, so a thread may miss a
+     * recorder enabled concurrently and skip a few events.  QueueStats
+     * holds its state in final fields, so a racily read instance is
+     * always fully constructed.
+     * <p>
+     * 指标记录器，未启用指标时为 null，见 enableMetrics()。在锁内只赋值一次，但在获取锁之前（统计竞争）和 metrics() 中
+     * 不加锁读取，并发启用时线程可能暂时读到 null 而漏记少量事件；QueueStats 的状态都在 final 字段中，不加锁读到的实例总是完整构造的
+     */
+    transient QueueStats stats;
+
+    /**
+     * Seqlock version for lock-free readers, odd while a writer holding
+     * lock is changing items, takeIndex or count
+     * <p>
+     * 供无锁读取使用的版本号（seqlock），持有锁的写线程修改 items、takeIndex、count 期间为奇数
+     */
+    private transient volatile long version;
+
+    /**
+     * 无锁快照的最大重试次数，超过后加锁复制
+     */
+    private static final int MAX_SNAPSHOT_RETRIES = 64;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<ArrayBlockingQueue> VERSION =
+            AtomicLongFieldUpdater.newUpdater(ArrayBlockingQueue.class, "version");
+
     /* Concurrency control uses the classic two-condition algorithm found in any textbook.  并发控制使用经典双条件算法。 */
 
 
@@ -192,6 +225,31 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
             throw new NullPointerException();
     }
 
+    /**
+     * Marks the start of a change visible to lock-free readers.  A plain
+     * volatile write only orders the stores before it, so later plain
+     * stores to items, takeIndex or count could become visible ahead of
+     * the odd version.  The increment is therefore an atomic
+     * read-modify-write, which also has the acquire semantics of a
+     * volatile read: no later store moves before it.  Call only when
+     * holding lock.
+     * <p>
+     * 开始修改：版本号变为奇数。单纯的 volatile 写只保证之前的写入先于它被看到，之后对 items、takeIndex、count 的普通写入
+     * 仍可能先于奇数版本号被看到。因此用原子的读-改-写递增，它同时具有 volatile 读的语义，之后的写入不会被重排到它之前
+     */
+    private void beginWrite() {
+        VERSION.incrementAndGet(this);
+    }
+
+    /**
+     * Marks the end of a change.  Call only when holding lock.
+     * <p>
+     * 结束修改：版本号变回偶数，有序写即可，之前的写入都会先于它被看到
+     */
+    private void endWrite() {
+        VERSION.lazySet(this, version + 1);
+    }
+
     /**
      * Inserts element at current put position, advances, and signals.
      * Call only when holding lock.
@@ -204,6 +262,7 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 获取全局数组
         final Object[] items = this.items;
+        beginWrite();
 
         // 在 putIndex 下标位置添加元素
         items[putIndex] = x;
@@ -214,6 +273,9 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 数组元素个数累加
         count++;
+        endWrite();
+        if (stats != null)
+            stats.enqueued(count);
 
         // 尝试唤醒阻塞在 notEmpty 上等待的线程（如果有的话）
         notEmpty.signal();
@@ -235,6 +297,7 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
         // 获取 takeIndex 下标位置的元素
         @SuppressWarnings("unchecked")
         E x = (E) items[takeIndex];
+        beginWrite();
 
         // 设置 null，便于 GC
         items[takeIndex] = null;
@@ -245,6 +308,9 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 数组元素个数递减
         count--;
+        endWrite();
+        if (stats != null)
+            stats.dequeued();
 
         // 更新迭代器状态
         if (itrs != null)
@@ -271,6 +337,7 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 获取全局数组
         final Object[] items = this.items;
+        beginWrite();
 
         // 如果要删除下标正好是下一个要取出的元素对应的下标，那么同取出元素操作逻辑
         if (removeIndex == takeIndex) {
@@ -322,6 +389,7 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
             if (itrs != null)
                 itrs.removedAt(removeIndex);
         }
+        endWrite();
 
         // 尝试唤醒阻塞在 notFull 上等待的线程
         notFull.signal();
@@ -456,6 +524,9 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 加锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lock();
         try {
 
@@ -490,12 +561,20 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 加获取可中断锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lockInterruptibly();
 
         try {
+            // 启用指标且需要等待时，记录等待开始的时间
+            long waitStart = (stats != null && count == items.length) ? System.nanoTime() : 0L;
+
             // 判断队列是否满了，满了则阻塞在 notFull 等待被唤醒
             while (count == items.length)
                 notFull.await();
+            if (waitStart != 0L)
+                stats.putWaited(System.nanoTime() - waitStart);
 
             // 队列不满，则在队列尾部插入元素
             enqueue(e);
@@ -527,16 +606,26 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 获取可中断锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lockInterruptibly();
 
         try {
+            long waitStart = (stats != null && count == items.length && nanos > 0) ? System.nanoTime() : 0L;
+
             // 如果队列满了，则最多等待 nanos 纳秒时长
             while (count == items.length) {
                 // 等待 nanos 纳秒后，仍然还是满的，则返回 false，表示添加元素失败
-                if (nanos <= 0)
+                if (nanos <= 0) {
+                    if (waitStart != 0L)
+                        stats.putWaited(System.nanoTime() - waitStart);
                     return false;
+                }
                 nanos = notFull.awaitNanos(nanos);
             }
+            if (waitStart != 0L)
+                stats.putWaited(System.nanoTime() - waitStart);
 
             // 执行到这里，有两种情况：1）队列没有满，添加元素即可  2）队列满了，但在超时时间内被唤醒了，可以执行添加元素操作
             enqueue(e);
@@ -556,6 +645,9 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
     public E poll() {
         // 获取锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lock();
 
         try {
@@ -582,16 +674,26 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
 
         // 获取可中断锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lockInterruptibly();
 
         try {
+            long waitStart = (stats != null && count == 0 && nanos > 0) ? System.nanoTime() : 0L;
+
             // 如果队列为空，等待 nanos 纳秒时长
             while (count == 0) {
                 // 等待 nanos 纳秒后，队列还是为空
-                if (nanos <= 0)
+                if (nanos <= 0) {
+                    if (waitStart != 0L)
+                        stats.takeWaited(System.nanoTime() - waitStart);
                     return null;
+                }
                 nanos = notEmpty.awaitNanos(nanos);
             }
+            if (waitStart != 0L)
+                stats.takeWaited(System.nanoTime() - waitStart);
 
             // 执行到这里有两种可能： 1）队列非空，直接获取  2）队列为空，但在等待时长内队列又有元素了
             return dequeue();
@@ -611,12 +713,19 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
     public E take() throws InterruptedException {
         // 获取可中断锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lockInterruptibly();
 
         try {
+            long waitStart = (stats != null && count == 0) ? System.nanoTime() : 0L;
+
             // 队列为空，则阻塞等待，直到队列有元素
             while (count == 0)
                 notEmpty.await();
+            if (waitStart != 0L)
+                stats.takeWaited(System.nanoTime() - waitStart);
 
             // 获取 takeIndex 下标位置的元素
             return dequeue();
@@ -917,6 +1026,7 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
             if (k > 0) {
                 final int putIndex = this.putIndex;
                 int i = takeIndex;
+                beginWrite();
                 do {
                     items[i] = null;
                     if (++i == items.length)
@@ -924,6 +1034,7 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
                 } while (i != putIndex);
                 takeIndex = putIndex;
                 count = 0;
+                endWrite();
                 if (itrs != null)
                     itrs.queueIsEmpty();
                 for (; k > 0 && lock.hasWaiters(notFull); k--)
@@ -964,11 +1075,11 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
             int take = takeIndex;
             int i = 0;
             try {
+                // c.add() 可能很慢，先在版本号为偶数时加入 c，之后的写区间只清空槽位和更新下标
                 while (i < n) {
                     @SuppressWarnings("unchecked")
                     E x = (E) items[take];
                     c.add(x);
-                    items[take] = null;
                     if (++take == items.length)
                         take = 0;
                     i++;
@@ -977,8 +1088,17 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
             } finally {
                 // Restore invariants even if c.add() threw
                 if (i > 0) {
+                    beginWrite();
+                    for (int k = takeIndex, j = 0; j < i; j++) {
+                        items[k] = null;
+                        if (++k == items.length)
+                            k = 0;
+                    }
                     count -= i;
+                    if (stats != null)
+                        stats.dequeued(i);
                     takeIndex = take;
+                    endWrite();
                     if (itrs != null) {
                         if (count == 0)
                             itrs.queueIsEmpty();
@@ -994,6 +1114,176 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Removes all available elements from this queue and applies the given
+     * action to each of them, using at most {@code parallelism} threads
+     * of the {@linkplain java.util.concurrent.ForkJoinPool#commonPool()
+     * common pool}, including the calling thread.  The elements are
+     * drained with a single {@link #drainTo(Collection)}, so the lock is
+     * taken once, and are then processed in chunks claimed by fork-join
+     * tasks.  The order in which the action sees the elements is not
+     * specified.  If the action throws an exception the remaining chunks
+     * are skipped, their elements are lost, and the exception is
+     * rethrown.
+     * <p>
+     * 取出全部元素，使用公共池中最多 parallelism 个线程（包括调用线程）并行执行 action。元素通过一次 drainTo 取出，
+     * 只获取一次锁，之后由 fork-join 任务分块领取处理，action 看到元素的顺序不确定。action 抛出异常时跳过剩余的分块，
+     * 其中的元素丢失，异常被重新抛出。
+     *
+     * @param action      the action to apply to each element
+     * @param parallelism the maximum number of threads processing elements 最多同时处理元素的线程数
+     * @return the number of elements drained
+     * @throws NullPointerException     if {@code action} is null
+     * @throws IllegalArgumentException if {@code parallelism} is less than 1
+     */
+    public int drainParallel(Consumer<? super E> action, int parallelism) {
+        return ParallelDrain.drain(this, action, parallelism);
+    }
+
+    /**
+     * Starts recording {@linkplain QueueMetrics metrics} for this queue.
+     * Until this method is called the queue records nothing, and each
+     * operation pays only a {@code null} check.  Calling it again returns
+     * the existing metrics.
+     * <p>
+     * 开始记录本队列的指标。调用之前队列不记录任何数据，每个操作只多一次 null 判断；重复调用返回同一个指标对象。
+     *
+     * @return the metrics of this queue 本队列的指标
+     */
+    public QueueMetrics enableMetrics() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (stats == null)
+                stats = new QueueStats();
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the metrics of this queue.
+     *
+     * @return the metrics, or {@code null} if {@link #enableMetrics()} has
+     * not been called
+     */
+    public QueueMetrics metrics() {
+        return stats;
+    }
+
+    /**
+     * Returns the number of elements in this queue without acquiring the
+     * lock.  The value is read racily and may be stale, so it is meant
+     * for monitoring only; {@link #size} returns the exact count.
+     * <p>
+     * 不加锁返回队列中元素的个数。读取时没有同步，可能是过时的值，只用于监控；准确的个数使用 size()
+     *
+     * @return the approximate number of elements in this queue
+     */
+    public int approximateSize() {
+        int n = count;
+        return (n < 0) ? 0 : (n > items.length) ? items.length : n;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements in this queue,
+     * in proper sequence, taken without acquiring the lock.
+     *
+     * <p>Unlike {@link #iterator}, the returned iterator neither takes the
+     * lock nor registers with the queue, so it never slows down
+     * {@code put} and {@code take}, however many are alive.  The snapshot
+     * is read optimistically and validated against a version number that
+     * writers advance around every change, retrying if a change
+     * overlapped; if the queue keeps changing, the snapshot is copied
+     * under the lock instead.  The iterator does not reflect changes made
+     * after the snapshot, and is <i>weakly consistent</i>.
+     * {@link Iterator#remove} removes the element with {@link #remove(Object)}.
+     * <p>
+     * 返回基于快照的迭代器，不获取锁。与 iterator() 不同，它既不加锁也不注册到队列，无论存在多少个都不会拖慢 put/take。
+     * 快照以乐观方式读取，并用写线程在每次修改前后推进的版本号校验，与修改重叠则重试；队列一直在修改时改为加锁复制。
+     * 迭代器不反映快照之后的修改，是弱一致的。
+     *
+     * @return an iterator over a snapshot of the elements in this queue
+     */
+    public Iterator<E> lockFreeIterator() {
+        return new SnapshotItr(lockFreeSnapshot());
+    }
+
+    /**
+     * Reads the elements from takeIndex on without the lock, seqlock style,
+     * falling back to {@link #toArray} after too many failed attempts.
+     * <p>
+     * 不加锁读取从 takeIndex 开始的元素：读取前后版本号相同且为偶数，说明期间没有修改。
+     * 重试次数用完仍未成功则加锁复制
+     */
+    private Object[] lockFreeSnapshot() {
+        final Object[] items = this.items;
+        Object[] a = new Object[0];
+        int n = 0;
+        for (int attempt = 0; attempt < MAX_SNAPSHOT_RETRIES; attempt++) {
+            long v = version;
+            // 有写线程正在修改
+            if ((v & 1L) != 0L) {
+                Thread.yield();
+                continue;
+            }
+            // 无锁读到的 takeIndex、count 可能是中间值，需要校正到合法范围
+            int take = takeIndex, k = count;
+            if (take < 0 || take >= items.length)
+                take = 0;
+            if (k < 0 || k > items.length)
+                k = 0;
+            if (a.length < k)
+                a = new Object[k];
+            n = 0;
+            for (int i = take, j = 0; j < k; j++) {
+                Object x = items[i];
+                if (x != null)
+                    a[n++] = x;
+                if (++i == items.length)
+                    i = 0;
+            }
+            // 版本号的 volatile 读不能阻止之前的普通读取被重排到它之后。用 CAS(v, v) 校验：
+            // 它具有 volatile 写的语义，之前的读取不会被重排到它之后，成功时版本号不变
+            if (VERSION.compareAndSet(this, v, v))
+                return (n == a.length) ? a : Arrays.copyOf(a, n);
+        }
+        return toArray();
+    }
+
+    /**
+     * Iterator over a snapshot array, removal goes through remove(Object).
+     */
+    private class SnapshotItr implements Iterator<E> {
+        final Object[] array;
+        int cursor;
+        int lastRet = -1;
+
+        SnapshotItr(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            ArrayBlockingQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
     /**
      * Returns an iterator over the elements in this queue in proper sequence.
      * The elements will be returned in order from first (head) to last (tail).
@@ -1666,6 +1956,7 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
      * @return a {@code Spliterator} over the elements in this queue
      * @implNote The {@code Spliterator} implements {@code trySplit} to permit limited
      * parallelism.
+     * @see #snapshotSpliterator()
      * @since 1.8
      */
     public Spliterator<E> spliterator() {
@@ -1674,6 +1965,30 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
                         Spliterator.CONCURRENT);
     }
 
+    /**
+     * Returns a {@link Spliterator} over a snapshot of the elements in
+     * this queue, for parallel processing.
+     *
+     * <p>The snapshot is copied under the lock when this method is called,
+     * so the spliterator does not reflect later modifications and never
+     * touches the lock again.  Unlike {@link #spliterator()}, whose splits
+     * are limited, it splits the snapshot in balanced halves.
+     *
+     * <p>The {@code Spliterator} reports {@link Spliterator#IMMUTABLE},
+     * {@link Spliterator#ORDERED}, {@link Spliterator#NONNULL},
+     * {@link Spliterator#SIZED} and {@link Spliterator#SUBSIZED}.
+     * <p>
+     * 返回基于快照的 Spliterator：快照在调用时加锁复制（最多两次 arraycopy），之后不再获取锁。
+     * 与 spliterator() 不同，它按下标对半拆分，大小精确，适合并行流均衡地拆分。
+     *
+     * @return a {@code Spliterator} over a snapshot of the elements in this queue
+     */
+    public Spliterator<E> snapshotSpliterator() {
+        return Spliterators.spliterator
+                (toArray(), Spliterator.ORDERED | Spliterator.NONNULL |
+                        Spliterator.IMMUTABLE);
+    }
+
     /**
      * Deserializes this queue and then checks some invariants.
      *
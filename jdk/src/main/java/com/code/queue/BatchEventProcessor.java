@@ -0,0 +1,135 @@
+package com.code.queue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Consumer of a {@link RingBuffer} that waits on a {@link SequenceBarrier}
+ * and hands every available event to an {@link EventHandler}, marking the
+ * last event of each batch.  Each processor owns a {@link Sequence}; pass
+ * it to {@link RingBuffer#newBarrier} to make later stages depend on this
+ * one, or to {@link RingBuffer#addGatingSequences} to keep the producer
+ * from overtaking it.
+ * <p>
+ * 批量事件处理器：通过序号屏障等待事件，把所有可用的事件交给 EventHandler 处理，并标记批次的最后一个事件。
+ * 每个处理器拥有自己的序号，既可以作为下游消费者的依赖，也可以作为生产者的门控序号。
+ *
+ * <p>The processor's sequence is only advanced once per batch, which
+ * keeps cache traffic between stages low under load.
+ * <p>
+ * 序号每批次才更新一次，高负载下可以减少消费者之间的缓存行争用。
+ *
+ * @param <E> the event type
+ */
+public final class BatchEventProcessor<E> implements Runnable {
+
+    private final RingBuffer<E> ringBuffer;
+
+    private final SequenceBarrier barrier;
+
+    private final EventHandler<? super E> handler;
+
+    /**
+     * 当前处理器已处理到的序号
+     */
+    private final Sequence sequence = new Sequence();
+
+    /**
+     * 是否正在运行，保证同一时刻只有一个线程在执行 run
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * Creates a processor.
+     *
+     * @param ringBuffer the ring buffer to consume 要消费的环形缓冲区
+     * @param barrier    the barrier to wait on 等待使用的序号屏障
+     * @param handler    the handler invoked for every event 事件处理器
+     */
+    public BatchEventProcessor(RingBuffer<E> ringBuffer, SequenceBarrier barrier,
+                               EventHandler<? super E> handler) {
+        if (ringBuffer == null || barrier == null || handler == null)
+            throw new NullPointerException();
+        this.ringBuffer = ringBuffer;
+        this.barrier = barrier;
+        this.handler = handler;
+    }
+
+    /**
+     * Returns the sequence of this processor.
+     *
+     * @return the sequence tracking processed events
+     */
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Signals the processor to stop after the current batch.
+     * <p>
+     * 通知处理器在当前批次处理完后停止
+     */
+    public void halt() {
+        running.set(false);
+        barrier.alert();
+    }
+
+    /**
+     * Returns whether the processor is running.
+     *
+     * @return {@code true} if {@link #run} is executing
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Processes events until {@link #halt} is called.  If the handler throws,
+     * the processor stops with the failing event still unconsumed and the
+     * exception is rethrown wrapped in a {@code RuntimeException}.
+     * <p>
+     * 循环处理事件直到 halt。如果处理器抛出异常，失败的事件不会被标记为已消费，异常包装后抛出。
+     *
+     * @throws IllegalStateException if the processor is already running
+     */
+    public void run() {
+        if (!running.compareAndSet(false, true))
+            throw new IllegalStateException("Thread is already running");
+        barrier.clearAlert();
+
+        long nextSequence = sequence.get() + 1L;
+        try {
+            for (; ; ) {
+                try {
+                    // 等待可消费的最大序号
+                    long availableSequence = barrier.waitFor(nextSequence);
+
+                    // 批量处理 [nextSequence, availableSequence] 区间的事件
+                    while (nextSequence <= availableSequence) {
+                        E event = ringBuffer.get(nextSequence);
+                        handler.onEvent(event, nextSequence, nextSequence == availableSequence);
+                        nextSequence++;
+                    }
+
+                    // 整批处理完后再推进序号
+                    if (availableSequence > sequence.get())
+                        sequence.set(availableSequence);
+                } catch (SequenceBarrier.AlertException ex) {
+                    // 被 halt 通知停止
+                    break;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // 已处理的部分仍然推进序号
+            sequence.set(nextSequence - 1L);
+            throw ex;
+        } catch (Exception ex) {
+            sequence.set(nextSequence - 1L);
+            throw new RuntimeException(ex);
+        } finally {
+            running.set(false);
+        }
+    }
+}
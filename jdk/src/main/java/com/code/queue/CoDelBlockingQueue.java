@@ -0,0 +1,607 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * An optionally-bounded {@linkplain BlockingQueue blocking queue} that
+ * protects its consumers from overload with Controlled Delay (CoDel) and,
+ * optionally, adaptive LIFO.
+ * <p>
+ * 可选有界的阻塞队列，用受控延迟（CoDel）和可选的自适应 LIFO 在过载时保护消费者。
+ *
+ * <p>The queue considers itself <em>overloaded</em> when it has not been
+ * empty for longer than {@code interval}.  While it is not, an element is
+ * dropped when it is taken after waiting longer than {@code interval}; once
+ * it is, the limit drops to {@code target}, so that the backlog is shed
+ * quickly instead of making every element wait for all that are ahead of
+ * it.  Dropped elements are passed to a drop handler, which can fail the
+ * request they stand for, instead of being returned.
+ * <p>
+ * 队列超过 interval 没有清空过即认为过载。未过载时，等待超过 interval 的元素在出队时被丢弃；过载后上限降为 target，
+ * 积压被快速削减，而不是让每个元素都等待排在它前面的全部元素。被丢弃的元素不会返回，而是交给丢弃处理器，由它让对应的请求失败。
+ *
+ * <p>With adaptive LIFO enabled, an overloaded queue also hands out the
+ * newest element first: under overload the oldest elements are the ones
+ * most likely to have timed out already at the caller, so serving the
+ * newest keeps the latency of the requests that do get served bounded.
+ * The queue is FIFO again as soon as it has drained.
+ * <p>
+ * 开启自适应 LIFO 后，过载的队列还会优先取出最新的元素：过载时最老的元素最有可能已经在调用方超时，
+ * 先处理最新的元素可以让得到处理的请求延迟有界。队列清空后恢复 FIFO。
+ *
+ * <p>Dropping happens while taking, from the old end of the queue, so each
+ * element is inspected at most once; the drop handler is called by the
+ * taking thread after releasing the lock, once per dropped element.  An
+ * exception thrown by the handler goes to the taking thread's
+ * {@linkplain Thread.UncaughtExceptionHandler uncaught exception handler};
+ * the element taken is still returned and the other dropped elements are
+ * still handled.  {@link #drainTo} hands out every
+ * element in FIFO order without dropping any, as needed for
+ * {@code ThreadPoolExecutor.shutdownNow}.  Null elements are not permitted.
+ * <p>
+ * 丢弃发生在出队时，从队列最老的一端进行，每个元素最多检查一次；丢弃处理器由出队线程在释放锁之后对每个丢弃的元素调用一次。
+ * 处理器抛出的异常交给出队线程的 UncaughtExceptionHandler，取到的元素照常返回，其余丢弃的元素照常处理。
+ * drainTo 按 FIFO 顺序交出全部元素，不丢弃，满足 ThreadPoolExecutor.shutdownNow 的需要。不允许 null 元素。
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class CoDelBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+      说明：
+
+      1. 元素入队时记录时间，出队时先从队首（最老的一端）丢弃所有等待超过上限的元素，再按当前模式从队首或队尾取出；
+      2. lastEmpty 记录队列最近一次为空的时间：出队后变空、入队前为空、消费者发现为空时都会更新；
+         now - lastEmpty > interval 即为过载，过载时上限为 target，否则为 interval；
+      3. 丢弃的元素先收集起来，释放锁之后再交给丢弃处理器，处理器执行多久都不会阻塞其他线程。
+     */
+
+    /**
+     * 默认目标延迟，毫秒
+     */
+    static final long DEFAULT_TARGET_MILLIS = 5L;
+
+    /**
+     * 默认观察区间，毫秒
+     */
+    static final long DEFAULT_INTERVAL_MILLIS = 100L;
+
+    /**
+     * 元素，队首最老
+     */
+    private final ArrayDeque<Node<E>> deque = new ArrayDeque<Node<E>>();
+
+    /**
+     * 容量
+     */
+    private final int capacity;
+
+    /**
+     * 过载时允许的等待时间，纳秒
+     */
+    private final long targetNanos;
+
+    /**
+     * 判断过载的区间，也是未过载时允许的等待时间，纳秒
+     */
+    private final long intervalNanos;
+
+    /**
+     * 过载时是否 LIFO 出队
+     */
+    private final boolean adaptiveLifo;
+
+    /**
+     * 丢弃处理器，为 null 时直接丢弃
+     */
+    private final Consumer<? super E> dropHandler;
+
+    /**
+     * 队列最近一次为空的时间
+     */
+    private long lastEmpty = System.nanoTime();
+
+    /**
+     * 丢弃的元素总数
+     */
+    private long dropped;
+
+    /**
+     * Main lock guarding all access
+     */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Condition for waiting takes
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Condition for waiting puts
+     */
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Creates an unbounded queue with a target of 5 milliseconds, an
+     * interval of 100 milliseconds and adaptive LIFO, which passes dropped
+     * elements to the given handler.
+     *
+     * @param dropHandler the handler of dropped elements, or {@code null}
+     *                    to discard them 丢弃处理器，为 null 时直接丢弃
+     */
+    public CoDelBlockingQueue(Consumer<? super E> dropHandler) {
+        this(Integer.MAX_VALUE, DEFAULT_TARGET_MILLIS, DEFAULT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS,
+                true, dropHandler);
+    }
+
+    /**
+     * Creates a queue with the given settings.
+     *
+     * @param capacity     the capacity of this queue 容量
+     * @param target       the waiting time allowed while overloaded 过载时允许的等待时间
+     * @param interval     the time the queue must stay non-empty to be
+     *                     overloaded, and the waiting time allowed otherwise 判断过载的区间，也是未过载时允许的等待时间
+     * @param unit         the time unit of {@code target} and {@code interval}
+     * @param adaptiveLifo whether to take the newest element first while
+     *                     overloaded 过载时是否 LIFO 出队
+     * @param dropHandler  the handler of dropped elements, or {@code null}
+     *                     to discard them 丢弃处理器，为 null 时直接丢弃
+     * @throws IllegalArgumentException if {@code capacity} or
+     *                                  {@code target} is not positive, or {@code interval} is less than
+     *                                  {@code target}
+     * @throws NullPointerException     if {@code unit} is null
+     */
+    public CoDelBlockingQueue(int capacity, long target, long interval, TimeUnit unit,
+                              boolean adaptiveLifo, Consumer<? super E> dropHandler) {
+        if (unit == null)
+            throw new NullPointerException();
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (target <= 0 || interval < target)
+            throw new IllegalArgumentException("require 0 < target <= interval: " + target + ", " + interval);
+        this.capacity = capacity;
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+        this.adaptiveLifo = adaptiveLifo;
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * Inserts the element.  Call only when holding lock and there is room.
+     * <p>
+     * 入队，只在持有锁且未满时调用
+     */
+    private void enqueue(E e) {
+        long now = System.nanoTime();
+        if (deque.isEmpty())
+            lastEmpty = now;
+        deque.offerLast(new Node<E>(e, now));
+        notEmpty.signal();
+    }
+
+    /**
+     * Drops the elements that have waited too long from the old end, then
+     * removes the next element, or returns {@code null} if none is left.
+     * Call only when holding lock.
+     * <p>
+     * 出队，只在持有锁时调用。先从队首丢弃等待过久的元素，放入 drops，再按当前模式取出一个元素
+     */
+    private E dequeue(List<E> drops) {
+        final ArrayDeque<Node<E>> deque = this.deque;
+        long now = System.nanoTime();
+        if (deque.isEmpty()) {
+            lastEmpty = now;
+            return null;
+        }
+        boolean overloaded = now - lastEmpty > intervalNanos;
+        long limit = overloaded ? targetNanos : intervalNanos;
+        for (Node<E> h; (h = deque.peekFirst()) != null && now - h.time > limit; ) {
+            deque.pollFirst();
+            drops.add(h.item);
+            dropped++;
+        }
+        Node<E> x = (overloaded && adaptiveLifo) ? deque.pollLast() : deque.pollFirst();
+        if (deque.isEmpty())
+            lastEmpty = now;
+        int removed = (x == null) ? drops.size() : drops.size() + 1;
+        if (removed == 1)
+            notFull.signal();
+        else if (removed > 1)
+            notFull.signalAll();
+        return (x == null) ? null : x.item;
+    }
+
+    /**
+     * Passes the dropped elements to the drop handler, outside the lock.
+     * A failure of the handler is reported to the uncaught exception
+     * handler of the current thread, so that it neither loses the element
+     * the caller has taken nor skips the remaining drops.
+     * <p>
+     * 在锁外把丢弃的元素逐个交给丢弃处理器。处理器抛出的异常交给当前线程的 UncaughtExceptionHandler，
+     * 不会丢失调用方已经取出的元素，也不会跳过其余丢弃的元素
+     */
+    private void handleDrops(List<E> drops) {
+        final Consumer<? super E> handler = this.dropHandler;
+        if (handler != null) {
+            for (E e : drops) {
+                try {
+                    handler.accept(e);
+                } catch (Throwable ex) {
+                    Thread t = Thread.currentThread();
+                    t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if there is
+     * room, returning {@code true} upon success and {@code false} if this
+     * queue is full.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (deque.size() == capacity)
+                return false;
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting if
+     * necessary for space to become available.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (deque.size() == capacity)
+                notFull.await();
+            enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting up
+     * to the specified wait time for space to become available.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (deque.size() == capacity) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the next element that has not waited too
+     * long, dropping those that have, or returns {@code null} if none is
+     * left.
+     */
+    public E poll() {
+        List<E> drops = new ArrayList<E>();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return dequeue(drops);
+        } finally {
+            lock.unlock();
+            handleDrops(drops);
+        }
+    }
+
+    /**
+     * Retrieves and removes the next element that has not waited too
+     * long, dropping those that have, waiting if necessary until one is
+     * available.
+     */
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        for (; ; ) {
+            E x;
+            List<E> drops = new ArrayList<E>();
+            lock.lockInterruptibly();
+            try {
+                while ((x = dequeue(drops)) == null && drops.isEmpty())
+                    notEmpty.await();
+            } finally {
+                lock.unlock();
+                handleDrops(drops);
+            }
+            // 取到的元素全部被丢弃时，先处理丢弃的元素再继续等待
+            if (x != null)
+                return x;
+        }
+    }
+
+    /**
+     * Retrieves and removes the next element that has not waited too
+     * long, dropping those that have, waiting up to the specified wait
+     * time if necessary for one to become available.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        for (; ; ) {
+            E x;
+            List<E> drops = new ArrayList<E>();
+            lock.lockInterruptibly();
+            try {
+                while ((x = dequeue(drops)) == null && drops.isEmpty()) {
+                    if (nanos <= 0)
+                        return null;
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+                handleDrops(drops);
+            }
+            if (x != null || nanos <= 0)
+                return x;
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the element at the end the next
+     * {@code poll} takes from, without dropping anything, or returns
+     * {@code null} if this queue is empty.
+     */
+    public E peek() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Node<E> x = (isOverloaded(System.nanoTime()) && adaptiveLifo) ? deque.peekLast() : deque.peekFirst();
+            return (x == null) ? null : x.item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isOverloaded(long now) {
+        return !deque.isEmpty() && now - lastEmpty > intervalNanos;
+    }
+
+    /**
+     * Returns {@code true} if this queue has not been empty for longer than
+     * the interval, so that it sheds elements more aggressively and, with
+     * adaptive LIFO, takes the newest first.
+     * <p>
+     * 队列是否处于过载状态
+     *
+     * @return {@code true} if this queue is overloaded
+     */
+    public boolean isOverloaded() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return isOverloaded(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of elements dropped since this queue was created.
+     *
+     * @return the number of dropped elements 丢弃的元素总数
+     */
+    public long droppedCount() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return deque.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return capacity - deque.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most the given number of elements in FIFO order, without
+     * dropping any, and adds them to the given collection.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int n = 0;
+            for (Node<E> x; n < maxElements && (x = deque.pollFirst()) != null; ) {
+                c.add(x.item);
+                ++n;
+            }
+            if (n > 0) {
+                if (deque.isEmpty())
+                    lastEmpty = System.nanoTime();
+                notFull.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (Iterator<Node<E>> it = deque.iterator(); it.hasNext(); ) {
+                if (o.equals(it.next().item)) {
+                    it.remove();
+                    if (deque.isEmpty())
+                        lastEmpty = System.nanoTime();
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            deque.clear();
+            lastEmpty = System.nanoTime();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, in
+     * FIFO order.
+     */
+    public Object[] toArray() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Object[] a = new Object[deque.size()];
+            int i = 0;
+            for (Node<E> x : deque)
+                a[i++] = x.item;
+            return a;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in FIFO order.
+     * The iterator works on a snapshot and is weakly consistent.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    /**
+     * Snapshot iterator, removal goes through remove(Object).
+     */
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            CoDelBlockingQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
+    /**
+     * 队列中的节点，记录入队时间
+     */
+    static final class Node<E> {
+        final E item;
+
+        /**
+         * 入队时间
+         */
+        final long time;
+
+        Node(E item, long time) {
+            this.item = item;
+            this.time = time;
+        }
+    }
+}
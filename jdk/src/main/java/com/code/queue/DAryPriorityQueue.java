@@ -0,0 +1,742 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * An unbounded priority queue with the same public API as
+ * {@link PriorityQueue}, backed by a d-ary heap whose arity is chosen at
+ * construction time (2, 4 or 8).
+ * <p>
+ * 与 PriorityQueue 公共 API 相同的无界优先级队列，底层是 d 叉堆，叉数在构造时指定（2、4 或 8）。
+ *
+ * <p>A wider heap is shallower: with arity 4 the tree has half the levels
+ * of a binary heap and the children of a node are adjacent in the backing
+ * array, usually sharing a cache line.  {@code offer} becomes cheaper
+ * because sift-up walks fewer levels, while {@code poll} inspects more
+ * children per level but touches far fewer cache lines.  For heaps with
+ * millions of elements arity 4 is typically the best trade-off; arity 2
+ * behaves exactly like {@link PriorityQueue}.
+ * <p>
+ * 叉数越大，堆越矮：4 叉堆的层数只有二叉堆的一半，并且同一节点的孩子在数组中相邻，通常位于同一缓存行。
+ * offer 自下而上调整的层数变少；poll 每层需要比较更多孩子，但访问的缓存行更少。
+ * 百万级以上元素的堆一般 4 叉最优；2 叉时与 PriorityQueue 行为一致。
+ *
+ * <p>Like {@link PriorityQueue}, this class is not thread-safe, does not
+ * permit {@code null} elements, and its iterator does not traverse the
+ * elements in any particular order.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class DAryPriorityQueue<E> extends AbstractQueue<E>
+        implements java.io.Serializable {
+
+    private static final long serialVersionUID = 2935307428631580592L;
+
+    /*
+      说明：
+      1. 节点 k 的孩子为 queue[d*k+1] ... queue[d*k+d]，父节点为 queue[(k-1)/d]；
+      2. 叉数限定为 2 的幂，乘除都可以用移位完成，shift = log2(d)；
+      3. 除了堆的叉数，其余逻辑（扩容、迭代器、可拆分迭代器）与 PriorityQueue 一致。
+     */
+
+    /**
+     * 默认容量
+     */
+    private static final int DEFAULT_INITIAL_CAPACITY = 11;
+
+    /**
+     * 默认叉数
+     */
+    public static final int DEFAULT_ARITY = 4;
+
+    /**
+     * 存储元素的数组
+     */
+    transient Object[] queue; // non-private to simplify nested class access
+
+    /**
+     * 元素个数
+     */
+    private int size = 0;
+
+    /**
+     * 比较器，为 null 时使用元素的自然顺序
+     */
+    private final Comparator<? super E> comparator;
+
+    /**
+     * log2(叉数)
+     */
+    private final int shift;
+
+    /**
+     * 写次数
+     */
+    transient int modCount = 0; // non-private to simplify nested class access
+
+    /**
+     * Creates a queue with the default initial capacity (11) and arity (4)
+     * that orders its elements according to their natural ordering.
+     */
+    public DAryPriorityQueue() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_ARITY, null);
+    }
+
+    /**
+     * Creates a queue with the specified initial capacity and the default
+     * arity (4) that orders its elements according to their natural
+     * ordering, like {@link PriorityQueue#PriorityQueue(int)}.
+     *
+     * @param initialCapacity the initial capacity 初始容量
+     * @throws IllegalArgumentException if {@code initialCapacity} is less
+     *                                  than 1
+     */
+    public DAryPriorityQueue(int initialCapacity) {
+        this(initialCapacity, DEFAULT_ARITY, null);
+    }
+
+    /**
+     * Creates a queue with the default initial capacity and the given arity
+     * that orders its elements according to their natural ordering.  A
+     * factory rather than a constructor, since {@code (int)} is the
+     * initial capacity, as in {@link PriorityQueue}.
+     * <p>
+     * 按给定叉数创建自然顺序的队列。用静态工厂而不是构造方法，因为 (int) 构造方法与 PriorityQueue 一样表示初始容量
+     *
+     * @param arity the number of children per node: 2, 4 or 8 每个节点的孩子个数
+     * @param <E>   the type of elements held in the queue
+     * @return a new empty queue
+     * @throws IllegalArgumentException if {@code arity} is not 2, 4 or 8
+     */
+    public static <E> DAryPriorityQueue<E> withArity(int arity) {
+        return new DAryPriorityQueue<E>(DEFAULT_INITIAL_CAPACITY, arity, null);
+    }
+
+    /**
+     * Creates a queue with the default initial capacity and arity whose
+     * elements are ordered according to the specified comparator.
+     *
+     * @param comparator the comparator, or {@code null} for natural ordering
+     */
+    public DAryPriorityQueue(Comparator<? super E> comparator) {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_ARITY, comparator);
+    }
+
+    /**
+     * Creates a queue with the given initial capacity and arity whose
+     * elements are ordered according to the specified comparator.
+     *
+     * @param initialCapacity the initial capacity 初始容量
+     * @param arity           the number of children per node: 2, 4 or 8 叉数
+     * @param comparator      the comparator, or {@code null} for natural ordering
+     * @throws IllegalArgumentException if {@code initialCapacity} is less
+     *                                  than 1 or {@code arity} is not 2, 4 or 8
+     */
+    public DAryPriorityQueue(int initialCapacity, int arity,
+                             Comparator<? super E> comparator) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException();
+        this.shift = shiftFor(arity);
+        this.queue = new Object[initialCapacity];
+        this.comparator = comparator;
+    }
+
+    /**
+     * Creates a queue with the default arity containing the elements of
+     * the specified collection, like
+     * {@link PriorityQueue#PriorityQueue(Collection)}.
+     *
+     * @param c the collection whose elements are to be placed into this queue
+     * @throws ClassCastException   if elements cannot be compared
+     * @throws NullPointerException if the collection or any element is null
+     */
+    public DAryPriorityQueue(Collection<? extends E> c) {
+        this(c, DEFAULT_ARITY);
+    }
+
+    /**
+     * Creates a queue with the given arity containing the elements of the
+     * specified collection.  If the collection is a {@link SortedSet} or a
+     * priority queue, this queue is ordered by the same comparator;
+     * otherwise it is ordered by natural ordering.  The heap is built
+     * bottom-up in O(n).
+     * <p>
+     * 来源是 SortedSet 或优先级队列时沿用其比较器，否则按自然顺序，与 PriorityQueue(Collection) 一致
+     *
+     * @param c     the collection whose elements are to be placed into this queue
+     * @param arity the number of children per node: 2, 4 or 8 叉数
+     * @throws ClassCastException   if elements cannot be compared
+     * @throws NullPointerException if the collection or any element is null
+     */
+    public DAryPriorityQueue(Collection<? extends E> c, int arity) {
+        this.shift = shiftFor(arity);
+        this.comparator = comparatorOf(c);
+        Object[] a = c.toArray();
+        // If c.toArray incorrectly doesn't return Object[], copy it.
+        if (a.getClass() != Object[].class)
+            a = Arrays.copyOf(a, a.length, Object[].class);
+        for (Object o : a)
+            if (o == null)
+                throw new NullPointerException();
+        this.queue = (a.length == 0) ? new Object[1] : a;
+        this.size = a.length;
+        heapify();
+    }
+
+    /**
+     * 取得有序来源集合的比较器，其他集合返回 null
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> Comparator<? super E> comparatorOf(Collection<? extends E> c) {
+        if (c instanceof SortedSet<?>)
+            return (Comparator<? super E>) ((SortedSet<? extends E>) c).comparator();
+        if (c instanceof java.util.PriorityQueue<?>)
+            return (Comparator<? super E>) ((java.util.PriorityQueue<? extends E>) c).comparator();
+        if (c instanceof PriorityQueue<?>)
+            return (Comparator<? super E>) ((PriorityQueue<? extends E>) c).comparator();
+        if (c instanceof DAryPriorityQueue<?>)
+            return (Comparator<? super E>) ((DAryPriorityQueue<? extends E>) c).comparator();
+        return null;
+    }
+
+    /**
+     * 叉数转换为移位位数
+     */
+    private static int shiftFor(int arity) {
+        switch (arity) {
+            case 2:
+                return 1;
+            case 4:
+                return 2;
+            case 8:
+                return 3;
+            default:
+                throw new IllegalArgumentException("arity must be 2, 4 or 8: " + arity);
+        }
+    }
+
+    /**
+     * Returns the number of children per node of the backing heap.
+     *
+     * @return the arity: 2, 4 or 8
+     */
+    public int arity() {
+        return 1 << shift;
+    }
+
+    /**
+     * The maximum size of array to allocate.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Increases the capacity of the array.
+     * <p>
+     * 扩容，策略与 PriorityQueue 相同
+     *
+     * @param minCapacity the desired minimum capacity
+     */
+    private void grow(int minCapacity) {
+        int oldCapacity = queue.length;
+        // Double size if small; else grow by 50%
+        int newCapacity = oldCapacity + ((oldCapacity < 64) ?
+                (oldCapacity + 2) :
+                (oldCapacity >> 1));
+        // overflow-conscious code
+        if (newCapacity - MAX_ARRAY_SIZE > 0)
+            newCapacity = hugeCapacity(minCapacity);
+        queue = Arrays.copyOf(queue, newCapacity);
+    }
+
+    private static int hugeCapacity(int minCapacity) {
+        if (minCapacity < 0) // overflow
+            throw new OutOfMemoryError();
+        return (minCapacity > MAX_ARRAY_SIZE) ?
+                Integer.MAX_VALUE :
+                MAX_ARRAY_SIZE;
+    }
+
+    /**
+     * Inserts the specified element into this priority queue.
+     *
+     * @return {@code true} (as specified by {@link Collection#add})
+     * @throws ClassCastException   if the element cannot be compared with
+     *                              elements currently in this queue
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    /**
+     * Inserts the specified element into this priority queue.
+     *
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws ClassCastException   if the element cannot be compared with
+     *                              elements currently in this queue
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        modCount++;
+        int i = size;
+        if (i >= queue.length)
+            grow(i + 1);
+        size = i + 1;
+        if (i == 0)
+            queue[0] = e;
+        else
+            siftUp(i, e);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        return (size == 0) ? null : (E) queue[0];
+    }
+
+    private int indexOf(Object o) {
+        if (o != null) {
+            for (int i = 0; i < size; i++)
+                if (o.equals(queue[i]))
+                    return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        int i = indexOf(o);
+        if (i == -1)
+            return false;
+        else {
+            removeAt(i);
+            return true;
+        }
+    }
+
+    /**
+     * Version of remove using reference equality, not equals.
+     * Needed by iterator.remove.
+     */
+    boolean removeEq(Object o) {
+        for (int i = 0; i < size; i++) {
+            if (o == queue[i]) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the ith element from queue, see
+     * {@code PriorityQueue.removeAt} for the meaning of the return value.
+     * <p>
+     * 移除下标为 i 的元素；如果末尾元素被移动到了 i 之前的位置，则返回该元素，供迭代器使用
+     */
+    @SuppressWarnings("unchecked")
+    private E removeAt(int i) {
+        // assert i >= 0 && i < size;
+        modCount++;
+        int s = --size;
+        if (s == i) // removed last element
+            queue[i] = null;
+        else {
+            E moved = (E) queue[s];
+            queue[s] = null;
+            siftDown(i, moved);
+            if (queue[i] == moved) {
+                siftUp(i, moved);
+                if (queue[i] != moved)
+                    return moved;
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(Object o) {
+        return indexOf(o) != -1;
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue.
+     * The elements are in no particular order.
+     *
+     * @return an array containing all of the elements in this queue
+     */
+    public Object[] toArray() {
+        return Arrays.copyOf(queue, size);
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue; the
+     * runtime type of the returned array is that of the specified array.
+     *
+     * @param a the array into which the elements of the queue are to be stored
+     * @return an array containing all of the elements in this queue
+     * @throws ArrayStoreException  if the runtime type of the specified array
+     *                              is not a supertype of every element
+     * @throws NullPointerException if the specified array is null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        final int size = this.size;
+        if (a.length < size)
+            return (T[]) Arrays.copyOf(queue, size, a.getClass());
+        System.arraycopy(queue, 0, a, 0, size);
+        if (a.length > size)
+            a[size] = null;
+        return a;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue. The iterator
+     * does not return the elements in any particular order.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    /**
+     * 与 PriorityQueue.Itr 相同，forgetMeNot 保存因删除而被移动到已遍历区域的元素
+     */
+    private final class Itr implements Iterator<E> {
+        private int cursor = 0;
+        private int lastRet = -1;
+        private ArrayDeque<E> forgetMeNot = null;
+        private E lastRetElt = null;
+        private int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return cursor < size ||
+                    (forgetMeNot != null && !forgetMeNot.isEmpty());
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            if (cursor < size)
+                return (E) queue[lastRet = cursor++];
+            if (forgetMeNot != null) {
+                lastRet = -1;
+                lastRetElt = forgetMeNot.poll();
+                if (lastRetElt != null)
+                    return lastRetElt;
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            if (lastRet != -1) {
+                E moved = DAryPriorityQueue.this.removeAt(lastRet);
+                lastRet = -1;
+                if (moved == null)
+                    cursor--;
+                else {
+                    if (forgetMeNot == null)
+                        forgetMeNot = new ArrayDeque<>();
+                    forgetMeNot.add(moved);
+                }
+            } else if (lastRetElt != null) {
+                DAryPriorityQueue.this.removeEq(lastRetElt);
+                lastRetElt = null;
+            } else {
+                throw new IllegalStateException();
+            }
+            expectedModCount = modCount;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all of the elements from this priority queue.
+     */
+    public void clear() {
+        modCount++;
+        for (int i = 0; i < size; i++)
+            queue[i] = null;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if (size == 0)
+            return null;
+        int s = --size;
+        modCount++;
+        E result = (E) queue[0];
+        E x = (E) queue[s];
+        queue[s] = null;
+        if (s != 0)
+            siftDown(0, x);
+        return result;
+    }
+
+    /**
+     * Inserts item x at position k, promoting x up the tree until it is
+     * greater than or equal to its parent, or is the root.
+     *
+     * @param k the position to fill
+     * @param x the item to insert
+     */
+    private void siftUp(int k, E x) {
+        if (comparator != null)
+            siftUpUsingComparator(k, x);
+        else
+            siftUpComparable(k, x);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void siftUpComparable(int k, E x) {
+        Comparable<? super E> key = (Comparable<? super E>) x;
+        final int shift = this.shift;
+        while (k > 0) {
+            // 父节点位置
+            int parent = (k - 1) >>> shift;
+            Object e = queue[parent];
+            if (key.compareTo((E) e) >= 0)
+                break;
+            queue[k] = e;
+            k = parent;
+        }
+        queue[k] = key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void siftUpUsingComparator(int k, E x) {
+        final int shift = this.shift;
+        while (k > 0) {
+            int parent = (k - 1) >>> shift;
+            Object e = queue[parent];
+            if (comparator.compare(x, (E) e) >= 0)
+                break;
+            queue[k] = e;
+            k = parent;
+        }
+        queue[k] = x;
+    }
+
+    /**
+     * Inserts item x at position k, demoting x down the tree repeatedly
+     * until it is less than or equal to its children or is a leaf.
+     *
+     * @param k the position to fill
+     * @param x the item to insert
+     */
+    private void siftDown(int k, E x) {
+        if (comparator != null)
+            siftDownUsingComparator(k, x);
+        else
+            siftDownComparable(k, x);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void siftDownComparable(int k, E x) {
+        Comparable<? super E> key = (Comparable<? super E>) x;
+        final int n = size, shift = this.shift;
+        final Object[] queue = this.queue;
+        // 最后一个非叶子节点，即最后一个元素的父节点，用它做边界可以避免 k << shift 溢出
+        final int lastParent = (n - 2) >>> shift;
+        while (n > 1 && k <= lastParent) {
+            int child = (k << shift) + 1;
+            int end = Math.min(child + (1 << shift), n);
+
+            // 在所有孩子中找出最小的那个
+            Object c = queue[child];
+            for (int i = child + 1; i < end; i++) {
+                if (((Comparable<? super E>) c).compareTo((E) queue[i]) > 0)
+                    c = queue[child = i];
+            }
+            if (key.compareTo((E) c) <= 0)
+                break;
+            queue[k] = c;
+            k = child;
+        }
+        queue[k] = key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void siftDownUsingComparator(int k, E x) {
+        final int n = size, shift = this.shift;
+        final Object[] queue = this.queue;
+        final int lastParent = (n - 2) >>> shift;
+        while (n > 1 && k <= lastParent) {
+            int child = (k << shift) + 1;
+            int end = Math.min(child + (1 << shift), n);
+            Object c = queue[child];
+            for (int i = child + 1; i < end; i++) {
+                if (comparator.compare((E) c, (E) queue[i]) > 0)
+                    c = queue[child = i];
+            }
+            if (comparator.compare(x, (E) c) <= 0)
+                break;
+            queue[k] = c;
+            k = child;
+        }
+        queue[k] = x;
+    }
+
+    /**
+     * Establishes the heap invariant in the entire tree, assuming nothing
+     * about the order of the elements prior to the call.
+     */
+    @SuppressWarnings("unchecked")
+    private void heapify() {
+        if (size < 2)
+            return;
+        for (int i = (size - 2) >>> shift; i >= 0; i--)
+            siftDown(i, (E) queue[i]);
+    }
+
+    /**
+     * Returns the comparator used to order the elements in this queue, or
+     * {@code null} if natural ordering is used.
+     *
+     * @return the comparator, or {@code null}
+     */
+    public Comparator<? super E> comparator() {
+        return comparator;
+    }
+
+    /**
+     * Saves this queue to a stream (that is, serializes it).
+     *
+     * @param s the stream
+     * @serialData The number of elements, followed by all of its elements
+     * (each an {@code Object}) in heap order.
+     */
+    private void writeObject(java.io.ObjectOutputStream s)
+            throws java.io.IOException {
+        s.defaultWriteObject();
+        for (int i = 0; i < size; i++)
+            s.writeObject(queue[i]);
+    }
+
+    /**
+     * Reconstitutes the queue from a stream (that is, deserializes it).
+     *
+     * @param s the stream
+     */
+    private void readObject(java.io.ObjectInputStream s)
+            throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        if (size < 0)
+            throw new java.io.StreamCorruptedException("Illegal size: " + size);
+        queue = new Object[Math.max(1, size)];
+        for (int i = 0; i < size; i++)
+            queue[i] = s.readObject();
+        heapify();
+    }
+
+    /**
+     * Creates a late-binding and fail-fast {@link Spliterator} over the
+     * elements in this queue.
+     *
+     * @return a {@code Spliterator} over the elements in this queue
+     */
+    public final Spliterator<E> spliterator() {
+        return new DAryPriorityQueueSpliterator<E>(this, 0, -1, 0);
+    }
+
+    /**
+     * 与 PriorityQueue.PriorityQueueSpliterator 相同
+     */
+    static final class DAryPriorityQueueSpliterator<E> implements Spliterator<E> {
+        private final DAryPriorityQueue<E> pq;
+        private int index;            // current index, modified on advance/split
+        private int fence;            // -1 until first use
+        private int expectedModCount; // initialized when fence set
+
+        DAryPriorityQueueSpliterator(DAryPriorityQueue<E> pq, int origin, int fence,
+                                     int expectedModCount) {
+            this.pq = pq;
+            this.index = origin;
+            this.fence = fence;
+            this.expectedModCount = expectedModCount;
+        }
+
+        private int getFence() { // initialize fence to size on first use
+            int hi;
+            if ((hi = fence) < 0) {
+                expectedModCount = pq.modCount;
+                hi = fence = pq.size;
+            }
+            return hi;
+        }
+
+        public DAryPriorityQueueSpliterator<E> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new DAryPriorityQueueSpliterator<E>(pq, lo, index = mid,
+                            expectedModCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(Consumer<? super E> action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence(), i = index;
+            Object[] a = pq.queue;
+            index = hi;
+            for (; i < hi; i++) {
+                E e = (E) a[i];
+                if (e == null) // must be CME
+                    throw new ConcurrentModificationException();
+                action.accept(e);
+            }
+            if (pq.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+
+        public boolean tryAdvance(Consumer<? super E> action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence(), lo = index;
+            if (lo >= 0 && lo < hi) {
+                index = lo + 1;
+                @SuppressWarnings("unchecked") E e = (E) pq.queue[lo];
+                if (e == null)
+                    throw new ConcurrentModificationException();
+                action.accept(e);
+                if (pq.modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                return true;
+            }
+            return false;
+        }
+
+        public long estimateSize() {
+            return (long) (getFence() - index);
+        }
+
+        public int characteristics() {
+            return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL;
+        }
+    }
+}
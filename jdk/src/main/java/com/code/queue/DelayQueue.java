@@ -43,6 +43,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * An unbounded {@linkplain BlockingQueue blocking queue} of
@@ -91,8 +92,8 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
     // 保证线程安全的锁
     private final transient ReentrantLock lock = new ReentrantLock();
 
-    // 优先队列
-    private final com.code.queue.PriorityQueue<E> q = new PriorityQueue<E>();
+    // 优先队列，默认为 PriorityQueue，也可以是基于 RadixHeap 的 RadixStore
+    private final Queue<E> q;
 
     /**
      * Thread designated to wait for the element at the head of
@@ -143,10 +144,64 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
     // 是否可取的条件变量
     private final Condition available = lock.newCondition();
 
+    /**
+     * Recorder of the metrics, or null while metrics are disabled.  Set
+     * once under the lock, but read racily before the lock is acquired
+     * (for contention) and by {@code metrics()}, so a thread may miss a
+     * recorder enabled concurrently and skip a few events.  QueueStats
+     * holds its state in final fields, so a racily read instance is
+     * always fully constructed.
+     * <p>
+     * 指标记录器，未启用指标时为 null，见 enableMetrics()。在锁内只赋值一次，但在获取锁之前（统计竞争）和 metrics() 中
+     * 不加锁读取，并发启用时线程可能暂时读到 null 而漏记少量事件；QueueStats 的状态都在 final 字段中，不加锁读到的实例总是完整构造的
+     */
+    transient QueueStats stats;
+
     /**
      * Creates a new {@code DelayQueue} that is initially empty.
      */
     public DelayQueue() {
+        this.q = new PriorityQueue<E>();
+    }
+
+    /**
+     * Creates a {@code DelayQueue} backed by the given store, which must
+     * order its elements by expiration time.
+     */
+    private DelayQueue(Queue<E> q) {
+        this.q = q;
+    }
+
+    /**
+     * Creates a new, empty {@code DelayQueue} whose elements are kept in a
+     * monotone {@link RadixHeap} keyed by absolute deadline instead of a
+     * binary heap ordered by {@code compareTo}.
+     * <p>
+     * 创建一个使用单调基数堆（RadixHeap）作为存储的 DelayQueue，按绝对截止时间排序，而不是按 compareTo 排序。
+     *
+     * <p>Deadlines of delayed elements are nearly monotone: a new deadline is
+     * {@code now + delay}, and {@code now} is never earlier than the deadline
+     * of any element already taken.  That makes {@code offer} O(1) and
+     * {@code take} amortized O(log C) without any {@code compareTo} call.
+     * <p>
+     * 延迟元素的截止时间几乎是单调的：新截止时间为 now + delay，而 now 不会早于已取出元素的截止时间。
+     * 因此 offer 为 O(1)，take 均摊 O(log C)，并且不再调用 compareTo。
+     *
+     * <p>The deadline is computed once, from
+     * {@code getDelay(TimeUnit.NANOSECONDS)}, when an element is inserted, so
+     * elements whose delay changes while queued are not reordered.  Elements
+     * that are already expired on insertion are treated as expiring at the
+     * most recently taken deadline.  {@code remove(Object)} runs in linear
+     * time.
+     * <p>
+     * 截止时间在插入时根据 getDelay 计算一次，元素入队后延迟发生变化不会重新排序；
+     * 插入时已经过期的元素按最近一次取出的截止时间处理。remove(Object) 为线性时间。
+     *
+     * @param <E> the type of elements held in the queue
+     * @return a new, empty delay queue
+     */
+    public static <E extends Delayed> DelayQueue<E> withRadixHeap() {
+        return new DelayQueue<E>(new RadixStore<E>());
     }
 
     /**
@@ -158,6 +213,7 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
      *                              of its elements are null
      */
     public DelayQueue(Collection<? extends E> c) {
+        this();
         this.addAll(c);
     }
 
@@ -186,11 +242,16 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
     public boolean offer(E e) {
         // 获取锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lock();
 
         try {
             // 将元素加入到优先队列中
             q.offer(e);
+            if (stats != null)
+                stats.enqueued(q.size());
 
             // 如果添加的元素是堆顶元素
             if (q.peek() == e) {
@@ -248,6 +309,9 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
     public E poll() {
         // 获取锁
         final ReentrantLock lock = this.lock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lock();
 
         try {
@@ -260,7 +324,7 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
 
                 // 到期则取出堆顶元素
             else
-                return q.poll();
+                return dequeueHead(0L);
 
             // 释放锁
         } finally {
@@ -280,9 +344,14 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
     public E take() throws InterruptedException {
         // 获取锁
         final ReentrantLock lock = this.lock;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lockInterruptibly();
 
         try {
+            // 第一次等待的开始时间，只在启用指标时记录
+            long waitStart = 0L;
+
             // 自旋
             for (; ; ) {
 
@@ -290,8 +359,10 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
                 E first = q.peek();
 
                 // 为空则进入等待，阻塞式获取元素
-                if (first == null)
+                if (first == null) {
+                    waitStart = markWait(waitStart);
                     available.await();
+                }
 
                     // 堆顶不为空
                 else {
@@ -300,12 +371,13 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
                     long delay = first.getDelay(NANOSECONDS);
                     // 判断是否到期，到期直接弹出即可
                     if (delay <= 0)
-                        return q.poll();
+                        return dequeueHead(waitStart);
 
                     /* 执行到这里，说明堆顶元素还没有到期，不能弹出*/
 
                     // 要进入等待了，需要设置为 null
                     first = null; // don't retain ref while waiting
+                    waitStart = markWait(waitStart);
 
                     // 检验前面是否已有等待获取元素的线程，有的话就直接进入等待（快速进入等待）
                     if (leader != null)
@@ -355,9 +427,14 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
 
         // 获取锁
         final ReentrantLock lock = this.lock;
+        if (stats != null)
+            stats.beforeLock(lock);
         lock.lockInterruptibly();
 
         try {
+            // 第一次等待的开始时间，只在启用指标时记录
+            long waitStart = 0L;
+
             // 自旋
             for (; ; ) {
                 // 获取堆顶元素
@@ -366,10 +443,13 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
                 // 队列为空，则进入超时等待
                 if (first == null) {
                     // 等待时间到了，还是为空，则返回 null
-                    if (nanos <= 0)
+                    if (nanos <= 0) {
+                        takeWaited(waitStart);
                         return null;
-                    else
+                    } else {
+                        waitStart = markWait(waitStart);
                         nanos = available.awaitNanos(nanos);
+                    }
 
                     // 队列非空
                 } else {
@@ -378,15 +458,18 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
 
                     // 判断是否到期，到期直接弹出即可
                     if (delay <= 0)
-                        return q.poll();
+                        return dequeueHead(waitStart);
 
 
                     /* 执行到这里，说明堆顶元素还没有到期，还不能弹出*/
 
                     // 判断超时时间到了没
-                    if (nanos <= 0)
+                    if (nanos <= 0) {
+                        takeWaited(waitStart);
                         return null;
+                    }
                     first = null; // don't retain ref while waiting
+                    waitStart = markWait(waitStart);
 
                     // 当前超时小于到期剩余时间，或者前面已经有等待的线程了
                     if (nanos < delay || leader != null)
@@ -414,6 +497,117 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Retrieves and removes up to {@code maxElements} expired elements,
+     * waiting if necessary until at least one element has expired.  All
+     * elements are removed in deadline order within a single hold of the
+     * lock, so a consumer pays for the lock, the leader hand-off and the
+     * signal once per batch instead of once per element.
+     * <p>
+     * 批量取出最多 maxElements 个已到期的元素，如有必要则阻塞等待直到至少有一个元素到期。
+     * 所有元素在一次持有锁期间按到期顺序取出，加锁、leader 交接和唤醒的开销按批次而不是按元素计算。
+     *
+     * @param maxElements the maximum number of elements to return 一次最多返回的元素个数
+     * @return a non-empty list of expired elements, earliest first
+     * @throws IllegalArgumentException if {@code maxElements} is less than 1
+     * @throws InterruptedException     if interrupted while waiting
+     */
+    public List<E> takeExpired(int maxElements) throws InterruptedException {
+        if (maxElements <= 0)
+            throw new IllegalArgumentException("maxElements must be positive: " + maxElements);
+        List<E> batch = new ArrayList<E>(Math.min(maxElements, 16));
+        pollExpired(batch, maxElements, Long.MAX_VALUE, NANOSECONDS);
+        return batch;
+    }
+
+    /**
+     * Removes up to {@code maxElements} expired elements and adds them to
+     * the given collection, waiting up to the specified wait time if
+     * necessary for at least one element to expire.  Once one element has
+     * expired, every further element that has expired by then is
+     * transferred in the same hold of the lock.
+     * <p>
+     * 批量转移最多 maxElements 个已到期的元素到集合 c 中，必要时最多等待指定的时间直到有元素到期。
+     * 一旦有元素到期，同一次持有锁期间把此时所有已到期的元素一并转移。
+     *
+     * @param c           the collection to transfer elements into 接收元素的集合
+     * @param maxElements the maximum number of elements to transfer 最多转移的元素个数
+     * @param timeout     how long to wait before giving up, in units of {@code unit}
+     * @param unit        a {@code TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return the number of elements transferred, {@code 0} if the waiting
+     * time elapsed before any element expired
+     * @throws NullPointerException     if the specified collection is null
+     * @throws IllegalArgumentException if the specified collection is this queue
+     * @throws InterruptedException     if interrupted while waiting
+     */
+    public int pollExpired(Collection<? super E> c, int maxElements, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        if (stats != null)
+            stats.beforeLock(lock);
+        lock.lockInterruptibly();
+        try {
+            long waitStart = 0L;
+            for (; ; ) {
+                E first = q.peek();
+                if (first == null) {
+                    if (nanos <= 0) {
+                        takeWaited(waitStart);
+                        return 0;
+                    } else {
+                        waitStart = markWait(waitStart);
+                        nanos = available.awaitNanos(nanos);
+                    }
+                } else {
+                    long delay = first.getDelay(NANOSECONDS);
+
+                    // 堆顶已到期，一次性取出所有到期元素
+                    if (delay <= 0) {
+                        takeWaited(waitStart);
+                        int n = 0;
+                        for (E e; n < maxElements && (e = peekExpired()) != null; ) {
+                            c.add(e);       // In this order, in case add() throws.
+                            dequeueHead(0L);
+                            ++n;
+                        }
+                        return n;
+                    }
+
+                    if (nanos <= 0) {
+                        takeWaited(waitStart);
+                        return 0;
+                    }
+                    first = null; // don't retain ref while waiting
+                    waitStart = markWait(waitStart);
+                    if (nanos < delay || leader != null)
+                        nanos = available.awaitNanos(nanos);
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            long timeLeft = available.awaitNanos(delay);
+                            nanos -= delay - timeLeft;
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && q.peek() != null)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
     /**
      * Retrieves, but does not remove, the head of this queue, or
      * returns {@code null} if this queue is empty.  Unlike
@@ -460,6 +654,69 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
                 null : first;
     }
 
+    /**
+     * Removes the head, recording it and the preceding wait if metrics
+     * are enabled.  Call only when holding lock.
+     * <p>
+     * 弹出堆顶元素，启用指标时记录出队和之前的等待时长
+     */
+    private E dequeueHead(long waitStart) {
+        // assert lock.isHeldByCurrentThread();
+        E x = q.poll();
+        if (stats != null) {
+            stats.dequeued();
+            takeWaited(waitStart);
+        }
+        return x;
+    }
+
+    /**
+     * 启用指标时返回第一次等待的开始时间，已经在等待则保持不变
+     */
+    private long markWait(long waitStart) {
+        return (waitStart == 0L && stats != null) ? System.nanoTime() : waitStart;
+    }
+
+    /**
+     * 记录从 waitStart 开始的等待时长，没有等待过则忽略
+     */
+    private void takeWaited(long waitStart) {
+        if (waitStart != 0L)
+            stats.takeWaited(System.nanoTime() - waitStart);
+    }
+
+    /**
+     * Starts recording {@linkplain QueueMetrics metrics} for this queue.
+     * Insertions never block, so only take-side waits are recorded.
+     * Until this method is called the queue records nothing, and each
+     * operation pays only a {@code null} check.
+     * <p>
+     * 开始记录本队列的指标。插入从不阻塞，因此只记录取出时的等待。调用之前每个操作只多一次 null 判断。
+     *
+     * @return the metrics of this queue 本队列的指标
+     */
+    public QueueMetrics enableMetrics() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (stats == null)
+                stats = new QueueStats();
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the metrics of this queue.
+     *
+     * @return the metrics, or {@code null} if {@link #enableMetrics()} has
+     * not been called
+     */
+    public QueueMetrics metrics() {
+        return stats;
+    }
+
     /**
      * @throws UnsupportedOperationException {@inheritDoc}
      * @throws ClassCastException            {@inheritDoc}
@@ -477,7 +734,7 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
             int n = 0;
             for (E e; (e = peekExpired()) != null; ) {
                 c.add(e);       // In this order, in case add() throws.
-                q.poll();
+                dequeueHead(0L);
                 ++n;
             }
             return n;
@@ -505,7 +762,7 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
             int n = 0;
             for (E e; n < maxElements && (e = peekExpired()) != null; ) {
                 c.add(e);       // In this order, in case add() throws.
-                q.poll();
+                dequeueHead(0L);
                 ++n;
             }
             return n;
@@ -514,6 +771,32 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Removes all expired elements from this queue and applies the given
+     * action to each of them, using at most {@code parallelism} threads
+     * of the {@linkplain java.util.concurrent.ForkJoinPool#commonPool()
+     * common pool}, including the calling thread.  The elements are
+     * drained with a single {@link #drainTo(Collection)}, so the lock is
+     * taken once, and are then processed in chunks claimed by fork-join
+     * tasks.  The order in which the action sees the elements is not
+     * specified.  If the action throws an exception the remaining chunks
+     * are skipped, their elements are lost, and the exception is
+     * rethrown.
+     * <p>
+     * 取出全部已到期的元素，使用公共池中最多 parallelism 个线程（包括调用线程）并行执行 action。元素通过一次 drainTo 取出，
+     * 只获取一次锁，之后由 fork-join 任务分块领取处理，action 看到元素的顺序不确定。action 抛出异常时跳过剩余的分块，
+     * 其中的元素丢失，异常被重新抛出。
+     *
+     * @param action      the action to apply to each element
+     * @param parallelism the maximum number of threads processing elements 最多同时处理元素的线程数
+     * @return the number of elements drained
+     * @throws NullPointerException     if {@code action} is null
+     * @throws IllegalArgumentException if {@code parallelism} is less than 1
+     */
+    public int drainParallel(Consumer<? super E> action, int parallelism) {
+        return ParallelDrain.drain(this, action, parallelism);
+    }
+
     /**
      * Atomically removes all of the elements from this delay queue.
      * The queue will be empty after this call returns.
@@ -694,4 +977,53 @@ public class DelayQueue<E extends Delayed> extends AbstractQueue<E>
         }
     }
 
+
+    /**
+     * {@code Queue} view over a {@link RadixHeap} keyed by the absolute
+     * deadline in {@link System#nanoTime()} units, used as an alternative
+     * backing store.  Guarded by the lock of the enclosing queue.
+     * <p>
+     * 基于 RadixHeap 的存储，键为 System.nanoTime() 时间基准下的绝对截止时间。由外部 DelayQueue 的锁保护。
+     */
+    static final class RadixStore<E extends Delayed> extends AbstractQueue<E> {
+
+        private final RadixHeap<E> heap = new RadixHeap<E>();
+
+        public boolean offer(E e) {
+            long delay = e.getDelay(NANOSECONDS);
+            long now = System.nanoTime();
+            // 防止溢出。nanoTime 可能为负数，不能用 Long.MAX_VALUE - now 判断
+            long deadline = now + delay;
+            if (delay > 0 && deadline < now)
+                deadline = Long.MAX_VALUE;
+            // 已经过期的元素，截止时间不早于最近一次取出的截止时间，保证键的单调性
+            heap.offer(Math.max(deadline, heap.lastKey()), e);
+            return true;
+        }
+
+        public E peek() {
+            return heap.peek();
+        }
+
+        public E poll() {
+            return heap.poll();
+        }
+
+        public int size() {
+            return heap.size();
+        }
+
+        public void clear() {
+            heap.clear();
+        }
+
+        public boolean remove(Object o) {
+            return heap.remove(o);
+        }
+
+        public Iterator<E> iterator() {
+            return heap.iterator();
+        }
+    }
+
 }
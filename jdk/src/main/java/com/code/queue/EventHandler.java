@@ -0,0 +1,28 @@
+package com.code.queue;
+
+/**
+ * Callback interface invoked by a {@link BatchEventProcessor} for every
+ * event published to a {@link RingBuffer}.
+ * <p>
+ * 事件处理回调，由 BatchEventProcessor 对每个发布的事件调用。
+ *
+ * @param <E> the event type
+ */
+@FunctionalInterface
+public interface EventHandler<E> {
+
+    /**
+     * Called when a publisher has published an event.  The
+     * {@code endOfBatch} flag tells the handler that no more events are
+     * available right now, which is the natural point to flush buffered
+     * work such as batched I/O.
+     * <p>
+     * 处理事件。endOfBatch 为 true 表示当前批次的最后一个事件，适合在此时统一刷盘/提交等批量操作。
+     *
+     * @param event      the published event, to be treated as read-only 事件
+     * @param sequence   the sequence of the event 事件序号
+     * @param endOfBatch whether this is the last event of the batch 是否是批次中的最后一个
+     * @throws Exception if the handler fails 处理失败
+     */
+    void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+}
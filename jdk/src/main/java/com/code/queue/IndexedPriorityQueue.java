@@ -0,0 +1,449 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An unbounded priority queue whose elements record their own position in
+ * the backing heap, which turns {@link #remove(Object)}, {@link #contains}
+ * and priority changes from linear scans into O(log n) (or O(1))
+ * operations.
+ * <p>
+ * 索引堆：元素自己记录在堆数组中的下标，remove/contains/修改优先级不再需要线性查找，
+ * 时间复杂度分别为 O(log n)、O(1)、O(log n)。
+ *
+ * <p>This is the same technique {@code ScheduledThreadPoolExecutor}'s
+ * {@code DelayedWorkQueue} uses with {@code ScheduledFutureTask.heapIndex}
+ * so that cancelled tasks can be removed cheaply.  Elements implement
+ * {@link Indexed}; the queue keeps the index up to date on every move and
+ * resets it to {@code -1} when the element leaves the queue.  As a
+ * consequence an element may belong to at most one
+ * {@code IndexedPriorityQueue} at a time, and membership is by identity,
+ * not {@code equals}.
+ * <p>
+ * 与 ScheduledThreadPoolExecutor 中 DelayedWorkQueue 利用 ScheduledFutureTask.heapIndex 快速删除已取消任务的做法一致。
+ * 元素需要实现 Indexed 接口，队列在元素每次移动时更新下标，出队后重置为 -1。
+ * 因此一个元素同一时刻最多属于一个索引堆，并且判断是否属于队列按引用相等而不是 equals。
+ *
+ * <p>When the ordering key of an element changes, call {@link #update}
+ * (or {@link #decreaseKey} when the element can only move towards the
+ * head) instead of removing and re-adding it.
+ * <p>
+ * 元素的排序键变化后，调用 update（只会变小时可以调用 decreaseKey）重新调整位置，而不是删除后再添加。
+ *
+ * <p>This class is not thread-safe and does not permit {@code null}
+ * elements.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class IndexedPriorityQueue<E extends IndexedPriorityQueue.Indexed> extends AbstractQueue<E> {
+
+    /**
+     * 默认容量
+     */
+    private static final int DEFAULT_INITIAL_CAPACITY = 11;
+
+    /**
+     * The maximum size of array to allocate.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * 存储元素的堆数组
+     */
+    private Object[] queue;
+
+    /**
+     * 元素个数
+     */
+    private int size = 0;
+
+    /**
+     * 比较器，为 null 时使用元素的自然顺序
+     */
+    private final Comparator<? super E> comparator;
+
+    /**
+     * 写次数
+     */
+    private int modCount = 0;
+
+    /**
+     * Creates an empty queue ordered by the elements' natural ordering.
+     */
+    public IndexedPriorityQueue() {
+        this(DEFAULT_INITIAL_CAPACITY, null);
+    }
+
+    /**
+     * Creates an empty queue ordered by the given comparator.
+     *
+     * @param comparator the comparator, or {@code null} for natural ordering
+     */
+    public IndexedPriorityQueue(Comparator<? super E> comparator) {
+        this(DEFAULT_INITIAL_CAPACITY, comparator);
+    }
+
+    /**
+     * Creates an empty queue with the given initial capacity, ordered by the
+     * given comparator.
+     *
+     * @param initialCapacity the initial capacity 初始容量
+     * @param comparator      the comparator, or {@code null} for natural ordering
+     * @throws IllegalArgumentException if {@code initialCapacity} is less than 1
+     */
+    public IndexedPriorityQueue(int initialCapacity, Comparator<? super E> comparator) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException();
+        this.queue = new Object[initialCapacity];
+        this.comparator = comparator;
+    }
+
+    /**
+     * Inserts the specified element.
+     *
+     * @return {@code true}
+     * @throws NullPointerException     if the specified element is null
+     * @throws IllegalArgumentException if the element already belongs to a queue
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        if (e.getHeapIndex() >= 0)
+            throw new IllegalArgumentException("element already belongs to a queue");
+        modCount++;
+        int i = size;
+        if (i >= queue.length)
+            grow(i + 1);
+        size = i + 1;
+        siftUp(i, e);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        return (size == 0) ? null : (E) queue[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if (size == 0)
+            return null;
+        modCount++;
+        int s = --size;
+        E result = (E) queue[0];
+        E x = (E) queue[s];
+        queue[s] = null;
+        if (s != 0)
+            siftDown(0, x);
+        result.setHeapIndex(-1);
+        return result;
+    }
+
+    /**
+     * 通过元素记录的下标定位元素，O(1)
+     */
+    private int indexOf(Object o) {
+        if (o instanceof Indexed) {
+            int i = ((Indexed) o).getHeapIndex();
+            // 下标有效并且该位置确实是这个元素（元素可能属于另一个队列）
+            if (i >= 0 && i < size && queue[i] == o)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns {@code true} if the given element is currently in this queue.
+     * Runs in constant time.
+     * <p>
+     * O(1) 判断元素是否在队列中
+     *
+     * @param o the element to look for
+     * @return {@code true} if this queue contains the element
+     */
+    public boolean contains(Object o) {
+        return indexOf(o) != -1;
+    }
+
+    /**
+     * Removes the given element in O(log n).
+     * <p>
+     * O(log n) 删除指定元素
+     *
+     * @param o the element to remove
+     * @return {@code true} if the element was in this queue
+     */
+    public boolean remove(Object o) {
+        int i = indexOf(o);
+        if (i < 0)
+            return false;
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * Restores the heap invariant after the ordering key of {@code e}
+     * changed in either direction.
+     * <p>
+     * 元素的排序键变化（变大或变小）后，重新调整它在堆中的位置
+     *
+     * @param e the element whose key changed
+     * @return {@code true} if the element is in this queue
+     */
+    @SuppressWarnings("unchecked")
+    public boolean update(E e) {
+        int i = indexOf(e);
+        if (i < 0)
+            return false;
+        modCount++;
+        // 先尝试上浮，位置没变再尝试下沉
+        siftUp(i, e);
+        if (queue[i] == e)
+            siftDown(i, e);
+        return true;
+    }
+
+    /**
+     * Restores the heap invariant after the ordering key of {@code e}
+     * decreased, i.e. the element moved closer to the head.  Cheaper than
+     * {@link #update} because only the path to the root is inspected.
+     * <p>
+     * 排序键变小后调用，只需要上浮
+     *
+     * @param e the element whose key decreased
+     * @return {@code true} if the element is in this queue
+     */
+    public boolean decreaseKey(E e) {
+        int i = indexOf(e);
+        if (i < 0)
+            return false;
+        modCount++;
+        siftUp(i, e);
+        return true;
+    }
+
+    /**
+     * 移除下标 i 的元素，返回值含义同 PriorityQueue.removeAt
+     */
+    @SuppressWarnings("unchecked")
+    private E removeAt(int i) {
+        modCount++;
+        E removed = (E) queue[i];
+        int s = --size;
+        if (s == i)
+            queue[i] = null;
+        else {
+            E moved = (E) queue[s];
+            queue[s] = null;
+            siftDown(i, moved);
+            if (queue[i] == moved) {
+                siftUp(i, moved);
+                if (queue[i] != moved) {
+                    removed.setHeapIndex(-1);
+                    return moved;
+                }
+            }
+        }
+        removed.setHeapIndex(-1);
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all elements, resetting their heap indices.
+     */
+    public void clear() {
+        modCount++;
+        for (int i = 0; i < size; i++) {
+            ((Indexed) queue[i]).setHeapIndex(-1);
+            queue[i] = null;
+        }
+        size = 0;
+    }
+
+    public Object[] toArray() {
+        return Arrays.copyOf(queue, size);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        final int size = this.size;
+        if (a.length < size)
+            return (T[]) Arrays.copyOf(queue, size, a.getClass());
+        System.arraycopy(queue, 0, a, 0, size);
+        if (a.length > size)
+            a[size] = null;
+        return a;
+    }
+
+    /**
+     * Returns the comparator used to order the elements, or {@code null}.
+     *
+     * @return the comparator, or {@code null} for natural ordering
+     */
+    public Comparator<? super E> comparator() {
+        return comparator;
+    }
+
+    private void grow(int minCapacity) {
+        int oldCapacity = queue.length;
+        // Double size if small; else grow by 50%
+        int newCapacity = oldCapacity + ((oldCapacity < 64) ?
+                (oldCapacity + 2) :
+                (oldCapacity >> 1));
+        if (newCapacity - MAX_ARRAY_SIZE > 0)
+            newCapacity = hugeCapacity(minCapacity);
+        queue = Arrays.copyOf(queue, newCapacity);
+    }
+
+    private static int hugeCapacity(int minCapacity) {
+        if (minCapacity < 0) // overflow
+            throw new OutOfMemoryError();
+        return (minCapacity > MAX_ARRAY_SIZE) ?
+                Integer.MAX_VALUE :
+                MAX_ARRAY_SIZE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(E a, E b) {
+        return (comparator != null) ?
+                comparator.compare(a, b) :
+                ((Comparable<? super E>) a).compareTo(b);
+    }
+
+    /**
+     * 自下而上调整堆，每次移动都同步更新元素的下标
+     */
+    @SuppressWarnings("unchecked")
+    private void siftUp(int k, E key) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            E e = (E) queue[parent];
+            if (compare(key, e) >= 0)
+                break;
+            queue[k] = e;
+            e.setHeapIndex(k);
+            k = parent;
+        }
+        queue[k] = key;
+        key.setHeapIndex(k);
+    }
+
+    /**
+     * 自上而下调整堆，每次移动都同步更新元素的下标
+     */
+    @SuppressWarnings("unchecked")
+    private void siftDown(int k, E key) {
+        int half = size >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            E c = (E) queue[child];
+            int right = child + 1;
+            if (right < size && compare(c, (E) queue[right]) > 0)
+                c = (E) queue[child = right];
+            if (compare(key, c) <= 0)
+                break;
+            queue[k] = c;
+            c.setHeapIndex(k);
+            k = child;
+        }
+        queue[k] = key;
+        key.setHeapIndex(k);
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue, in no particular
+     * order.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    /**
+     * 与 PriorityQueue.Itr 相同
+     */
+    private final class Itr implements Iterator<E> {
+        private int cursor = 0;
+        private int lastRet = -1;
+        private ArrayDeque<E> forgetMeNot = null;
+        private E lastRetElt = null;
+        private int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return cursor < size ||
+                    (forgetMeNot != null && !forgetMeNot.isEmpty());
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            if (cursor < size)
+                return (E) queue[lastRet = cursor++];
+            if (forgetMeNot != null) {
+                lastRet = -1;
+                lastRetElt = forgetMeNot.poll();
+                if (lastRetElt != null)
+                    return lastRetElt;
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            if (lastRet != -1) {
+                E moved = IndexedPriorityQueue.this.removeAt(lastRet);
+                lastRet = -1;
+                if (moved == null)
+                    cursor--;
+                else {
+                    if (forgetMeNot == null)
+                        forgetMeNot = new ArrayDeque<>();
+                    forgetMeNot.add(moved);
+                }
+            } else if (lastRetElt != null) {
+                IndexedPriorityQueue.this.remove(lastRetElt);
+                lastRetElt = null;
+            } else {
+                throw new IllegalStateException();
+            }
+            expectedModCount = modCount;
+        }
+    }
+
+    /**
+     * Implemented by elements of an {@link IndexedPriorityQueue}.  The
+     * index must start as {@code -1} and must only be changed by the queue.
+     * <p>
+     * 索引堆中的元素需要实现的接口，下标初始值必须为 -1，且只能由队列修改。
+     */
+    public interface Indexed {
+
+        /**
+         * Returns the position of this element in the heap, or {@code -1}
+         * if it is not in a queue.
+         *
+         * @return the heap index 堆中的下标
+         */
+        int getHeapIndex();
+
+        /**
+         * Records the position of this element in the heap.
+         *
+         * @param index the heap index, or {@code -1} when removed
+         */
+        void setHeapIndex(int index);
+    }
+}
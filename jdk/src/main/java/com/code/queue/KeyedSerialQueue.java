@@ -0,0 +1,483 @@
+package com.code.queue;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * An optionally-bounded queue that keeps elements in FIFO order per key
+ * while letting any number of workers process different keys in
+ * parallel.  It replaces the pattern of one queue and one consumer per
+ * key, such as processing the events of every account in order.
+ * <p>
+ * 按 key 串行、跨 key 并行的可选有界队列：同一个 key 的元素按 FIFO 顺序处理，不同 key 的元素可以由任意多个工作线程并行处理。
+ * 用来代替每个 key 一个队列、一个消费者的做法，例如按顺序处理每个账户的事件。
+ *
+ * <p>Each key with pending elements has a lane.  A lane is <em>ready</em>
+ * when it has elements and no worker holds it.  {@link #take} hands the
+ * head element of the oldest ready lane to the caller, which then holds
+ * that lane: no other worker gets an element of the same key until the
+ * returned {@link Entry} is {@linkplain Entry#complete() completed}.  The
+ * lane then goes back to the tail of the ready lanes if it still has
+ * elements, so that busy keys take turns with the others, and is freed
+ * otherwise, so that memory stays proportional to the keys with pending
+ * or in-flight elements rather than to all keys ever seen.
+ * <p>
+ * 每个有待处理元素的 key 对应一个通道。通道有元素且没有被工作线程持有时处于就绪状态。take 把最早就绪的通道的队首元素交给调用者，
+ * 调用者随即持有该通道：在返回的 Entry 完成之前，其他工作线程拿不到同一个 key 的元素。完成后通道如果还有元素就回到就绪通道的末尾，
+ * 繁忙的 key 与其他 key 轮流处理；否则通道被释放，内存只与有待处理或处理中元素的 key 的数量成正比，而不是所有出现过的 key。
+ *
+ * <p>Workers usually just call {@link #runWorker}.  Keys must have
+ * consistent {@code equals} and {@code hashCode}; null keys and elements
+ * are not permitted.
+ * <p>
+ * 工作线程通常只需调用 runWorker。key 的 equals 与 hashCode 必须一致，不允许 null 的 key 和元素。
+ *
+ * @param <K> the type of keys
+ * @param <E> the type of elements held in this queue
+ */
+public class KeyedSerialQueue<K, E> {
+
+    /*
+      说明：
+
+      1. 所有状态由一把锁保护，每个操作只做常数次哈希表和链表操作；
+      2. 通道在三种状态之间转换：就绪（在 ready 中）、被持有（busy）、空闲。空闲的通道立即从 lanes 中移除；
+         被持有的通道即使没有元素也保留在 lanes 中，保证完成前新到的元素进入同一个通道而不会被其他工作线程取走；
+      3. 通道内的元素用单向链表保存，只有一个元素的 key 不需要额外的数组。
+     */
+
+    /**
+     * key 到通道的映射，只包含有元素或被持有的通道
+     */
+    private final HashMap<K, Lane<K, E>> lanes = new HashMap<K, Lane<K, E>>();
+
+    /**
+     * 就绪的通道，按就绪的先后排列
+     */
+    private final ArrayDeque<Lane<K, E>> ready = new ArrayDeque<Lane<K, E>>();
+
+    /**
+     * 容量
+     */
+    private final int capacity;
+
+    /**
+     * 元素个数，不含已被取出但未完成的
+     */
+    private int count;
+
+    /**
+     * Main lock guarding all access
+     */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Condition for waiting takes
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Condition for waiting puts
+     */
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Creates an unbounded queue.
+     */
+    public KeyedSerialQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a queue holding at most {@code capacity} pending elements
+     * over all keys.
+     *
+     * @param capacity the capacity of this queue 容量
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     */
+    public KeyedSerialQueue(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Appends the element to the lane of its key.  Call only when holding
+     * lock and there is room.
+     * <p>
+     * 入队，只在持有锁且未满时调用。通道不存在时创建，空闲的通道变为就绪
+     */
+    private void enqueue(K key, E e) {
+        Lane<K, E> lane = lanes.get(key);
+        if (lane == null)
+            lanes.put(key, lane = new Lane<K, E>(key));
+        lane.append(e);
+        count++;
+        if (!lane.busy && !lane.queued) {
+            lane.queued = true;
+            ready.offerLast(lane);
+            notEmpty.signal();
+        }
+    }
+
+    /**
+     * Takes the head element of the oldest ready lane and marks the lane
+     * held.  Call only when holding lock and a lane is ready.
+     * <p>
+     * 出队，只在持有锁且有就绪通道时调用
+     */
+    private Entry<K, E> dequeue() {
+        Lane<K, E> lane = ready.pollFirst();
+        lane.queued = false;
+        lane.busy = true;
+        E x = lane.removeFirst();
+        count--;
+        notFull.signal();
+        return new Entry<K, E>(this, lane, x);
+    }
+
+    /**
+     * Releases the lane held by the given entry.
+     * <p>
+     * 释放通道：还有元素就回到就绪通道的末尾，否则从 lanes 中移除
+     */
+    void complete(Entry<K, E> entry) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (entry.completed)
+                throw new IllegalStateException("entry already completed");
+            entry.completed = true;
+            Lane<K, E> lane = entry.lane;
+            lane.busy = false;
+            if (lane.head != null) {
+                lane.queued = true;
+                ready.offerLast(lane);
+                notEmpty.signal();
+            } else {
+                lanes.remove(lane.key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the element to the lane of the given key if there is room,
+     * returning {@code true} upon success and {@code false} if this queue
+     * is full.
+     *
+     * @param key the key whose order the element follows
+     * @param e   the element to add
+     * @return {@code true} if the element was added
+     * @throws NullPointerException if the key or the element is null
+     */
+    public boolean offer(K key, E e) {
+        if (key == null || e == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (count == capacity)
+                return false;
+            enqueue(key, e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the element to the lane of the given key, waiting if
+     * necessary for space to become available.
+     *
+     * @param key the key whose order the element follows
+     * @param e   the element to add
+     * @throws InterruptedException if interrupted while waiting
+     * @throws NullPointerException if the key or the element is null
+     */
+    public void put(K key, E e) throws InterruptedException {
+        if (key == null || e == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity)
+                notFull.await();
+            enqueue(key, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next element of a key no other worker holds, or returns
+     * {@code null} if there is none.  The caller must complete the
+     * returned entry when it has processed the element.
+     *
+     * @return the entry of the next element, or {@code null}
+     */
+    public Entry<K, E> poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return ready.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next element of a key no other worker holds, waiting if
+     * necessary until one is available.  The caller must complete the
+     * returned entry when it has processed the element.
+     *
+     * @return the entry of the next element
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Entry<K, E> take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (ready.isEmpty())
+                notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next element of a key no other worker holds, waiting up to
+     * the specified wait time if necessary for one to become available.
+     * The caller must complete the returned entry when it has processed
+     * the element.
+     *
+     * @param timeout how long to wait before giving up, in units of
+     *                {@code unit}
+     * @param unit    a {@code TimeUnit} determining how to interpret the
+     *                {@code timeout} parameter
+     * @return the entry of the next element, or {@code null} if the
+     * specified waiting time elapses first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Entry<K, E> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (ready.isEmpty()) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Processes elements until interrupted: takes an element, passes it
+     * with its key to the handler and completes it, even if the handler
+     * throws.  An exception thrown by the handler ends the loop and
+     * propagates to the caller.
+     * <p>
+     * 工作线程循环：取出元素交给 handler 处理，然后完成（handler 抛出异常时也会完成），直到被中断。
+     * handler 抛出的异常会结束循环并抛给调用者。
+     *
+     * @param handler the handler of the elements
+     * @throws InterruptedException if interrupted while waiting
+     * @throws NullPointerException if {@code handler} is null
+     */
+    public void runWorker(BiConsumer<? super K, ? super E> handler) throws InterruptedException {
+        if (handler == null)
+            throw new NullPointerException();
+        for (; ; ) {
+            Entry<K, E> entry = take();
+            try {
+                handler.accept(entry.key(), entry.element());
+            } finally {
+                entry.complete();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pending elements, not counting elements taken
+     * but not yet completed.
+     *
+     * @return the number of pending elements
+     */
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns {@code true} if no element is pending.
+     *
+     * @return {@code true} if no element is pending
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of additional elements this queue can accept
+     * without blocking.
+     *
+     * @return the remaining capacity
+     */
+    public int remainingCapacity() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of keys that have pending elements or are held
+     * by a worker, which is the number of lanes currently allocated.
+     *
+     * @return the number of live lanes 当前存在的通道数
+     */
+    public int laneCount() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return lanes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return "KeyedSerialQueue[size=" + count + ", lanes=" + lanes.size() + ", ready=" + ready.size() + "]";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An element taken from the queue together with its key.  The lane of
+     * the key stays held until {@link #complete} is called.
+     * <p>
+     * 取出的元素及其 key。调用 complete 之前，该 key 的通道一直被持有
+     *
+     * @param <K> the type of keys
+     * @param <E> the type of elements
+     */
+    public static final class Entry<K, E> {
+        private final KeyedSerialQueue<K, E> queue;
+        final Lane<K, E> lane;
+        private final E element;
+
+        /**
+         * 是否已完成，由 queue 的锁保护
+         */
+        boolean completed;
+
+        Entry(KeyedSerialQueue<K, E> queue, Lane<K, E> lane, E element) {
+            this.queue = queue;
+            this.lane = lane;
+            this.element = element;
+        }
+
+        /**
+         * Returns the key of the element.
+         *
+         * @return the key
+         */
+        public K key() {
+            return lane.key;
+        }
+
+        /**
+         * Returns the element.
+         *
+         * @return the element
+         */
+        public E element() {
+            return element;
+        }
+
+        /**
+         * Releases the key, so that its next element can be taken.
+         *
+         * @throws IllegalStateException if this entry is already completed
+         */
+        public void complete() {
+            queue.complete(this);
+        }
+
+        public String toString() {
+            return "Entry[" + lane.key + "=" + element + "]";
+        }
+    }
+
+    /**
+     * 一个 key 的通道，所有字段由 queue 的锁保护
+     */
+    static final class Lane<K, E> {
+        final K key;
+
+        /**
+         * 元素链表的头尾
+         */
+        Node<E> head, tail;
+
+        /**
+         * 是否在 ready 中
+         */
+        boolean queued;
+
+        /**
+         * 是否被工作线程持有
+         */
+        boolean busy;
+
+        Lane(K key) {
+            this.key = key;
+        }
+
+        void append(E e) {
+            Node<E> node = new Node<E>(e);
+            if (tail == null)
+                head = tail = node;
+            else
+                tail = tail.next = node;
+        }
+
+        E removeFirst() {
+            Node<E> h = head;
+            if ((head = h.next) == null)
+                tail = null;
+            return h.item;
+        }
+    }
+
+    static final class Node<E> {
+        final E item;
+        Node<E> next;
+
+        Node(E item) {
+            this.item = item;
+        }
+    }
+}
@@ -38,15 +38,18 @@ package com.code.queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.AbstractQueue;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 /**
  * An optionally-bounded {@linkplain BlockingQueue blocking queue} based on
@@ -67,6 +70,11 @@ import java.util.function.Consumer;
  * dynamically created upon each insertion unless this would bring the
  * queue above capacity.
  *
+ * <p>A queue created with a {@linkplain #LinkedBlockingQueue(long, ToIntFunction)
+ * weigher} is additionally bounded by the total weight of its elements,
+ * for example their approximate size in bytes, so that a few large
+ * elements block insertion as surely as many small ones.
+ *
  * <p>This class and its iterator implement all of the
  * <em>optional</em> methods of the {@link Collection} and {@link
  * Iterator} interfaces.
@@ -116,6 +124,24 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
      * be of the kind understood by the GC.  We use the trick of
      * linking a Node that has just been dequeued to itself.  Such a
      * self-link implicitly means to advance to head.next.
+     *
+     * With a weigher, the total weight is maintained as an atomic in
+     * the same way as count: puts add to it under putLock and takes
+     * subtract from it under takeLock.  Waiting puts may need different
+     * amounts of space, so a take cannot tell from the old weight
+     * whether it has enabled one.  Instead puts that wait on weight
+     * register in weightWaiters and then recheck, while takes release
+     * weight and then read weightWaiters, so at least one side sees the
+     * other.  Takes then wake all waiting puts, each rechecking its own
+     * weight.
+     */
+
+    /*
+      说明：
+      4. 指定了 weigher 的队列同时按元素总重量（如近似字节数）限制容量，总重量与 count 一样用原子变量维护，
+         入队在 putLock 下增加、出队在 takeLock 下减少。等待的入队线程需要的空间各不相同，出队线程无法判断是否满足了某个入队线程，
+         因此按重量等待的入队线程先登记到 weightWaiters 再复查，出队线程先释放重量再读取 weightWaiters，保证不会丢失唤醒，
+         唤醒时唤醒全部入队线程，各自复查自己的重量。
      */
 
     /*
@@ -146,6 +172,11 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
          */
         Node<E> next;
 
+        /**
+         * 元素的重量，未指定 weigher 时为 0
+         */
+        int weight;
+
         Node(E x) {
             item = x;
         }
@@ -165,6 +196,37 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
      */
     private final AtomicInteger count = new AtomicInteger();
 
+    /**
+     * Computes the weight of each element, or null if the queue is
+     * bounded by count only.  Not serialized, since weighers are usually
+     * lambdas: a deserialized queue is bounded by count only.
+     * <p>
+     * 元素重量的计算函数，为 null 表示只按元素个数限制容量。weigher 通常是 lambda，不参与序列化，
+     * 反序列化得到的队列只按元素个数限制容量
+     */
+    private final transient ToIntFunction<? super E> weigher;
+
+    /**
+     * The weight bound, or Long.MAX_VALUE if none
+     * <p>
+     * 队列中元素的最大总重量
+     */
+    private final long maxWeight;
+
+    /**
+     * Current total weight of elements
+     * <p>
+     * 队列中元素的总重量
+     */
+    private final AtomicLong weight = new AtomicLong();
+
+    /**
+     * Number of puts waiting for weight, guarded by putLock
+     * <p>
+     * 因重量不足而等待的入队线程数，只在持有 putLock 时修改
+     */
+    private transient volatile int weightWaiters;
+
     /**
      * Head of linked list.
      * Invariant: head.item == null
@@ -209,6 +271,19 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
      */
     private final Condition notFull = putLock.newCondition();
 
+    /**
+     * Recorder of the metrics, or null while metrics are disabled.  Set
+     * once under the lock, but read racily before the lock is acquired
+     * (for contention) and by {@code metrics()}, so a thread may miss a
+     * recorder enabled concurrently and skip a few events.  QueueStats
+     * holds its state in final fields, so a racily read instance is
+     * always fully constructed.
+     * <p>
+     * 指标记录器，未启用指标时为 null，见 enableMetrics()。在锁内只赋值一次，但在获取锁之前（统计竞争）和 metrics() 中
+     * 不加锁读取，并发启用时线程可能暂时读到 null 而漏记少量事件；QueueStats 的状态都在 final 字段中，不加锁读到的实例总是完整构造的
+     */
+    transient QueueStats stats;
+
 
     /**
      * Signals a waiting take. Called only from put/offer (which do not
@@ -243,8 +318,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
 
 
         try {
-            // 唤醒阻塞在非满条件队列中的某个线程
-            notFull.signal();
+            // 唤醒阻塞在非满条件队列中的某个线程，按重量限制时唤醒全部
+            wakePuts();
 
             // 释放入队锁
         } finally {
@@ -252,6 +327,20 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Wakes one waiting put, or all of them if this queue has a weigher.
+     * Called only while holding putLock.
+     * <p>
+     * 唤醒一个等待的入队线程，按重量限制时唤醒全部
+     */
+    private void wakePuts() {
+        // assert putLock.isHeldByCurrentThread();
+        if (weigher == null)
+            notFull.signal();
+        else
+            notFull.signalAll();
+    }
+
     /**
      * 入队底层操作
      * <p>
@@ -282,9 +371,81 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         head = first;                // 重新设置 head
         E x = first.item;            // 获取出队的值
         first.item = null;           // 置空元素
+        if (weigher != null)
+            weight.getAndAdd(-first.weight);   // 释放重量，需在读取 weightWaiters 之前
         return x;
     }
 
+    /**
+     * Creates the node for a new element, weighing it if this queue has
+     * a weigher.
+     * <p>
+     * 为新元素创建节点，指定了 weigher 时计算其重量
+     *
+     * @throws IllegalArgumentException if the weight is negative or
+     *                                  greater than the weight bound
+     */
+    private Node<E> newNode(E e) {
+        Node<E> node = new Node<E>(e);
+        if (weigher != null) {
+            int w = weigher.applyAsInt(e);
+            // 超过最大总重量的元素永远无法入队
+            if (w < 0 || w > maxWeight)
+                throw new IllegalArgumentException("weight " + w + " not in [0, " + maxWeight + "]");
+            node.weight = w;
+        }
+        return node;
+    }
+
+    /**
+     * Returns true if a node of the given weight cannot be inserted now.
+     * <p>
+     * 队列是否放不下给定重量的节点：个数已满或者重量不足
+     */
+    private boolean isFull(int w) {
+        return count.get() == capacity
+                || (weigher != null && weight.get() + w > maxWeight);
+    }
+
+    /**
+     * Waits on notFull, registering in weightWaiters while this queue
+     * has a weigher.  Called only while holding putLock.
+     * <p>
+     * 在非满条件上等待。按重量限制时先登记到 weightWaiters 再复查，避免复查之后释放的重量没有唤醒本线程
+     *
+     * @return the remaining nanos if timed
+     */
+    private long awaitNotFull(int w, boolean timed, long nanos)
+            throws InterruptedException {
+        // assert putLock.isHeldByCurrentThread();
+        if (weigher != null) {
+            ++weightWaiters;
+            try {
+                if (!isFull(w))
+                    return nanos;
+                return timed ? notFull.awaitNanos(nanos) : awaitUntimed(nanos);
+            } finally {
+                --weightWaiters;
+            }
+        }
+        return timed ? notFull.awaitNanos(nanos) : awaitUntimed(nanos);
+    }
+
+    private long awaitUntimed(long nanos) throws InterruptedException {
+        notFull.await();
+        return nanos;
+    }
+
+    /**
+     * Returns true if a take that found c elements may have enabled a
+     * waiting put.
+     * <p>
+     * 出队之前元素个数为 c 时，是否需要唤醒入队线程：之前是满的，或者有按重量等待的入队线程
+     */
+    private boolean mayHaveEnabledPut(int c) {
+        return c == capacity || weightWaiters > 0;
+    }
+
     /**
      * Locks to prevent both puts and takes.
      */
@@ -335,11 +496,57 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
 
         // 设置队列容量大小
         this.capacity = capacity;
+        this.weigher = null;
+        this.maxWeight = Long.MAX_VALUE;
 
         // 初始化链表
         last = head = new Node<E>(null);
     }
 
+    /**
+     * Creates a {@code LinkedBlockingQueue} bounded by the total weight
+     * of its elements, as computed by the given weigher, rather than by
+     * their number.
+     * <p>
+     * 创建按元素总重量（而不是元素个数）限制容量的队列，元素重量由 weigher 计算
+     *
+     * @param maxWeight the largest total weight of queued elements
+     * @param weigher   computes the weight of an element; it is called
+     *                  once per insertion, before any lock is acquired,
+     *                  and must not return a negative value.  It is not
+     *                  serialized, so a deserialized copy of this queue
+     *                  is bounded by count only
+     * @throws IllegalArgumentException if {@code maxWeight} is not greater
+     *                                  than zero
+     * @throws NullPointerException     if {@code weigher} is null
+     */
+    public LinkedBlockingQueue(long maxWeight, ToIntFunction<? super E> weigher) {
+        this(Integer.MAX_VALUE, maxWeight, weigher);
+    }
+
+    /**
+     * Creates a {@code LinkedBlockingQueue} bounded both by the number of
+     * its elements and by their total weight.
+     * <p>
+     * 创建同时按元素个数和元素总重量限制容量的队列
+     *
+     * @param capacity  the capacity of this queue
+     * @param maxWeight the largest total weight of queued elements
+     * @param weigher   computes the weight of an element; not serialized,
+     *                  as above
+     * @throws IllegalArgumentException if {@code capacity} or
+     *                                  {@code maxWeight} is not greater than zero
+     * @throws NullPointerException     if {@code weigher} is null
+     */
+    public LinkedBlockingQueue(int capacity, long maxWeight, ToIntFunction<? super E> weigher) {
+        if (capacity <= 0 || maxWeight <= 0) throw new IllegalArgumentException();
+        if (weigher == null) throw new NullPointerException();
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        last = head = new Node<E>(null);
+    }
+
     /**
      * Creates a {@code LinkedBlockingQueue} with a capacity of
      * {@link Integer#MAX_VALUE}, initially containing the elements of the
@@ -400,14 +607,42 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         return capacity - count.get();
     }
 
+    /**
+     * Returns the total weight of the elements in this queue, or zero if
+     * this queue has no weigher.
+     * <p>
+     * 返回队列中元素的总重量，未指定 weigher 时为 0
+     *
+     * @return the total weight of the elements in this queue
+     */
+    public long weight() {
+        return weight.get();
+    }
+
+    /**
+     * Returns the weight that this queue can accept without blocking, or
+     * {@link Long#MAX_VALUE} if it has no weigher.  As with
+     * {@link #remainingCapacity}, the value may be stale by the time it is
+     * used.
+     * <p>
+     * 返回不阻塞时还能放入的重量，未指定 weigher 时为 Long.MAX_VALUE
+     *
+     * @return the remaining weight
+     */
+    public long remainingWeight() {
+        return (weigher == null) ? Long.MAX_VALUE : maxWeight - weight.get();
+    }
+
     /**
      * Inserts the specified element at the tail of this queue, waiting if
      * necessary for space to become available.
      * <p>
      * 在此队列的尾部插入指定元素，如有必要，等待空间可用。
      *
-     * @throws InterruptedException {@inheritDoc}
-     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException     {@inheritDoc}
+     * @throws NullPointerException     {@inheritDoc}
+     * @throws IllegalArgumentException if the weight of the element is
+     *                                  negative or greater than the weight bound
      */
     public void put(E e) throws InterruptedException {
         // 要添加的元素不能为空
@@ -418,14 +653,17 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         // 初始值为 -1
         int c = -1;
 
-        // 创建一个节点存元素 e
-        Node<E> node = new Node<E>(e);
+        // 创建一个节点存元素 e，指定了 weigher 时同时计算重量
+        Node<E> node = newNode(e);
 
         // 获取入队锁
         final ReentrantLock putLock = this.putLock;
 
         // 获取队列中元素个数
         final AtomicInteger count = this.count;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(putLock);
         putLock.lockInterruptibly();
 
         try {
@@ -437,16 +675,25 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
              * signalled if it ever changes from capacity. Similarly
              * for all other uses of count in other wait guards.
              */
-            // 队列满了，则进入非满条件队列进行等待
-            while (count.get() == capacity) {
-                notFull.await();
+            // 启用指标且需要等待时，记录等待开始的时间
+            long waitStart = (stats != null && isFull(node.weight)) ? System.nanoTime() : 0L;
+
+            // 队列满了（或者重量不足），则进入非满条件队列进行等待
+            while (isFull(node.weight)) {
+                awaitNotFull(node.weight, false, 0L);
             }
+            if (waitStart != 0L)
+                stats.putWaited(System.nanoTime() - waitStart);
 
             // 入队，链表操作，尾插法
             enqueue(node);
+            if (weigher != null)
+                weight.getAndAdd(node.weight);
 
             // 获取并更新队列中元素个数
             c = count.getAndIncrement();
+            if (stats != null)
+                stats.enqueued(c + 1);
 
             // 如果 c+1 < 队列容量，说明队列还可以继续添加元素，则唤醒在非满条件队列中等待的线程
             // 这里 c+1 是因为前面已经加入了一个元素
@@ -473,8 +720,10 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
      *
      * @return {@code true} if successful, or {@code false} if
      * the specified waiting time elapses before space is available
-     * @throws InterruptedException {@inheritDoc}
-     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException     {@inheritDoc}
+     * @throws NullPointerException     {@inheritDoc}
+     * @throws IllegalArgumentException if the weight of the element is
+     *                                  negative or greater than the weight bound
      */
     public boolean offer(E e, long timeout, TimeUnit unit)
             throws InterruptedException {
@@ -486,27 +735,42 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         long nanos = unit.toNanos(timeout);
 
         int c = -1;
+        Node<E> node = newNode(e);
 
         // 获取入队锁
         final ReentrantLock putLock = this.putLock;
         final AtomicInteger count = this.count;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(putLock);
         putLock.lockInterruptibly();
 
         try {
-            // 如果队列满了，则等待指定的时间，尽最大努力添加元素
-            while (count.get() == capacity) {
+            long waitStart = (stats != null && isFull(node.weight) && nanos > 0) ? System.nanoTime() : 0L;
+
+            // 如果队列满了（或者重量不足），则等待指定的时间，尽最大努力添加元素
+            while (isFull(node.weight)) {
                 // 超时了还没有空的空间，那么就不添加了
-                if (nanos <= 0)
+                if (nanos <= 0) {
+                    if (waitStart != 0L)
+                        stats.putWaited(System.nanoTime() - waitStart);
                     return false;
-                nanos = notFull.awaitNanos(nanos);
+                }
+                nanos = awaitNotFull(node.weight, true, nanos);
             }
+            if (waitStart != 0L)
+                stats.putWaited(System.nanoTime() - waitStart);
 
             // 入队，可能条件如下：
             // 1）队列没有满  2）在指定的超时时间内有空的空间了，线程提前被唤醒
-            enqueue(new Node<E>(e));
+            enqueue(node);
+            if (weigher != null)
+                weight.getAndAdd(node.weight);
 
             // 获取并更新队列中元素个数
             c = count.getAndIncrement();
+            if (stats != null)
+                stats.enqueued(c + 1);
 
             // 如果 c+1 < 队列容量，说明队列还可以继续添加元素，则唤醒在非满条件队列中等待的线程
             // 这里 c+1 是因为前面已经加入了一个元素
@@ -538,7 +802,9 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
      * preferable to method {@link BlockingQueue#add add}, which can fail to
      * insert an element only by throwing an exception.
      *
-     * @throws NullPointerException if the specified element is null
+     * @throws NullPointerException     if the specified element is null
+     * @throws IllegalArgumentException if the weight of the element is
+     *                                  negative or greater than the weight bound
      */
     public boolean offer(E e) {
         // 要添加的元素不能为空
@@ -554,19 +820,26 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         int c = -1;
 
         // 创建一个节点存元素 e
-        Node<E> node = new Node<E>(e);
+        Node<E> node = newNode(e);
 
         // 获取入队锁
         final ReentrantLock putLock = this.putLock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(putLock);
         putLock.lock();
         try {
 
-            // 如果队列没有满，则入队元素，即链表尾插法
-            if (count.get() < capacity) {
+            // 如果队列没有满（重量也足够），则入队元素，即链表尾插法
+            if (!isFull(node.weight)) {
                 enqueue(node);
+                if (weigher != null)
+                    weight.getAndAdd(node.weight);
 
                 // 获取并更新队列中元素个数
                 c = count.getAndIncrement();
+                if (stats != null)
+                    stats.enqueued(c + 1);
 
                 // 如果 c+1 < 队列容量，说明队列还可以继续添加元素，则唤醒在非满条件队列中等待的线程
                 // 这里 c+1 是因为前面已经加入了一个元素
@@ -602,19 +875,28 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
 
         // 获取可中断出队锁
         final ReentrantLock takeLock = this.takeLock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(takeLock);
         takeLock.lockInterruptibly();
 
         try {
+            long waitStart = (stats != null && count.get() == 0) ? System.nanoTime() : 0L;
+
             // 如果队列为空，则进入 notEmpty 等待队列进行等待队列非空
             while (count.get() == 0) {
                 notEmpty.await();
             }
+            if (waitStart != 0L)
+                stats.takeWaited(System.nanoTime() - waitStart);
 
             // 出队，链表操作
             x = dequeue();
 
             // 获取并更新队列中元素的个数
             c = count.getAndDecrement();
+            if (stats != null)
+                stats.dequeued();
 
             // 说明队列中还有元素，唤醒在 notEmpty 等待队列进行等待的线程
             if (c > 1)
@@ -626,7 +908,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         }
 
         // c == capacity 说明队列在本次出队之前是满的，现在出队了一个元素，有空的空间了，可以唤醒 put/offer 操作阻塞的线程（如果有的话）
-        if (c == capacity)
+        // 按重量限制时，有等待重量的入队线程也需要唤醒
+        if (mayHaveEnabledPut(c))
             signalNotFull();
 
         return x;
@@ -652,17 +935,27 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
 
         // 获取可中断出队锁
         final ReentrantLock takeLock = this.takeLock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(takeLock);
         takeLock.lockInterruptibly();
 
         try {
+            long waitStart = (stats != null && count.get() == 0 && nanos > 0) ? System.nanoTime() : 0L;
+
             // 队列为空，则进入超时等待
             while (count.get() == 0) {
                 // 等待超时也没有元素
-                if (nanos <= 0)
+                if (nanos <= 0) {
+                    if (waitStart != 0L)
+                        stats.takeWaited(System.nanoTime() - waitStart);
                     return null;
+                }
                 // 超时等待
                 nanos = notEmpty.awaitNanos(nanos);
             }
+            if (waitStart != 0L)
+                stats.takeWaited(System.nanoTime() - waitStart);
 
             // 出队，可能情况如下：
             // 1）队列没有空  2）在指定的超时时间内队列又有元素了，线程提前被唤醒
@@ -670,6 +963,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
 
             // 获取并更新队列中元素的个数
             c = count.getAndDecrement();
+            if (stats != null)
+                stats.dequeued();
 
             // 说明队列中还有元素，唤醒在 notEmpty 等待队列进行等待的线程
             if (c > 1)
@@ -681,7 +976,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         }
 
         // c == capacity 说明队列在本次出队之前是满的，现在出队了一个元素，有空的空间了，可以唤醒 put/offer 操作阻塞的线程（如果有的话）
-        if (c == capacity)
+        // 按重量限制时，有等待重量的入队线程也需要唤醒
+        if (mayHaveEnabledPut(c))
             signalNotFull();
 
         return x;
@@ -705,6 +1001,9 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
 
         // 获取出队锁
         final ReentrantLock takeLock = this.takeLock;
+        final QueueStats stats = this.stats;
+        if (stats != null)
+            stats.beforeLock(takeLock);
         takeLock.lock();
 
         try {
@@ -716,6 +1015,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
 
                 // 获取并更新队列中元素的个数
                 c = count.getAndDecrement();
+                if (stats != null)
+                    stats.dequeued();
 
                 // 说明队列中还有元素，唤醒在 notEmpty 等待队列进行等待的线程
                 if (c > 1)
@@ -728,7 +1029,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         }
 
         // c == capacity 说明队列在本次出队之前是满的，现在出队了一个元素，有空的空间了，可以唤醒 put/offer 操作阻塞的线程（如果有的话）
-        if (c == capacity)
+        // 按重量限制时，有等待重量的入队线程也需要唤醒
+        if (mayHaveEnabledPut(c))
             signalNotFull();
 
         return x;
@@ -776,8 +1078,10 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         trail.next = p.next;
         if (last == p)
             last = trail;
-        if (count.getAndDecrement() == capacity)
-            notFull.signal();
+        if (weigher != null)
+            weight.getAndAdd(-p.weight);
+        if (mayHaveEnabledPut(count.getAndDecrement()))
+            wakePuts();
     }
 
     /**
@@ -822,8 +1126,9 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
             }
             head = last;
             // assert head.item == null && head.next == null;
-            if (count.getAndSet(0) == capacity)
-                notFull.signal();
+            weight.set(0);
+            if (mayHaveEnabledPut(count.getAndSet(0)))
+                wakePuts();
         } finally {
             fullyUnlock();
         }
@@ -987,6 +1292,7 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
             // count.get provides visibility to first n Nodes
             Node<E> h = head;
             int i = 0;
+            long released = 0L;
             try {
                 while (i < n) {
                     Node<E> p = h.next;
@@ -994,6 +1300,7 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                     p.item = null;
                     h.next = h;
                     h = p;
+                    released += p.weight;
                     ++i;
                 }
                 return n;
@@ -1002,7 +1309,11 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                 if (i > 0) {
                     // assert h.item == null;
                     head = h;
-                    signalNotFull = (count.getAndAdd(-i) == capacity);
+                    if (weigher != null)
+                        weight.getAndAdd(-released);
+                    signalNotFull = mayHaveEnabledPut(count.getAndAdd(-i));
+                    if (stats != null)
+                        stats.dequeued(i);
                 }
             }
         } finally {
@@ -1012,6 +1323,63 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Removes all available elements from this queue and applies the given
+     * action to each of them, using at most {@code parallelism} threads
+     * of the {@linkplain java.util.concurrent.ForkJoinPool#commonPool()
+     * common pool}, including the calling thread.  The elements are
+     * drained with a single {@link #drainTo(Collection)}, so the lock is
+     * taken once, and are then processed in chunks claimed by fork-join
+     * tasks.  The order in which the action sees the elements is not
+     * specified.  If the action throws an exception the remaining chunks
+     * are skipped, their elements are lost, and the exception is
+     * rethrown.
+     * <p>
+     * 取出全部元素，使用公共池中最多 parallelism 个线程（包括调用线程）并行执行 action。元素通过一次 drainTo 取出，
+     * 只获取一次锁，之后由 fork-join 任务分块领取处理，action 看到元素的顺序不确定。action 抛出异常时跳过剩余的分块，
+     * 其中的元素丢失，异常被重新抛出。
+     *
+     * @param action      the action to apply to each element
+     * @param parallelism the maximum number of threads processing elements 最多同时处理元素的线程数
+     * @return the number of elements drained
+     * @throws NullPointerException     if {@code action} is null
+     * @throws IllegalArgumentException if {@code parallelism} is less than 1
+     */
+    public int drainParallel(Consumer<? super E> action, int parallelism) {
+        return ParallelDrain.drain(this, action, parallelism);
+    }
+
+    /**
+     * Starts recording {@linkplain QueueMetrics metrics} for this queue.
+     * Until this method is called the queue records nothing, and each
+     * operation pays only a {@code null} check.  Calling it again returns
+     * the existing metrics.
+     * <p>
+     * 开始记录本队列的指标。调用之前队列不记录任何数据，每个操作只多一次 null 判断；重复调用返回同一个指标对象。
+     *
+     * @return the metrics of this queue 本队列的指标
+     */
+    public QueueMetrics enableMetrics() {
+        fullyLock();
+        try {
+            if (stats == null)
+                stats = new QueueStats();
+            return stats;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Returns the metrics of this queue.
+     *
+     * @return the metrics, or {@code null} if {@link #enableMetrics()} has
+     * not been called
+     */
+    public QueueMetrics metrics() {
+        return stats;
+    }
+
     /**
      * Returns an iterator over the elements in this queue in proper sequence.
      * The elements will be returned in order from first (head) to last (tail).
@@ -1106,10 +1474,25 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
     }
 
     /**
-     * A customized variant of Spliterators.IteratorSpliterator
+     * Returns the successor of p, or the first node if p has been
+     * dequeued (self-linked) in the meantime.  Call only when fully locked.
+     * <p>
+     * 返回 p 的后继；p 在两次加锁之间已出队（next 指向自身）时，从 head.next 重新开始
+     */
+    Node<E> succ(Node<E> p) {
+        return (p == (p = p.next)) ? head.next : p;
+    }
+
+    /**
+     * A customized variant of Spliterators.IteratorSpliterator.
+     * <p>
+     * 拆分时按剩余估计值对半切出前缀，但每次最多 MAX_BATCH 个元素，数组按实际复制的元素个数增长，
+     * 大段前缀分多次加锁复制，每次最多 LOCK_BATCH 个节点；
+     * 遍历时每次加锁取出最多 LOCK_BATCH 个元素，在锁外执行 action。
      */
     static final class LBQSpliterator<E> implements Spliterator<E> {
-        static final int MAX_BATCH = 1 << 25;  // max batch array size;
+        static final int MAX_BATCH = 1 << 12;  // max elements per split
+        static final int LOCK_BATCH = 1 << 6;  // max nodes visited per lock hold
         final LinkedBlockingQueue<E> queue;
         Node<E> current;    // current node; null until initialized
         int batch;          // batch size for splits
@@ -1128,25 +1511,33 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         public Spliterator<E> trySplit() {
             Node<E> h;
             final LinkedBlockingQueue<E> q = this.queue;
+            // 对半拆分，估计值过时（偏小）时退回按批次递增，每次最多 MAX_BATCH 个
             int b = batch;
-            int n = (b <= 0) ? 1 : (b >= MAX_BATCH) ? MAX_BATCH : b + 1;
+            long half = est >>> 1;
+            int n = (int) Math.min(MAX_BATCH, Math.max((b <= 0) ? 1 : b + 1, half));
             if (!exhausted &&
                     ((h = current) != null || (h = q.head.next) != null) &&
                     h.next != null) {
-                Object[] a = new Object[n];
+                // 估计值可能过时（偏大），数组随复制的元素增长，不按 n 预先分配
+                Object[] a = new Object[Math.min(n, LOCK_BATCH)];
                 int i = 0;
                 Node<E> p = current;
-                q.fullyLock();
-                try {
-                    if (p != null || (p = q.head.next) != null) {
-                        do {
+                do {
+                    q.fullyLock();
+                    try {
+                        if (p == null)
+                            p = q.head.next;
+                        for (int j = 0; p != null && i < n && j < LOCK_BATCH; j++) {
+                            if (i == a.length)
+                                a = Arrays.copyOf(a, Math.min(n, i << 1));
                             if ((a[i] = p.item) != null)
                                 ++i;
-                        } while ((p = p.next) != null && i < n);
+                            p = q.succ(p);
+                        }
+                    } finally {
+                        q.fullyUnlock();
                     }
-                } finally {
-                    q.fullyUnlock();
-                }
+                } while (p != null && i < n);
                 if ((current = p) == null) {
                     est = 0L;
                     exhausted = true;
@@ -1162,30 +1553,39 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
             return null;
         }
 
+        @SuppressWarnings("unchecked")
         public void forEachRemaining(Consumer<? super E> action) {
             if (action == null) throw new NullPointerException();
             final LinkedBlockingQueue<E> q = this.queue;
             if (!exhausted) {
                 exhausted = true;
                 Node<E> p = current;
+                current = null;
+                Object[] es = null;
                 do {
-                    E e = null;
+                    int n = 0;
                     q.fullyLock();
                     try {
                         if (p == null)
                             p = q.head.next;
-                        while (p != null) {
-                            e = p.item;
-                            p = p.next;
-                            if (e != null)
-                                break;
+                        for (; p != null && n < LOCK_BATCH; p = q.succ(p)) {
+                            Object e = p.item;
+                            if (e != null) {
+                                if (es == null)
+                                    es = new Object[LOCK_BATCH];
+                                es[n++] = e;
+                            }
                         }
                     } finally {
                         q.fullyUnlock();
                     }
-                    if (e != null)
+                    for (int i = 0; i < n; i++) {
+                        E e = (E) es[i];
+                        es[i] = null;
                         action.accept(e);
+                    }
                 } while (p != null);
+                est = 0L;
             }
         }
 
@@ -1196,20 +1596,24 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                 E e = null;
                 q.fullyLock();
                 try {
-                    if (current == null)
-                        current = q.head.next;
-                    while (current != null) {
-                        e = current.item;
-                        current = current.next;
+                    Node<E> p = current;
+                    if (p == null)
+                        p = q.head.next;
+                    while (p != null) {
+                        e = p.item;
+                        p = q.succ(p);
                         if (e != null)
                             break;
                     }
+                    current = p;
                 } finally {
                     q.fullyUnlock();
                 }
                 if (current == null)
                     exhausted = true;
                 if (e != null) {
+                    if (est > 0L)
+                        --est;
                     action.accept(e);
                     return true;
                 }
@@ -1248,7 +1652,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
      * @throws java.io.IOException if an I/O error occurs
      * @serialData The capacity is emitted (int), followed by all of
      * its elements (each an {@code Object}) in the proper order,
-     * followed by a null
+     * followed by a null.  The weigher is not written, so the weight
+     * bound does not survive serialization.
      */
     private void writeObject(java.io.ObjectOutputStream s)
             throws java.io.IOException {
@@ -1283,6 +1688,7 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         s.defaultReadObject();
 
         count.set(0);
+        weight.set(0);
         last = head = new Node<E>(null);
 
         // Read in all elements and place in queue
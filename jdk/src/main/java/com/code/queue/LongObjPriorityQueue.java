@@ -0,0 +1,243 @@
+package com.code.queue;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An unbounded min-heap ordered by a primitive {@code long} key that
+ * carries a payload with every key.  Keys live in a {@code long[]} and
+ * payloads in a parallel {@code Object[]}, so ordering never boxes the
+ * key, never allocates an entry object and never calls a
+ * {@code Comparator}.
+ * <p>
+ * 按 long 键排序、并携带负载的小顶堆。键保存在 long[] 中，负载保存在平行的 Object[] 中，
+ * 排序过程中不装箱、不创建 Entry 对象、也不调用比较器。
+ *
+ * <p>Payloads must not be {@code null}, which lets {@link #poll} use
+ * {@code null} to report an empty queue.  This class is not thread-safe.
+ * <p>
+ * 负载不能为 null，poll 使用 null 表示队列为空。非线程安全。
+ *
+ * @param <V> the type of the payloads
+ */
+public class LongObjPriorityQueue<V> {
+
+    /**
+     * 默认容量
+     */
+    private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum size of array to allocate.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * 键的堆数组
+     */
+    long[] keys;
+
+    /**
+     * 与 keys 一一对应的负载
+     */
+    Object[] values;
+
+    /**
+     * 元素个数
+     */
+    int size;
+
+    /**
+     * Creates an empty queue with the default initial capacity.
+     */
+    public LongObjPriorityQueue() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty queue with the given initial capacity.
+     *
+     * @param initialCapacity the initial capacity 初始容量
+     * @throws IllegalArgumentException if {@code initialCapacity} is less than 1
+     */
+    public LongObjPriorityQueue(int initialCapacity) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException();
+        this.keys = new long[initialCapacity];
+        this.values = new Object[initialCapacity];
+    }
+
+    /**
+     * Inserts a payload with the given key.
+     * <p>
+     * 按 key 插入负载
+     *
+     * @param key   the ordering key 排序键
+     * @param value the payload 负载
+     * @throws NullPointerException if {@code value} is null
+     */
+    public void offer(long key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        int i = size;
+        if (i >= keys.length)
+            grow(i + 1);
+        size = i + 1;
+        siftUp(i, key, value);
+    }
+
+    /**
+     * Returns the smallest key without removing it.
+     *
+     * @return the smallest key
+     * @throws NoSuchElementException if this queue is empty
+     */
+    public long peekKey() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return keys[0];
+    }
+
+    /**
+     * Returns the payload of the smallest key without removing it.
+     *
+     * @return the payload, or {@code null} if this queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public V peek() {
+        return (size == 0) ? null : (V) values[0];
+    }
+
+    /**
+     * Removes the smallest key and returns its payload.  Call
+     * {@link #peekKey} first if the key is needed as well.
+     * <p>
+     * 删除最小的键并返回其负载
+     *
+     * @return the payload, or {@code null} if this queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public V poll() {
+        if (size == 0)
+            return null;
+        long[] k = keys;
+        Object[] v = values;
+        V result = (V) v[0];
+        int s = --size;
+        long lastKey = k[s];
+        Object lastValue = v[s];
+        // 释放引用，避免内存泄漏
+        v[s] = null;
+        if (s != 0)
+            siftDown(0, lastKey, lastValue);
+        return result;
+    }
+
+    /**
+     * Removes and returns the payload of the smallest key if that key is
+     * not greater than {@code bound}.
+     * <p>
+     * 如果最小的键不大于 bound，则删除并返回其负载，否则返回 null
+     *
+     * @param bound the largest key that may be removed 允许删除的最大键
+     * @return the payload, or {@code null} if nothing qualifies
+     */
+    public V pollIfAtMost(long bound) {
+        if (size == 0 || keys[0] > bound)
+            return null;
+        return poll();
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries in this queue
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether this queue is empty.
+     *
+     * @return {@code true} if this queue contains no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries.  The backing arrays are kept.
+     */
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    private void grow(int minCapacity) {
+        int oldCapacity = keys.length;
+        // Double size if small; else grow by 50%
+        int newCapacity = oldCapacity + ((oldCapacity < 64) ?
+                (oldCapacity + 2) :
+                (oldCapacity >> 1));
+        if (newCapacity - MAX_ARRAY_SIZE > 0)
+            newCapacity = hugeCapacity(minCapacity);
+        keys = Arrays.copyOf(keys, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+    }
+
+    private static int hugeCapacity(int minCapacity) {
+        if (minCapacity < 0) // overflow
+            throw new OutOfMemoryError();
+        return (minCapacity > MAX_ARRAY_SIZE) ?
+                Integer.MAX_VALUE :
+                MAX_ARRAY_SIZE;
+    }
+
+    /**
+     * 自下而上调整堆，键和负载同步移动
+     */
+    private void siftUp(int k, long key, Object value) {
+        long[] ks = keys;
+        Object[] vs = values;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            long e = ks[parent];
+            if (key >= e)
+                break;
+            ks[k] = e;
+            vs[k] = vs[parent];
+            k = parent;
+        }
+        ks[k] = key;
+        vs[k] = value;
+    }
+
+    /**
+     * 自上而下调整堆，键和负载同步移动
+     */
+    private void siftDown(int k, long key, Object value) {
+        long[] ks = keys;
+        Object[] vs = values;
+        int n = size;
+        int half = n >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            long c = ks[child];
+            int right = child + 1;
+            if (right < n && c > ks[right])
+                c = ks[child = right];
+            if (key <= c)
+                break;
+            ks[k] = c;
+            vs[k] = vs[child];
+            k = child;
+        }
+        ks[k] = key;
+        vs[k] = value;
+    }
+
+    public String toString() {
+        return "LongObjPriorityQueue[size=" + size + "]";
+    }
+}
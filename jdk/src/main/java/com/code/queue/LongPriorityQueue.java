@@ -0,0 +1,220 @@
+package com.code.queue;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An unbounded min-heap of primitive {@code long} keys, for deadlines,
+ * sequence numbers and other values that would otherwise be boxed into a
+ * {@code PriorityQueue<Long>}.
+ * <p>
+ * 基于 long[] 的小顶堆，适用于截止时间、序号等场景，避免 PriorityQueue&lt;Long&gt; 的装箱开销。
+ *
+ * <p>Keys are stored directly in a {@code long[]} and compared with
+ * {@code <}, so {@link #offer} and {@link #poll} neither allocate (except
+ * when the array has to grow) nor go through a {@code Comparator}.
+ * <p>
+ * 键直接存放在 long[] 中，使用 &lt; 比较，除扩容外 offer/poll 不分配任何对象，也不调用比较器。
+ *
+ * <p>This class is not thread-safe.
+ */
+public class LongPriorityQueue {
+
+    /**
+     * 默认容量
+     */
+    private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum size of array to allocate.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * 存储键的堆数组：queue[n] 的两个孩子是 queue[2n+1] 和 queue[2n+2]
+     */
+    long[] queue;
+
+    /**
+     * 元素个数
+     */
+    int size;
+
+    /**
+     * Creates an empty queue with the default initial capacity.
+     */
+    public LongPriorityQueue() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty queue with the given initial capacity.
+     *
+     * @param initialCapacity the initial capacity 初始容量
+     * @throws IllegalArgumentException if {@code initialCapacity} is less than 1
+     */
+    public LongPriorityQueue(int initialCapacity) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException();
+        this.queue = new long[initialCapacity];
+    }
+
+    /**
+     * Inserts the given key.
+     * <p>
+     * 插入键
+     *
+     * @param key the key to insert
+     */
+    public void offer(long key) {
+        int i = size;
+        if (i >= queue.length)
+            grow(i + 1);
+        size = i + 1;
+        siftUp(i, key);
+    }
+
+    /**
+     * Returns the smallest key without removing it.
+     * <p>
+     * 返回最小的键但不删除
+     *
+     * @return the smallest key
+     * @throws NoSuchElementException if this queue is empty
+     */
+    public long peek() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return queue[0];
+    }
+
+    /**
+     * Removes and returns the smallest key.
+     * <p>
+     * 删除并返回最小的键
+     *
+     * @return the smallest key
+     * @throws NoSuchElementException if this queue is empty
+     */
+    public long poll() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        long[] q = queue;
+        long result = q[0];
+        int s = --size;
+        if (s != 0)
+            siftDown(0, q[s]);
+        return result;
+    }
+
+    /**
+     * Removes and returns the smallest key if it is not greater than
+     * {@code bound}, which is the common "poll everything that is due"
+     * pattern for deadlines.
+     * <p>
+     * 如果最小的键不大于 bound，则删除并返回它；否则返回 defaultValue。适用于"取出所有已到期的截止时间"。
+     *
+     * @param bound        the largest key that may be removed 允许删除的最大键
+     * @param defaultValue returned when nothing qualifies 没有满足条件的键时返回的值
+     * @return the removed key, or {@code defaultValue}
+     */
+    public long pollIfAtMost(long bound, long defaultValue) {
+        if (size == 0 || queue[0] > bound)
+            return defaultValue;
+        return poll();
+    }
+
+    /**
+     * Returns the number of keys.
+     *
+     * @return the number of keys in this queue
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether this queue is empty.
+     *
+     * @return {@code true} if this queue contains no keys
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all keys.  The backing array is kept.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the keys in heap order (not sorted).
+     *
+     * @return a new array containing every key in this queue
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(queue, size);
+    }
+
+    private void grow(int minCapacity) {
+        int oldCapacity = queue.length;
+        // Double size if small; else grow by 50%
+        int newCapacity = oldCapacity + ((oldCapacity < 64) ?
+                (oldCapacity + 2) :
+                (oldCapacity >> 1));
+        if (newCapacity - MAX_ARRAY_SIZE > 0)
+            newCapacity = hugeCapacity(minCapacity);
+        queue = Arrays.copyOf(queue, newCapacity);
+    }
+
+    private static int hugeCapacity(int minCapacity) {
+        if (minCapacity < 0) // overflow
+            throw new OutOfMemoryError();
+        return (minCapacity > MAX_ARRAY_SIZE) ?
+                Integer.MAX_VALUE :
+                MAX_ARRAY_SIZE;
+    }
+
+    /**
+     * 自下而上调整堆，把 key 放到位置 k 或其祖先处
+     */
+    private void siftUp(int k, long key) {
+        long[] q = queue;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            long e = q[parent];
+            if (key >= e)
+                break;
+            q[k] = e;
+            k = parent;
+        }
+        q[k] = key;
+    }
+
+    /**
+     * 自上而下调整堆，把 key 放到位置 k 或其子孙处
+     */
+    private void siftDown(int k, long key) {
+        long[] q = queue;
+        int n = size;
+        int half = n >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            long c = q[child];
+            int right = child + 1;
+            if (right < n && c > q[right])
+                c = q[child = right];
+            if (key <= c)
+                break;
+            q[k] = c;
+            k = child;
+        }
+        q[k] = key;
+    }
+
+    public String toString() {
+        return "LongPriorityQueue[size=" + size + "]";
+    }
+}
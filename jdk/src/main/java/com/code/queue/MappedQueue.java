@@ -0,0 +1,688 @@
+package com.code.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A persistent, append-only queue of binary records stored in
+ * memory-mapped segment files.  Records survive the death of the writing
+ * process without any broker: they live in the page cache as soon as
+ * they are appended, and on disk after the next {@link Appender#sync()}.
+ * <p>
+ * 持久化的只追加二进制记录队列，记录存放在内存映射的段文件中。不需要任何 broker，写入进程退出后记录依然存在：
+ * 追加后即进入页缓存，下一次 Appender.sync() 之后落盘。
+ *
+ * <p>There is a single {@link Appender}, and any number of
+ * {@linkplain Tailer tailers}.  Reading does not remove anything: every
+ * tailer keeps its own position, and a named tailer persists that
+ * position in a small mapped file next to the segments, so it resumes
+ * where it stopped after a restart.  A record is identified by its
+ * <em>index</em>, {@code (segment << 32) | offset}, which increases
+ * monotonically.
+ * <p>
+ * 只有一个写入者 Appender，可以有任意多个读取者 Tailer。读取不会删除记录：每个 Tailer 维护自己的位置，
+ * 具名 Tailer 把位置持久化到段文件旁边的一个小映射文件中，重启后从上次停下的地方继续读。
+ * 记录用索引 (segment << 32) | offset 标识，索引单调递增。
+ *
+ * <p>When a record does not fit in the current segment the appender
+ * writes a roll marker and continues in a new segment file.  Only the
+ * newest {@code retainedSegments} segments are kept.  Retention does not
+ * wait for tailers: a tailer that falls behind the retained range skips
+ * ahead to the oldest remaining record, and the records it had not read
+ * are lost to it.
+ * Tailers receive records as read-only slices of the mapping, without
+ * copying.  Mappings are cached only from the segment of the slowest
+ * open tailer (or the appender) on, so a tailer that is no longer used
+ * should be {@linkplain Tailer#close() closed}.
+ * <p>
+ * 当前段放不下记录时写入滚动标记并切换到新的段文件。只保留最新的 retainedSegments 个段，删除时不考虑 Tailer 的位置：
+ * 落后于保留范围的 Tailer 会跳到最早的剩余记录，尚未读取的记录对它而言就丢失了。Tailer 拿到的是映射的只读切片，不做复制。只缓存最慢的未关闭 Tailer（或 Appender）所在段及其之后的映射，
+ * 不再使用的 Tailer 应当关闭。
+ *
+ * <p>Delivery to a tailer is <em>at-least-once</em>: a tailer advances,
+ * and a named tailer persists its position, only after the handler has
+ * returned, so a record whose handler throws, or is still running when
+ * the process dies, is read again.
+ * <p>
+ * Tailer 的投递语义是至少一次：handler 返回之后 Tailer 才前进，具名 Tailer 才持久化位置，
+ * 因此 handler 抛出异常或处理过程中进程退出的记录会被再次读取。
+ *
+ * <p>The appender is not thread-safe; each tailer is not thread-safe, but
+ * different tailers may be used by different threads concurrently with
+ * the appender.  A directory must be written by at most one process.
+ */
+public class MappedQueue implements Closeable {
+
+    /*
+      说明：
+
+      1. 记录格式：[int 长度][字节]，先写字节，最后写长度；长度为 0 表示还没有数据，长度为 -1 表示滚动到下一个段，
+         因此不允许追加空记录；
+      2. 同一个进程内，Appender 写完记录后更新 volatile 的 writeIndex，Tailer 只读取 writeIndex 之前的记录，以此建立 happens-before；
+         本进程没有 Appender 时（写入者在其他进程），Tailer 只能依赖长度字段判断记录是否写完；
+      3. 阻塞读取时 Tailer 先增加 waiters 再检查 writeIndex，Appender 先更新 writeIndex 再检查 waiters，
+         两者都是 volatile，因此不会丢失唤醒。
+     */
+
+    /**
+     * 滚动标记
+     */
+    private static final int ROLL = -1;
+
+    /**
+     * 长度前缀的字节数
+     */
+    private static final int LENGTH_SIZE = 4;
+
+    private static final String SEGMENT_SUFFIX = ".cq";
+
+    /**
+     * 写入者在其他进程时，阻塞读取的最长检查间隔
+     */
+    private static final long MAX_REMOTE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final String TAILER_SUFFIX = ".tailer";
+
+    /**
+     * 默认段大小：64MB
+     */
+    private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /**
+     * 段文件所在目录
+     */
+    private final File dir;
+
+    private final int segmentSize;
+
+    /**
+     * 保留的段数
+     */
+    private final int retainedSegments;
+
+    /**
+     * 已映射的段，只缓存不早于最慢的 Tailer 和 Appender 所在段的映射
+     */
+    private final ConcurrentHashMap<Long, MappedByteBuffer> segments = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+    /**
+     * 未关闭的 Tailer，用于计算最慢的读取位置
+     */
+    private final Set<Tailer> tailers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 最早保留的段编号
+     */
+    private volatile long firstSegment;
+
+    /**
+     * 下一条记录的索引，Appender 写完一条记录后发布
+     */
+    private volatile long writeIndex;
+
+    /**
+     * 唯一的写入者，第一次调用 appender() 时创建
+     */
+    private volatile Appender appender;
+
+    /**
+     * 阻塞读取使用的锁和条件
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+
+    /**
+     * 阻塞等待中的 Tailer 个数
+     */
+    private volatile int waiters;
+
+    /**
+     * Opens the queue in {@code dir} with 64MB segments, keeping all of
+     * them.
+     *
+     * @param dir the directory holding the segment files 段文件目录
+     * @throws IOException if the directory cannot be created or read
+     */
+    public MappedQueue(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Opens the queue in {@code dir}, creating the directory if necessary,
+     * and positions the appender after the last record found.
+     *
+     * @param dir              the directory holding the segment files 段文件目录
+     * @param segmentSize      the size of each segment file in bytes 段文件大小
+     * @param retainedSegments the number of newest segments kept on disk 保留的段数
+     * @throws IOException              if the directory cannot be created or read
+     * @throws IllegalArgumentException if {@code segmentSize} is smaller
+     *                                  than 16 or {@code retainedSegments} is less than 1
+     */
+    public MappedQueue(File dir, int segmentSize, int retainedSegments) throws IOException {
+        if (dir == null)
+            throw new NullPointerException();
+        if (segmentSize < 16 || retainedSegments < 1)
+            throw new IllegalArgumentException();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retainedSegments = retainedSegments;
+
+        String[] names = listSegments();
+        this.firstSegment = (names.length > 0) ? segmentId(names[0]) : 0;
+    }
+
+    /**
+     * Returns the largest record the appender accepts.
+     *
+     * @return the maximum record size in bytes 单条记录的最大字节数
+     */
+    public int maxRecordSize() {
+        return segmentSize - 2 * LENGTH_SIZE;
+    }
+
+    /**
+     * Returns the single appender of this queue, creating it on first use
+     * positioned after the last record found on disk.  Only one process
+     * may acquire an appender for a directory.
+     *
+     * @return the appender 写入者
+     */
+    public Appender appender() {
+        Appender a = appender;
+        if (a == null) {
+            synchronized (this) {
+                if ((a = appender) == null)
+                    appender = a = new Appender(endIndex());
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Creates a tailer that starts at the oldest retained record and does
+     * not persist its position.
+     *
+     * @return a new tailer
+     */
+    public Tailer createTailer() {
+        return new Tailer(null);
+    }
+
+    /**
+     * Creates a tailer whose position is persisted under the given name.
+     * If the name has been used before, the tailer resumes after the last
+     * record read under it; otherwise it starts at the oldest retained
+     * record.
+     * <p>
+     * 创建具名 Tailer，位置持久化在 name.tailer 文件中，重启后从上次的位置继续
+     *
+     * @param name the tailer name 名称
+     * @return a tailer
+     * @throws UncheckedIOException if the position file cannot be mapped
+     */
+    public Tailer createTailer(String name) {
+        if (name == null)
+            throw new NullPointerException();
+        return new Tailer(name);
+    }
+
+    /**
+     * Returns the index of the oldest retained record.
+     *
+     * @return the first index 最早的索引
+     */
+    public long firstIndex() {
+        return toIndex(firstSegment, 0);
+    }
+
+    /**
+     * Returns the index the next record will be appended at.
+     *
+     * @return the end index 下一条记录的索引
+     */
+    public long lastIndex() {
+        return (appender != null) ? writeIndex : endIndex();
+    }
+
+    /**
+     * Syncs the current segment if this process appends.  Mappings are
+     * released when they are garbage collected.
+     */
+    public void close() {
+        Appender a = appender;
+        if (a != null)
+            a.sync();
+    }
+
+    private String[] listSegments() {
+        String[] names = dir.list((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (names == null)
+            return new String[0];
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * 扫描最后一个段，找到最后一条记录之后的索引
+     */
+    private long endIndex() {
+        String[] names = listSegments();
+        if (names.length == 0)
+            return toIndex(firstSegment, 0);
+        long id = segmentId(names[names.length - 1]);
+        MappedByteBuffer buf = segment(id, false);
+        int p = 0;
+        for (int len; p <= segmentSize - LENGTH_SIZE && (len = buf.getInt(p)) != 0; ) {
+            if (len == ROLL)
+                return toIndex(id + 1, 0);
+            p += LENGTH_SIZE + len;
+        }
+        return toIndex(id, p);
+    }
+
+    static long toIndex(long segment, int offset) {
+        return (segment << 32) | offset;
+    }
+
+    static long segmentOf(long index) {
+        return index >>> 32;
+    }
+
+    static int offsetOf(long index) {
+        return (int) index;
+    }
+
+    private static long segmentId(String name) {
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * 获取段的映射，不存在时 create 为 true 则创建，否则返回 null
+     */
+    private MappedByteBuffer segment(long id, boolean create) {
+        MappedByteBuffer buf = segments.get(id);
+        if (buf != null)
+            return buf;
+        File file = segmentFile(id);
+        if (!create && !file.exists())
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        MappedByteBuffer prev = segments.putIfAbsent(id, buf);
+        return (prev != null) ? prev : buf;
+    }
+
+    /**
+     * 从缓存中移除所有 Tailer 和 Appender 都已越过的段。映射本身在不再被引用（包括交给 handler 的切片）后由 GC 释放，
+     * 这里不强制解除映射，否则仍持有切片的代码会访问已解除的内存；被移除的段如果再被访问会重新映射
+     */
+    private void evictPassedSegments() {
+        long min = Long.MAX_VALUE;
+        Appender a = appender;
+        if (a != null)
+            min = a.segmentId;
+        for (Tailer t : tailers)
+            min = Math.min(min, t.segmentId);
+        for (Long id : segments.keySet()) {
+            if (id < min)
+                segments.remove(id);
+        }
+    }
+
+    /**
+     * 删除超出保留范围的旧段
+     */
+    private void applyRetention(long current) {
+        while (current - firstSegment + 1 > retainedSegments) {
+            long id = firstSegment;
+            firstSegment = id + 1;
+            segments.remove(id);
+            segmentFile(id).delete();
+        }
+    }
+
+    private static MappedByteBuffer mapFile(File file, int size) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * 唤醒阻塞的 Tailer
+     */
+    private void signalAppended() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The single writer of the queue.  Not thread-safe.
+     * <p>
+     * 唯一的写入者，非线程安全
+     */
+    public final class Appender {
+
+        /**
+         * 当前段编号及其映射，segmentId 供 Tailer 线程计算可移除的段
+         */
+        private volatile long segmentId;
+        private MappedByteBuffer buf;
+
+        /**
+         * 下一条记录的写入位置
+         */
+        private int pos;
+
+        Appender(long end) {
+            this.segmentId = segmentOf(end);
+            this.buf = segment(segmentId, true);
+            this.pos = offsetOf(end);
+            applyRetention(segmentId);
+            writeIndex = end;
+        }
+
+        /**
+         * Appends the bytes between the position and the limit of
+         * {@code src}, without changing its position.
+         * <p>
+         * 追加一条记录，返回记录的索引
+         *
+         * @param src the record 记录
+         * @return the index of the appended record 记录的索引
+         * @throws IllegalArgumentException if the record is empty or
+         *                                  exceeds {@link #maxRecordSize()}
+         */
+        public long append(ByteBuffer src) {
+            int len = src.remaining();
+            // 长度 0 表示还没有数据，空记录会让所有 Tailer 停在这里
+            if (len == 0)
+                throw new IllegalArgumentException("Empty record");
+            if (len > maxRecordSize())
+                throw new IllegalArgumentException("Record of " + len
+                        + " bytes exceeds maxRecordSize " + maxRecordSize());
+            // 为滚动标记预留 4 个字节
+            if (pos + LENGTH_SIZE + len > segmentSize - LENGTH_SIZE) {
+                buf.putInt(pos, ROLL);
+                roll();
+            }
+            int p = pos;
+            ByteBuffer target = buf.duplicate();
+            target.position(p + LENGTH_SIZE);
+            target.put(src.duplicate());
+            buf.putInt(p, len);
+            pos = p + LENGTH_SIZE + len;
+            // 发布记录，然后检查是否有等待的 Tailer
+            writeIndex = toIndex(segmentId, pos);
+            if (waiters > 0)
+                signalAppended();
+            return toIndex(segmentId, p);
+        }
+
+        /**
+         * Appends a whole array.
+         *
+         * @param bytes the record 记录
+         * @return the index of the appended record 记录的索引
+         * @throws IllegalArgumentException if the record is empty or
+         *                                  exceeds {@link #maxRecordSize()}
+         */
+        public long append(byte[] bytes) {
+            return append(ByteBuffer.wrap(bytes));
+        }
+
+        /**
+         * 切换到下一个段
+         */
+        private void roll() {
+            segmentId++;
+            buf = segment(segmentId, true);
+            pos = 0;
+            applyRetention(segmentId);
+            evictPassedSegments();
+        }
+
+        /**
+         * Forces the current segment to the storage device.
+         * <p>
+         * 把当前段刷到磁盘
+         */
+        public void sync() {
+            buf.force();
+        }
+    }
+
+    /**
+     * An independent reader with its own position.  Not thread-safe.
+     * <p>
+     * 拥有独立位置的读取者，非线程安全
+     */
+    public final class Tailer {
+
+        private final String name;
+
+        /**
+         * 持久化位置的映射文件，匿名 Tailer 为 null
+         */
+        private final MappedByteBuffer offsetFile;
+
+        /**
+         * 当前段编号，其他线程读取以计算最慢的读取位置
+         */
+        private volatile long segmentId;
+        private int pos;
+        private MappedByteBuffer buf;
+
+        Tailer(String name) {
+            this.name = name;
+            long start = firstIndex();
+            if (name != null) {
+                File file = new File(dir, name + TAILER_SUFFIX);
+                boolean exists = file.exists();
+                offsetFile = mapFile(file, 8);
+                if (exists)
+                    start = Math.max(start, offsetFile.getLong(0));
+            } else {
+                offsetFile = null;
+            }
+            moveTo(start);
+            tailers.add(this);
+        }
+
+        /**
+         * Returns the name of this tailer.
+         *
+         * @return the name, or {@code null} for an anonymous tailer
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Returns the index of the next record this tailer reads.
+         *
+         * @return the current index 当前索引
+         */
+        public long index() {
+            return toIndex(segmentId, pos);
+        }
+
+        /**
+         * Moves this tailer to the given index, which must be the index of a
+         * record or the end of the queue.
+         *
+         * @param index the new position 新位置
+         */
+        public void moveTo(long index) {
+            long old = segmentId;
+            this.segmentId = segmentOf(index);
+            this.pos = offsetOf(index);
+            this.buf = null;
+            save();
+            if (segmentId != old)
+                evictPassedSegments();
+        }
+
+        /**
+         * Stops tracking this tailer, so that it no longer keeps the
+         * segments from its position on cached.  A named tailer keeps its
+         * persisted position.
+         * <p>
+         * 关闭 Tailer，它所在位置之后的段不再因它而保留在缓存中。具名 Tailer 的持久化位置保持不变
+         */
+        public void close() {
+            tailers.remove(this);
+            buf = null;
+            evictPassedSegments();
+        }
+
+        /**
+         * Moves this tailer to the oldest retained record.
+         */
+        public void toStart() {
+            moveTo(firstIndex());
+        }
+
+        /**
+         * Moves this tailer past the last appended record.
+         */
+        public void toEnd() {
+            moveTo(writeIndex);
+        }
+
+        private void save() {
+            if (offsetFile != null)
+                offsetFile.putLong(0, toIndex(segmentId, pos));
+        }
+
+        /**
+         * Returns whether the appender of this process has published the
+         * record at the current position.
+         */
+        private boolean published() {
+            return toIndex(segmentId, pos) < writeIndex;
+        }
+
+        /**
+         * Reads the next record, if any, passing a read-only slice of the
+         * mapping to {@code handler}.  The tailer advances only when the
+         * handler returns; if it throws, the exception propagates and the
+         * next call reads the same record again.  To skip such a record,
+         * read it with a handler that ignores it.
+         * <p>
+         * 读取下一条记录，以只读切片交给 handler；没有记录时返回 false。handler 返回后才前进，
+         * handler 抛出异常时异常向上抛出，下次调用再次读取同一条记录；要跳过它，可以用忽略记录的 handler 读取一次
+         *
+         * @param handler receives the record 记录处理器
+         * @return {@code true} if a record was read
+         */
+        public boolean read(Consumer<? super ByteBuffer> handler) {
+            if (handler == null)
+                throw new NullPointerException();
+            for (; ; ) {
+                // 落后于保留范围，跳到最早的段
+                long first = firstSegment;
+                if (segmentId < first) {
+                    moveTo(toIndex(first, 0));
+                    continue;
+                }
+                // 本进程有 Appender 时只读取已发布的记录，与 Appender 对 writeIndex 的写入配对
+                if (appender != null && !published())
+                    return false;
+                if (buf == null && (buf = segment(segmentId, false)) == null) {
+                    // 段已被其他进程的保留策略删除
+                    String[] names = listSegments();
+                    if (names.length > 0 && segmentId(names[0]) > segmentId) {
+                        moveTo(toIndex(segmentId(names[0]), 0));
+                        continue;
+                    }
+                    return false;
+                }
+                int len = (pos <= segmentSize - LENGTH_SIZE) ? buf.getInt(pos) : 0;
+                if (len == 0)
+                    return false;
+                if (len == ROLL) {
+                    moveTo(toIndex(segmentId + 1, 0));
+                    continue;
+                }
+                ByteBuffer slice = buf.duplicate();
+                slice.limit(pos + LENGTH_SIZE + len).position(pos + LENGTH_SIZE);
+                handler.accept(slice.slice().asReadOnlyBuffer());
+                // 处理完成后才前进并持久化位置，保证至少一次
+                pos += LENGTH_SIZE + len;
+                save();
+                return true;
+            }
+        }
+
+        /**
+         * Reads the next record, waiting up to the specified wait time for
+         * one to be appended.  The wait is woken by the appender of this
+         * process; records written by another process are noticed within a
+         * millisecond.
+         *
+         * @param handler receives the record 记录处理器
+         * @param timeout how long to wait before giving up, in units of {@code unit}
+         * @param unit    a {@code TimeUnit} determining how to interpret the {@code timeout} parameter
+         * @return {@code true} if a record was read, {@code false} if the
+         * waiting time elapsed first
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public boolean read(Consumer<? super ByteBuffer> handler, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            for (; ; ) {
+                if (read(handler))
+                    return true;
+                if (nanos <= 0)
+                    return false;
+                final ReentrantLock lock = MappedQueue.this.lock;
+                lock.lockInterruptibly();
+                try {
+                    waiters++;
+                    try {
+                        // 先登记为等待者，再检查是否有新记录；写入者在其他进程时定期检查
+                        if (appender == null) {
+                            long wait = Math.min(nanos, MAX_REMOTE_WAIT_NANOS);
+                            nanos -= wait - appended.awaitNanos(wait);
+                        } else if (!published()) {
+                            nanos = appended.awaitNanos(nanos);
+                        }
+                    } finally {
+                        waiters--;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded concurrent priority queue with relaxed ordering, built as
+ * a MultiQueue: the elements are spread over {@code c * P} independent
+ * heaps, where {@code P} is the expected number of threads and {@code c}
+ * the relaxation factor.
+ * <p>
+ * 放宽顺序的无界并发优先队列（MultiQueue）：元素分散在 c * P 个独立的堆中，P 是预期的线程数，c 是放宽系数。
+ *
+ * <p>{@link #offer} inserts into a random heap, trying another one if its
+ * lock is busy.  {@link #poll} samples two random heaps, and removes the
+ * head of the one whose head has the higher priority.  Threads therefore
+ * rarely wait for each other, while the removed element is still close
+ * to the top: its expected rank among all queued elements is
+ * {@code O(c * P)}, independent of the queue size.  A larger {@code c}
+ * lowers contention at the cost of a larger rank error.
+ * <p>
+ * offer 插入一个随机的堆，锁繁忙时换一个；poll 随机选两个堆，取出堆顶优先级更高的那个。线程之间很少互相等待，
+ * 而取出的元素仍然接近队首：它在全部元素中的期望排名为 O(c * P)，与队列大小无关。c 越大竞争越少，但排名误差越大。
+ *
+ * <p>This class is suited to schedulers and similar uses that need
+ * throughput on many cores more than strict order.  It makes no ordering
+ * guarantee between any two elements, and {@link #poll} may return
+ * {@code null} if all elements are inserted concurrently with it.
+ * {@link #size} sums the heaps without a global lock and is only an
+ * estimate under concurrent updates.
+ * <p>
+ * 适用于更看重多核吞吐量而不是严格顺序的场景，例如调度器。任意两个元素之间都没有顺序保证；
+ * 与插入并发的 poll 可能返回 null。size 不加全局锁，并发修改时只是估计值。
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class MultiQueue<E> extends AbstractQueue<E> {
+
+    /*
+      说明：
+
+      1. 每个堆发布自己的堆顶和元素个数（volatile），poll 只读这两个字段就能在两个堆之间做出选择，不需要加锁；
+      2. 选中的堆只 tryLock，失败就重新随机选择，连续失败的次数达到堆的个数后才阻塞等待，避免堆很少时空转；
+      3. 两个随机堆都为空时，扫描全部堆，仍然都为空才返回 null。
+     */
+
+    /**
+     * Default relaxation factor.
+     */
+    static final int DEFAULT_FACTOR = 2;
+
+    /**
+     * 全部的堆
+     */
+    private final Heap<E>[] heaps;
+
+    /**
+     * 比较器，为 null 时使用元素的自然顺序
+     */
+    private final Comparator<? super E> comparator;
+
+    /**
+     * Creates an empty queue with {@code 2 * P} heaps, where {@code P} is
+     * the number of available processors, ordering its elements by their
+     * natural ordering.
+     */
+    public MultiQueue() {
+        this(DEFAULT_FACTOR, Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * Creates an empty queue with {@code c * P} heaps, where {@code P} is
+     * the number of available processors.
+     *
+     * @param c          the relaxation factor 放宽系数
+     * @param comparator the comparator that will be used to order this
+     *                   queue, or {@code null} for natural ordering
+     * @throws IllegalArgumentException if {@code c} is less than 1
+     */
+    public MultiQueue(int c, Comparator<? super E> comparator) {
+        this(c, Runtime.getRuntime().availableProcessors(), comparator);
+    }
+
+    /**
+     * Creates an empty queue with {@code c * threads} heaps.
+     *
+     * @param c          the relaxation factor 放宽系数
+     * @param threads    the expected number of threads using this queue 预期使用队列的线程数
+     * @param comparator the comparator that will be used to order this
+     *                   queue, or {@code null} for natural ordering
+     * @throws IllegalArgumentException if {@code c} or {@code threads} is
+     *                                  less than 1, or there would be more than 65536 heaps
+     */
+    @SuppressWarnings("unchecked")
+    public MultiQueue(int c, int threads, Comparator<? super E> comparator) {
+        if (c < 1 || threads < 1 || (long) c * threads > (1 << 16))
+            throw new IllegalArgumentException("c * threads must be in [1, 65536]: " + c + " * " + threads);
+        int n = c * threads;
+        this.heaps = (Heap<E>[]) new Heap<?>[n];
+        for (int i = 0; i < n; i++)
+            heaps[i] = new Heap<E>(comparator);
+        this.comparator = comparator;
+    }
+
+    /**
+     * Creates a queue with default settings initially containing the
+     * elements of the given collection.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the collection or any element is null
+     */
+    public MultiQueue(Collection<? extends E> c) {
+        this();
+        this.addAll(c);
+    }
+
+    /**
+     * Returns the number of internal heaps.
+     *
+     * @return the number of heaps 堆的个数
+     */
+    public int heapCount() {
+        return heaps.length;
+    }
+
+    /**
+     * Inserts the specified element into a random heap of this queue.
+     * <p>
+     * 插入元素，只锁住一个随机的堆
+     *
+     * @param e the element to add
+     * @return {@code true}
+     * @throws ClassCastException   if the specified element cannot be
+     *                              compared with the elements currently in the queue
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        Heap<E>[] heaps = this.heaps;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Heap<E> h;
+        int failures = 0;
+        for (; ; ) {
+            h = heaps[random.nextInt(heaps.length)];
+            if (h.lock.tryLock())
+                break;
+            // 连续失败次数达到堆的个数，阻塞等待
+            if (++failures >= heaps.length) {
+                h.lock.lock();
+                break;
+            }
+        }
+        try {
+            h.offer(e);
+        } finally {
+            h.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves and removes an element close to the head of this queue:
+     * the one with the higher priority of the heads of two random heaps.
+     * <p>
+     * 取出一个接近队首的元素：两个随机堆的堆顶中优先级更高的那个
+     *
+     * @return an element close to the head of this queue, or {@code null}
+     * if this queue is empty
+     */
+    public E poll() {
+        Heap<E>[] heaps = this.heaps;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int failures = 0;
+        for (; ; ) {
+            Heap<E> a = heaps[random.nextInt(heaps.length)];
+            Heap<E> b = heaps[random.nextInt(heaps.length)];
+            E ta = a.top, tb = b.top;
+            Heap<E> h;
+            if (ta == null)
+                h = (tb == null) ? anyNonEmpty(random) : b;
+            else
+                h = (tb == null || compare(ta, tb) <= 0) ? a : b;
+            if (h == null)
+                return null;
+
+            if (h.lock.tryLock()) {
+                // 加锁之前堆顶可能已被取走
+                try {
+                    E x = h.poll();
+                    if (x != null)
+                        return x;
+                } finally {
+                    h.lock.unlock();
+                }
+            } else if (++failures >= heaps.length) {
+                h.lock.lock();
+                try {
+                    E x = h.poll();
+                    if (x != null)
+                        return x;
+                } finally {
+                    h.lock.unlock();
+                }
+                failures = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns a non-empty heap, scanning from a random one, or
+     * {@code null} if all heaps are empty.
+     * <p>
+     * 两个随机堆都为空时，从随机位置开始扫描全部堆
+     */
+    private Heap<E> anyNonEmpty(ThreadLocalRandom random) {
+        Heap<E>[] heaps = this.heaps;
+        int n = heaps.length;
+        int start = random.nextInt(n);
+        for (int i = 0; i < n; i++) {
+            Heap<E> h = heaps[(start + i) % n];
+            if (h.top != null)
+                return h;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(E x, E y) {
+        return (comparator == null)
+                ? ((Comparable<? super E>) x).compareTo(y)
+                : comparator.compare(x, y);
+    }
+
+    /**
+     * Returns the element with the highest priority among the heads of
+     * all heaps, without removing it.  Unlike {@link #poll} this looks at
+     * every heap.
+     * <p>
+     * 返回所有堆顶中优先级最高的元素，不移除。与 poll 不同，需要读取每个堆
+     *
+     * @return the head of this queue, or {@code null} if it is empty
+     */
+    public E peek() {
+        E best = null;
+        for (Heap<E> h : heaps) {
+            E t = h.top;
+            if (t != null && (best == null || compare(t, best) < 0))
+                best = t;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the number of elements, summed over the heaps without a
+     * global lock.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        long n = 0;
+        for (Heap<E> h : heaps)
+            n += h.size;
+        return (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+    }
+
+    public boolean isEmpty() {
+        for (Heap<E> h : heaps)
+            if (h.size != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        for (Heap<E> h : heaps) {
+            h.lock.lock();
+            try {
+                if (h.remove(o))
+                    return true;
+            } finally {
+                h.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all of the elements from this queue, one heap at a time.
+     */
+    public void clear() {
+        for (Heap<E> h : heaps) {
+            h.lock.lock();
+            try {
+                h.clear();
+            } finally {
+                h.lock.unlock();
+            }
+        }
+    }
+
+    public Object[] toArray() {
+        List<Object> list = new ArrayList<Object>();
+        for (Heap<E> h : heaps) {
+            h.lock.lock();
+            try {
+                for (E e : h.q)
+                    list.add(e);
+            } finally {
+                h.lock.unlock();
+            }
+        }
+        return list.toArray();
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue, in no
+     * particular order.  The iterator works on a snapshot and is weakly
+     * consistent.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    /**
+     * Snapshot iterator, removal goes through remove(Object).
+     */
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            MultiQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
+    /**
+     * A heap with its own lock, publishing its head and size.  All methods
+     * are called while holding {@code lock}.
+     * <p>
+     * 带独立锁的堆，发布堆顶和元素个数。所有方法都在持有 lock 时调用
+     */
+    static final class Heap<E> {
+        final ReentrantLock lock = new ReentrantLock();
+
+        final PriorityQueue<E> q;
+
+        /**
+         * 堆顶元素，为空时为 null，供 poll 无锁比较
+         */
+        volatile E top;
+
+        /**
+         * 元素个数，供 size() 无锁读取
+         */
+        volatile int size;
+
+        Heap(Comparator<? super E> comparator) {
+            this.q = new PriorityQueue<E>(comparator);
+        }
+
+        void offer(E e) {
+            q.offer(e);
+            size = q.size();
+            if (q.peek() == e)
+                top = e;
+        }
+
+        E poll() {
+            E x = q.poll();
+            if (x != null)
+                afterRemoval();
+            return x;
+        }
+
+        boolean remove(Object o) {
+            if (!q.remove(o))
+                return false;
+            afterRemoval();
+            return true;
+        }
+
+        void clear() {
+            q.clear();
+            afterRemoval();
+        }
+
+        private void afterRemoval() {
+            size = q.size();
+            top = q.peek();
+        }
+    }
+}
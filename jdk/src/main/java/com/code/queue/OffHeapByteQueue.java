@@ -0,0 +1,547 @@
+package com.code.queue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A bounded blocking queue of binary records stored in a single direct
+ * (off-heap) {@link ByteBuffer}.  Records are length-prefixed and laid out
+ * back to back in a ring, so a backlog of millions of messages costs no
+ * heap objects at all: neither a node nor a {@code byte[]} per message.
+ * <p>
+ * 有界阻塞的二进制记录队列，所有记录存放在一块堆外（direct）ByteBuffer 中。记录带长度前缀，在环形缓冲区中首尾相接，
+ * 因此即使积压数百万条消息也不会产生任何堆对象：既没有每条消息一个的节点，也没有每条消息一个的 byte[]。
+ *
+ * <p>Producers copy a record into the ring once.  Consumers do not copy at
+ * all: they receive a read-only {@code ByteBuffer} slice of the ring in a
+ * callback, and the record's space is given back to producers when the
+ * callback returns.  The slice must therefore not be retained or used
+ * after the callback; copy it out if the bytes are needed later.
+ * <p>
+ * 生产者把记录复制进环形缓冲区一次；消费者完全不复制：在回调中拿到环形缓冲区的只读切片，回调返回后记录占用的空间才归还给生产者。
+ * 因此切片不能在回调之外保存或使用，之后还需要的话请自行复制。
+ *
+ * <p>Capacity is measured in bytes.  A record that does not fit before the
+ * end of the ring is written at its start, wasting the tail, so the largest
+ * record accepted is {@link #maxRecordSize()}, a little less than half the
+ * capacity.  Producers block, or time out, while there is not enough free
+ * space, which gives back-pressure instead of unbounded growth.
+ * <p>
+ * 容量以字节计。记录放不下环形缓冲区尾部时从头部开始写，尾部空间作废，因此单条记录最大为 maxRecordSize()，略小于容量的一半。
+ * 空间不足时生产者阻塞或超时，形成背压，而不是无限增长。
+ *
+ * <p>Like {@link LinkedBlockingQueue}, producers and consumers use two
+ * separate locks and meet only through an atomic byte count.
+ */
+public class OffHeapByteQueue {
+
+    /*
+      说明：
+
+      1. 记录格式：[int 长度][字节]。尾部剩余空间不足以放下记录时，写入长度 -1 作为填充标记（剩余不足 4 字节则不写），
+         从缓冲区开头继续写；填充的字节同样计入 used，由消费者跳过时归还；
+      2. writePos / readPos 是缓冲区内的下标，分别只由 putLock / takeLock 的持有者修改；
+      3. 生产者写完字节后才增加 used，消费者处理完回调后才减少 used，两者通过 used 的原子操作建立 happens-before 关系；
+      4. 等待空间的生产者先增加 waitingProducers 再复查 used，消费者先减少 used 再读取 waitingProducers，两者都是 volatile，
+         因此消费者读到 0 时生产者一定能看到释放的空间，不会丢失唤醒；没有生产者等待时消费者不获取 putLock。
+     */
+
+    /**
+     * 填充标记
+     */
+    private static final int PADDING = -1;
+
+    /**
+     * 长度前缀的字节数
+     */
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * 堆外缓冲区
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * 容量（字节）
+     */
+    private final int capacity;
+
+    /**
+     * 已占用的字节数，包括长度前缀和填充
+     */
+    private final AtomicInteger used = new AtomicInteger();
+
+    /**
+     * 记录条数
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * 下一条记录的写入位置，由 putLock 保护
+     */
+    private int writePos;
+
+    /**
+     * 下一条记录的读取位置，由 takeLock 保护
+     */
+    private int readPos;
+
+    /**
+     * 出队锁
+     */
+    private final ReentrantLock takeLock = new ReentrantLock();
+
+    /**
+     * 非空条件
+     */
+    private final Condition notEmpty = takeLock.newCondition();
+
+    /**
+     * 入队锁
+     */
+    private final ReentrantLock putLock = new ReentrantLock();
+
+    /**
+     * 空间释放条件
+     */
+    private final Condition notFull = putLock.newCondition();
+
+    /**
+     * 在 notFull 上等待的生产者个数，只在持有 putLock 时修改
+     */
+    private volatile int waitingProducers;
+
+    /**
+     * Creates a queue backed by a direct buffer of the given size.
+     *
+     * @param capacityBytes the size of the ring in bytes 缓冲区字节数
+     * @throws IllegalArgumentException if {@code capacityBytes} is smaller than 16
+     */
+    public OffHeapByteQueue(int capacityBytes) {
+        if (capacityBytes < 16)
+            throw new IllegalArgumentException("capacityBytes must be at least 16: " + capacityBytes);
+        this.capacity = capacityBytes;
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes);
+    }
+
+    /**
+     * Returns the size of the largest record this queue accepts.
+     *
+     * @return the maximum record size in bytes 单条记录的最大字节数
+     */
+    public int maxRecordSize() {
+        return capacity / 2 - LENGTH_SIZE;
+    }
+
+    /**
+     * 唤醒等待的消费者，仅由生产者调用
+     */
+    private void signalNotEmpty() {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 唤醒等待空间的生产者，仅由消费者在释放空间之后调用；没有生产者等待时直接返回。
+     * 不同生产者需要的空间大小不同，因此全部唤醒，由它们各自判断
+     */
+    private void signalNotFull() {
+        if (waitingProducers == 0)
+            return;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the bytes needed to append a record of length {@code len} at
+     * the current write position, including padding.  Call only when
+     * holding putLock.
+     * <p>
+     * 在当前写入位置追加记录需要的字节数，包括可能的尾部填充
+     */
+    private int required(int len) {
+        int need = LENGTH_SIZE + len;
+        int tail = capacity - writePos;
+        return (need <= tail) ? need : tail + need;
+    }
+
+    /**
+     * Writes a record at the write position.  Call only when holding
+     * putLock and when {@code required(len)} bytes are free.
+     */
+    private void enqueue(ByteBuffer src, int len, int required) {
+        // assert putLock.isHeldByCurrentThread();
+        int pos = writePos;
+        int need = LENGTH_SIZE + len;
+        if (need != required) {
+            // 尾部放不下，写入填充标记后从头开始
+            if (capacity - pos >= LENGTH_SIZE)
+                buffer.putInt(pos, PADDING);
+            pos = 0;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position(pos + LENGTH_SIZE);
+        target.put(src.duplicate());
+        buffer.putInt(pos, len);
+        pos += need;
+        writePos = (pos == capacity) ? 0 : pos;
+    }
+
+    private void checkRecord(ByteBuffer src) {
+        if (src == null)
+            throw new NullPointerException();
+        if (src.remaining() > maxRecordSize())
+            throw new IllegalArgumentException("Record of " + src.remaining()
+                    + " bytes exceeds maxRecordSize " + maxRecordSize());
+    }
+
+    /**
+     * Appends a record if there is enough free space, returning immediately
+     * either way.  The bytes between the position and the limit of
+     * {@code src} are copied; its position is not changed.
+     * <p>
+     * 空间足够时追加记录，否则立即返回 false。复制 src 的 position 到 limit 之间的字节，不修改 src 的 position
+     *
+     * @param src the record 记录
+     * @return {@code true} if the record was appended
+     * @throws NullPointerException     if {@code src} is null
+     * @throws IllegalArgumentException if the record exceeds {@link #maxRecordSize()}
+     */
+    public boolean offer(ByteBuffer src) {
+        checkRecord(src);
+        int len = src.remaining();
+        int c;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            int required = required(len);
+            if (capacity - used.get() < required)
+                return false;
+            enqueue(src, len, required);
+            used.getAndAdd(required);
+            c = count.getAndIncrement();
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0)
+            signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * Appends a record, waiting up to the specified wait time if necessary
+     * for enough space to become free.
+     *
+     * @param src     the record 记录
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit    a {@code TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return {@code true} if successful, or {@code false} if the specified
+     * waiting time elapses before space is available
+     * @throws InterruptedException     if interrupted while waiting
+     * @throws NullPointerException     if {@code src} is null
+     * @throws IllegalArgumentException if the record exceeds {@link #maxRecordSize()}
+     */
+    public boolean offer(ByteBuffer src, long timeout, TimeUnit unit) throws InterruptedException {
+        checkRecord(src);
+        int len = src.remaining();
+        long nanos = unit.toNanos(timeout);
+        int c;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lockInterruptibly();
+        try {
+            int required;
+            while (capacity - used.get() < (required = required(len))) {
+                if (nanos <= 0)
+                    return false;
+                // 先登记为等待者再复查空间，见说明 4
+                waitingProducers++;
+                try {
+                    if (capacity - used.get() < required)
+                        nanos = notFull.awaitNanos(nanos);
+                } finally {
+                    waitingProducers--;
+                }
+            }
+            enqueue(src, len, required);
+            used.getAndAdd(required);
+            c = count.getAndIncrement();
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0)
+            signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * Appends a record, waiting if necessary for enough space to become
+     * free.
+     *
+     * @param src the record 记录
+     * @throws InterruptedException     if interrupted while waiting
+     * @throws NullPointerException     if {@code src} is null
+     * @throws IllegalArgumentException if the record exceeds {@link #maxRecordSize()}
+     */
+    public void put(ByteBuffer src) throws InterruptedException {
+        checkRecord(src);
+        int len = src.remaining();
+        int c;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lockInterruptibly();
+        try {
+            int required;
+            while (capacity - used.get() < (required = required(len))) {
+                // 先登记为等待者再复查空间，见说明 4
+                waitingProducers++;
+                try {
+                    if (capacity - used.get() < required)
+                        notFull.await();
+                } finally {
+                    waitingProducers--;
+                }
+            }
+            enqueue(src, len, required);
+            used.getAndAdd(required);
+            c = count.getAndIncrement();
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0)
+            signalNotEmpty();
+    }
+
+    /**
+     * Hands the head record to {@code handler} and releases its space.
+     * Call only when holding takeLock and when the queue is not empty.
+     * <p>
+     * 把头部记录交给 handler 处理，处理完后释放空间，返回释放的字节数
+     */
+    private int dequeue(Consumer<? super ByteBuffer> handler) {
+        // assert takeLock.isHeldByCurrentThread();
+        int pos = readPos;
+        int skipped = 0;
+        int tail = capacity - pos;
+        if (tail < LENGTH_SIZE || buffer.getInt(pos) == PADDING) {
+            // 跳过尾部填充
+            skipped = tail;
+            pos = 0;
+        }
+        int len = buffer.getInt(pos);
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(pos + LENGTH_SIZE + len).position(pos + LENGTH_SIZE);
+        int released = skipped + LENGTH_SIZE + len;
+        int next = pos + LENGTH_SIZE + len;
+        try {
+            handler.accept(slice.slice().asReadOnlyBuffer());
+        } finally {
+            // 即使回调抛出异常，记录也视为已消费
+            readPos = (next == capacity) ? 0 : next;
+            used.getAndAdd(-released);
+        }
+        return released;
+    }
+
+    /**
+     * Retrieves and removes the head record, if any, passing a read-only
+     * slice of it to {@code handler}.  The slice is only valid during the
+     * call.  If the handler throws, the record is still removed.
+     * <p>
+     * 取出头部记录并以只读切片交给 handler，切片只在回调期间有效；回调抛出异常时记录同样被移除
+     *
+     * @param handler receives the record 记录处理器
+     * @return {@code true} if a record was handled, {@code false} if the
+     * queue was empty
+     */
+    public boolean poll(Consumer<? super ByteBuffer> handler) {
+        if (handler == null)
+            throw new NullPointerException();
+        if (count.get() == 0)
+            return false;
+        int c;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            if (count.get() == 0)
+                return false;
+            try {
+                dequeue(handler);
+            } finally {
+                c = count.getAndDecrement();
+                if (c > 1)
+                    notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        signalNotFull();
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head record, waiting up to the specified
+     * wait time if necessary for one to become available, and passes a
+     * read-only slice of it to {@code handler}.
+     *
+     * @param handler receives the record 记录处理器
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit    a {@code TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return {@code true} if a record was handled, {@code false} if the
+     * waiting time elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean poll(Consumer<? super ByteBuffer> handler, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (handler == null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            try {
+                dequeue(handler);
+            } finally {
+                if (count.getAndDecrement() > 1)
+                    notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        signalNotFull();
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head record, waiting if necessary until one
+     * is available, and passes a read-only slice of it to {@code handler}.
+     *
+     * @param handler receives the record 记录处理器
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void take(Consumer<? super ByteBuffer> handler) throws InterruptedException {
+        if (handler == null)
+            throw new NullPointerException();
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0)
+                notEmpty.await();
+            try {
+                dequeue(handler);
+            } finally {
+                if (count.getAndDecrement() > 1)
+                    notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        signalNotFull();
+    }
+
+    /**
+     * Removes up to {@code maxRecords} available records, passing each to
+     * {@code handler} in order, under a single acquisition of the lock.
+     * Space is released record by record, but producers are signalled once.
+     * <p>
+     * 一次加锁批量处理最多 maxRecords 条记录，空间逐条释放，只唤醒一次生产者
+     *
+     * @param handler    receives the records 记录处理器
+     * @param maxRecords the maximum number of records to handle 最多处理的记录数
+     * @return the number of records handled
+     */
+    public int drainTo(Consumer<? super ByteBuffer> handler, int maxRecords) {
+        if (handler == null)
+            throw new NullPointerException();
+        if (maxRecords <= 0)
+            return 0;
+        int n = 0;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            int available = Math.min(maxRecords, count.get());
+            try {
+                while (n < available) {
+                    n++;
+                    dequeue(handler);
+                }
+            } finally {
+                if (n > 0 && count.getAndAdd(-n) > n)
+                    notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+            if (n > 0)
+                signalNotFull();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of records in this queue.
+     *
+     * @return the number of records 记录条数
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Returns whether this queue holds no records.
+     *
+     * @return {@code true} if empty
+     */
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    /**
+     * Returns the number of bytes in use, including length prefixes and
+     * wasted tail space.
+     *
+     * @return the bytes in use 已占用的字节数
+     */
+    public int usedBytes() {
+        return used.get();
+    }
+
+    /**
+     * Returns the number of free bytes.  A record of {@code n} bytes needs
+     * {@code n + 4} of them, more if it has to wrap around.
+     *
+     * @return the free bytes 剩余字节数
+     */
+    public int remainingBytes() {
+        return capacity - used.get();
+    }
+
+    /**
+     * Returns the size of the ring.
+     *
+     * @return the capacity in bytes 容量（字节）
+     */
+    public int capacityBytes() {
+        return capacity;
+    }
+
+    public String toString() {
+        return "OffHeapByteQueue[size=" + count.get() + ", used=" + used.get() + "/" + capacity + "]";
+    }
+}
@@ -0,0 +1,111 @@
+package com.code.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of {@code drainParallel} shared by the blocking queues.
+ * The elements are moved out with a single {@code drainTo}, so the queue
+ * lock is taken once, and are then processed by {@code parallelism}
+ * fork-join tasks that claim fixed-size chunks of the drained list from a
+ * shared cursor, so that slow elements do not leave the other workers
+ * idle.
+ * <p>
+ * 各阻塞队列 drainParallel 的实现。先用一次 drainTo 取出元素，队列的锁只获取一次；再由 parallelism 个 fork-join 任务
+ * 从共享游标领取固定大小的分块处理，处理慢的元素不会让其他任务空闲。
+ */
+final class ParallelDrain {
+
+    /**
+     * 每个任务至少领取的分块数，用于计算分块大小
+     */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    /**
+     * 分块大小上限
+     */
+    private static final int MAX_CHUNK = 1 << 10;
+
+    private ParallelDrain() {
+    }
+
+    /**
+     * Drains the queue and applies the action to every drained element
+     * using at most {@code parallelism} threads of the common pool,
+     * including the calling thread.  If the action throws, the workers
+     * stop claiming chunks and the exception is rethrown; elements not yet
+     * processed are lost.
+     * <p>
+     * 取出队列中的元素，使用公共池中最多 parallelism 个线程（包括调用线程）处理。处理抛出异常时停止领取分块并重新抛出，
+     * 尚未处理的元素丢失。
+     *
+     * @return the number of drained elements
+     */
+    static <E> int drain(BlockingQueue<E> queue, Consumer<? super E> action, int parallelism) {
+        if (action == null)
+            throw new NullPointerException();
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        List<E> list = new ArrayList<E>();
+        int n = queue.drainTo(list);
+        if (n == 0)
+            return 0;
+        // 公共池加上调用线程，同时运行的线程不会更多，多出的任务只会增加开销
+        parallelism = Math.min(parallelism, ForkJoinPool.getCommonPoolParallelism() + 1);
+        // 用 long 计算，避免 parallelism * CHUNKS_PER_WORKER 溢出 int
+        int chunk = (int) Math.max(1L, Math.min(MAX_CHUNK, n / ((long) parallelism * CHUNKS_PER_WORKER)));
+        int workers = Math.min(parallelism, (n + chunk - 1) / chunk);
+        if (workers == 1) {
+            for (E e : list)
+                action.accept(e);
+            return n;
+        }
+        AtomicInteger cursor = new AtomicInteger();
+        List<Worker<E>> tasks = new ArrayList<Worker<E>>(workers);
+        for (int i = 0; i < workers; i++)
+            tasks.add(new Worker<E>(list, action, cursor, chunk));
+        ForkJoinTask.invokeAll(tasks);
+        return n;
+    }
+
+    /**
+     * 从共享游标领取分块并处理，游标越过末尾即结束
+     */
+    static final class Worker<E> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final List<E> list;
+        final Consumer<? super E> action;
+        final AtomicInteger cursor;
+        final int chunk;
+
+        Worker(List<E> list, Consumer<? super E> action, AtomicInteger cursor, int chunk) {
+            this.list = list;
+            this.action = action;
+            this.cursor = cursor;
+            this.chunk = chunk;
+        }
+
+        protected void compute() {
+            final List<E> list = this.list;
+            final int n = list.size();
+            for (int lo; (lo = cursor.getAndAdd(chunk)) < n; ) {
+                int hi = Math.min(n, lo + chunk);
+                try {
+                    for (int i = lo; i < hi; i++)
+                        action.accept(list.get(i));
+                } catch (RuntimeException | Error ex) {
+                    // 让其他任务不再领取分块
+                    cursor.set(n);
+                    throw ex;
+                }
+            }
+        }
+    }
+}
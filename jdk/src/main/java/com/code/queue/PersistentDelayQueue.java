@@ -0,0 +1,811 @@
+package com.code.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A durable delay queue: elements are serialized into memory-mapped
+ * segment files together with their absolute deadline, so that pending
+ * elements survive a crash or restart of the process.  It offers the
+ * {@code offer}/{@code put}/{@code poll}/{@code take} operations of
+ * {@link DelayQueue} with the same leader-follower waiting.
+ * <p>
+ * 持久化的延时队列：元素连同其绝对截止时间一起序列化到内存映射的段文件中，进程崩溃或重启后未到期的元素不会丢失。
+ * 提供与 DelayQueue 相同的 offer/put/poll/take 操作，等待方式同样是 leader-follower。
+ *
+ * <p>Deadlines are wall-clock times ({@link System#currentTimeMillis()})
+ * computed from {@code getDelay} when an element is offered, because
+ * {@link System#nanoTime()} has no meaning across restarts.  After a
+ * restart an element therefore expires at the instant it was originally
+ * due, or immediately if that instant has passed while the process was
+ * down.  Resolution is one millisecond.
+ * <p>
+ * 截止时间使用墙上时钟（currentTimeMillis），在 offer 时根据 getDelay 计算，因为 nanoTime 在重启后没有意义。
+ * 重启后元素仍在原定时刻到期，如果停机期间已经过了到期时间则立即到期。精度为 1 毫秒。
+ *
+ * <p>Only the deadline index is kept in memory; payloads stay in the
+ * mapped files and are decoded when taken; a record that cannot be
+ * decoded is removed and reported once, by the {@code take} or
+ * {@code poll} that reached it.  Consumed records are marked
+ * in place, and a segment file is deleted once all of its records have
+ * been consumed.  Writes reach the disk through
+ * {@link MappedByteBuffer#force()}, which is batched: it runs after
+ * {@code syncBatch} modifications, and a shared background thread
+ * forces any remaining modifications every {@code syncIntervalMillis}
+ * milliseconds, so no modification stays unforced for longer than that.
+ * It also runs on {@link #sync()} and {@link #close()}.  A crash can lose at most the modifications of the
+ * last batch; torn records are detected by a checksum and discarded on
+ * recovery.
+ * <p>
+ * 内存中只保存截止时间索引，负载留在映射文件中，取出时才解码；无法解码的记录被移除，由取到它的 take/poll 报告一次。已消费的记录原地打上标记，段中所有记录都被消费后删除该段文件。
+ * 刷盘（force）是批量的：修改次数达到 syncBatch 时执行，另有一个共享的后台线程每隔 syncIntervalMillis 把剩余的修改刷盘，
+ * 任何修改未刷盘的时间都不超过 syncIntervalMillis。sync() 和 close() 也会刷盘。
+ * 崩溃最多丢失最后一批修改；写了一半的记录通过校验和识别，恢复时丢弃。
+ *
+ * <p>A directory must be used by at most one queue instance at a time.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class PersistentDelayQueue<E extends Delayed> implements Closeable {
+
+    /*
+      说明：
+
+      1. 记录格式：[int 负载长度][int crc][byte 状态][long 截止时间][负载]，先写其余字段，最后写长度，
+         长度为 0 表示段中数据结束（新文件全部为 0），因此负载不能为空；
+      2. crc 覆盖截止时间和负载，不覆盖状态字节，因为消费时会原地修改状态；
+      3. 启动时按段编号顺序扫描所有段，把状态为 LIVE 的记录重建到内存索引中，最后一个段继续作为写入段。
+     */
+
+    /**
+     * 记录头长度：长度 4 + crc 4 + 状态 1 + 截止时间 8
+     */
+    private static final int HEADER_SIZE = 17;
+
+    private static final int LENGTH_OFFSET = 0;
+    private static final int CRC_OFFSET = 4;
+    private static final int STATE_OFFSET = 8;
+    private static final int DEADLINE_OFFSET = 9;
+
+    /**
+     * 记录状态：未消费
+     */
+    private static final byte LIVE = 1;
+
+    /**
+     * 记录状态：已消费
+     */
+    private static final byte CONSUMED = 2;
+
+    /**
+     * 段文件后缀
+     */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * 默认段大小：64MB
+     */
+    private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /**
+     * 默认每 256 次修改刷盘一次
+     */
+    private static final int DEFAULT_SYNC_BATCH = 256;
+
+    /**
+     * 默认最多 100 毫秒刷盘一次
+     */
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+
+    /**
+     * Converts elements to and from the bytes stored in the segment files.
+     * <p>
+     * 元素与字节之间的编解码器
+     *
+     * @param <E> the element type
+     */
+    public interface Codec<E> {
+
+        /**
+         * Encodes an element.
+         *
+         * @param e the element 元素
+         * @return its serialized form 序列化后的字节
+         */
+        byte[] encode(E e);
+
+        /**
+         * Decodes an element previously encoded by {@link #encode}.
+         *
+         * @param bytes the serialized form 序列化后的字节
+         * @return the element 元素
+         */
+        E decode(byte[] bytes);
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 有元素到期或需要新 leader 时发出信号
+     */
+    private final Condition available = lock.newCondition();
+
+    /**
+     * 等待队列头部元素的线程，含义同 DelayQueue.leader
+     */
+    private Thread leader = null;
+
+    /**
+     * 段文件所在目录
+     */
+    private final File dir;
+
+    private final Codec<E> codec;
+
+    private final int segmentSize;
+
+    private final int syncBatch;
+
+    private final long syncIntervalMillis;
+
+    /**
+     * 按截止时间排序的内存索引
+     */
+    private final PriorityQueue<Entry> index = new PriorityQueue<Entry>();
+
+    /**
+     * 所有仍有未消费记录的段，以及当前写入段
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * 当前写入段
+     */
+    private Segment active;
+
+    /**
+     * 记录的插入序号，截止时间相同时按插入顺序排序
+     */
+    private long sequence;
+
+    /**
+     * 上次刷盘以来修改过的段及修改次数
+     */
+    private final List<Segment> dirty = new ArrayList<Segment>();
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+
+    /**
+     * 定时刷盘任务，close 时取消
+     */
+    private final ScheduledFuture<?> flushTask;
+
+    private boolean closed;
+
+    /**
+     * Opens the queue stored in {@code dir} with default settings, creating
+     * the directory if necessary.
+     *
+     * @param dir   the directory holding the segment files 段文件目录
+     * @param codec the element codec 编解码器
+     * @throws IOException if the directory cannot be created or read
+     */
+    public PersistentDelayQueue(File dir, Codec<E> codec) throws IOException {
+        this(dir, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_BATCH, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens the queue stored in {@code dir}, creating the directory if
+     * necessary, and rebuilds the in-memory index from the segment files.
+     * <p>
+     * 打开目录中的队列，并根据段文件重建内存索引
+     *
+     * @param dir                the directory holding the segment files 段文件目录
+     * @param codec              the element codec 编解码器
+     * @param segmentSize        the size of each segment file in bytes 段文件大小
+     * @param syncBatch          the number of modifications between two forced syncs 每多少次修改刷盘一次
+     * @param syncIntervalMillis the maximum time between two forced syncs 两次刷盘的最大间隔
+     * @throws IOException              if the directory cannot be created or read
+     * @throws IllegalArgumentException if a size or interval is not positive
+     */
+    public PersistentDelayQueue(File dir, Codec<E> codec, int segmentSize,
+                                int syncBatch, long syncIntervalMillis) throws IOException {
+        if (dir == null || codec == null)
+            throw new NullPointerException();
+        if (segmentSize <= HEADER_SIZE || syncBatch <= 0 || syncIntervalMillis <= 0)
+            throw new IllegalArgumentException();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+        this.dir = dir;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.syncBatch = syncBatch;
+        this.syncIntervalMillis = syncIntervalMillis;
+        recover();
+        this.flushTask = Flusher.EXECUTOR.scheduleWithFixedDelay(this::flushIfDirty,
+                syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a codec based on Java serialization.
+     * <p>
+     * 基于 Java 序列化的编解码器
+     *
+     * @param <E> the element type
+     * @return a codec using {@link ObjectOutputStream}
+     */
+    public static <E extends Serializable> Codec<E> serialization() {
+        return new Codec<E>() {
+            public byte[] encode(E e) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(e);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return bytes.toByteArray();
+            }
+
+            @SuppressWarnings("unchecked")
+            public E decode(byte[] b) {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b))) {
+                    return (E) in.readObject();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                } catch (ClassNotFoundException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * 扫描所有段文件重建索引，最后一个段作为写入段
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        long maxId = -1;
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                String name = f.getName();
+                long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                Segment s = new Segment(id, f, segmentSize);
+                s.scan();
+                segments.add(s);
+                maxId = Math.max(maxId, id);
+            }
+        }
+        // 除最后一个段外，没有未消费记录的段直接删除
+        for (int i = segments.size() - 2; i >= 0; i--) {
+            Segment s = segments.get(i);
+            if (s.live == 0) {
+                s.delete();
+                segments.remove(i);
+            }
+        }
+        if (segments.isEmpty())
+            segments.add(new Segment(maxId + 1, segmentFile(maxId + 1), segmentSize));
+        active = segments.get(segments.size() - 1);
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Inserts the specified element, writing it to the current segment.
+     * The write is durable after the next sync.
+     * <p>
+     * 插入元素，写入当前段，下一次刷盘后持久化
+     *
+     * @param e the element to add
+     * @return {@code true}
+     * @throws NullPointerException     if the specified element is null
+     * @throws IllegalArgumentException if the element is encoded as an
+     *                                  empty payload, or does not fit in a segment
+     * @throws UncheckedIOException     if a new segment file cannot be created
+     * @throws IllegalStateException    if this queue has been closed
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        long delay = e.getDelay(TimeUnit.MILLISECONDS);
+        byte[] payload = codec.encode(e);
+        // 长度 0 表示段中数据结束，空负载会让恢复时丢弃它及其之后的记录
+        if (payload.length == 0)
+            throw new IllegalArgumentException("Element encoded as an empty payload");
+        if (payload.length > segmentSize - HEADER_SIZE)
+            throw new IllegalArgumentException("Encoded element of " + payload.length
+                    + " bytes does not fit in a segment of " + segmentSize + " bytes");
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            ensureOpen();
+            long now = System.currentTimeMillis();
+            // 防止溢出，不假设 now 非负
+            long deadline = now + delay;
+            if (delay > 0 && deadline < now)
+                deadline = Long.MAX_VALUE;
+            if (active.remaining() < HEADER_SIZE + payload.length)
+                roll();
+            Entry entry = active.append(deadline, payload);
+            index.offer(entry);
+            modified(active);
+            if (index.peek() == entry) {
+                leader = null;
+                available.signal();
+            }
+            return true;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element. As the queue is unbounded this method
+     * will never block.
+     *
+     * @param e the element to add
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * 当前段写满，创建下一个段
+     */
+    private void roll() throws IOException {
+        Segment old = active;
+        old.force();
+        dirty.remove(old);
+        long id = old.id + 1;
+        active = new Segment(id, segmentFile(id), segmentSize);
+        segments.add(active);
+        if (old.live == 0)
+            release(old);
+    }
+
+    /**
+     * 记录一次修改，按批次刷盘
+     */
+    private void modified(Segment s) {
+        if (!dirty.contains(s))
+            dirty.add(s);
+        long now = System.currentTimeMillis();
+        if (++unsynced >= syncBatch || now - lastSync >= syncIntervalMillis)
+            forceDirty(now);
+    }
+
+    /**
+     * 定时任务：把距今不超过一个间隔内的修改刷盘
+     */
+    private void flushIfDirty() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (!closed && unsynced > 0)
+                forceDirty(System.currentTimeMillis());
+        } catch (RuntimeException ex) {
+            // 抛出异常会取消后续的定时执行，留给下一次刷盘重试
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forceDirty(long now) {
+        for (Segment s : dirty)
+            s.force();
+        dirty.clear();
+        unsynced = 0;
+        lastSync = now;
+    }
+
+    /**
+     * 取出并解码最早的已到期记录。Call only when holding lock.
+     * <p>
+     * 无论解码是否成功，记录都会被消费，否则一条无法解码的记录会让之后所有的 take/poll 都失败。
+     * 解码失败时抛出一次带记录位置的 IllegalStateException
+     */
+    private E dequeue() {
+        // assert lock.isHeldByCurrentThread();
+        Entry entry = index.poll();
+        Segment s = entry.segment;
+        byte[] payload = s.read(entry);
+        s.consume(entry);
+        modified(s);
+        if (s.live == 0 && s != active)
+            release(s);
+        try {
+            return codec.decode(payload);
+        } catch (RuntimeException ex) {
+            throw new IllegalStateException("Cannot decode the record at offset " + entry.offset
+                    + " of segment " + s.id + ", deadline " + entry.deadline + "; it has been removed", ex);
+        }
+    }
+
+    /**
+     * 段中记录全部被消费，删除段文件
+     */
+    private void release(Segment s) {
+        dirty.remove(s);
+        segments.remove(s);
+        s.delete();
+    }
+
+    /**
+     * 堆顶剩余的延迟（毫秒）
+     */
+    private long delayOf(Entry first) {
+        return first.deadline - System.currentTimeMillis();
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns {@code null}
+     * if this queue has no elements with an expired delay.
+     *
+     * @return the head of this queue, or {@code null}
+     * @throws IllegalStateException if this queue has been closed, or the
+     *                               head cannot be decoded; the head is removed
+     *                               in that case, so the failure is reported once
+     */
+    public E poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            ensureOpen();
+            Entry first = index.peek();
+            if (first == null || delayOf(first) > 0)
+                return null;
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary
+     * until an element with an expired delay is available.
+     *
+     * @return the head of this queue
+     * @throws InterruptedException  if interrupted while waiting
+     * @throws IllegalStateException if this queue has been closed, or the
+     *                               head cannot be decoded; the head is removed
+     *                               in that case, so the failure is reported once
+     */
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                ensureOpen();
+                Entry first = index.peek();
+                if (first == null)
+                    available.await();
+                else {
+                    long delay = delayOf(first);
+                    if (delay <= 0)
+                        return dequeue();
+                    first = null; // don't retain ref while waiting
+                    if (leader != null)
+                        available.await();
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            available.await(delay, TimeUnit.MILLISECONDS);
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && index.peek() != null)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary
+     * until an element with an expired delay is available or the specified
+     * wait time expires.
+     *
+     * @return the head of this queue, or {@code null} if the waiting time
+     * elapsed first
+     * @throws InterruptedException  if interrupted while waiting
+     * @throws IllegalStateException if this queue has been closed, or the
+     *                               head cannot be decoded; the head is removed
+     *                               in that case, so the failure is reported once
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                ensureOpen();
+                Entry first = index.peek();
+                if (first == null) {
+                    if (nanos <= 0)
+                        return null;
+                    else
+                        nanos = available.awaitNanos(nanos);
+                } else {
+                    long delay = TimeUnit.MILLISECONDS.toNanos(delayOf(first));
+                    if (delay <= 0)
+                        return dequeue();
+                    if (nanos <= 0)
+                        return null;
+                    first = null; // don't retain ref while waiting
+                    if (nanos < delay || leader != null)
+                        nanos = available.awaitNanos(nanos);
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            long timeLeft = available.awaitNanos(delay);
+                            nanos -= delay - timeLeft;
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && index.peek() != null)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of pending elements, expired or not.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the deadline of the head of this queue as a
+     * {@link System#currentTimeMillis()} value.
+     *
+     * @return the earliest deadline, or {@code Long.MAX_VALUE} if empty
+     */
+    public long peekDeadline() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Entry first = index.peek();
+            return first == null ? Long.MAX_VALUE : first.deadline;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces all modifications made so far to the storage device.
+     * <p>
+     * 立即把所有修改刷到磁盘
+     */
+    public void sync() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            ensureOpen();
+            forceDirty(System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs the segment files, stops the periodic background sync and
+     * closes this queue.  Threads waiting in
+     * {@code take} or {@code poll} fail with
+     * {@link IllegalStateException}.  The mappings themselves are released
+     * when they are garbage collected.
+     */
+    public void close() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            forceDirty(System.currentTimeMillis());
+            closed = true;
+            flushTask.cancel(false);
+            index.clear();
+            segments.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("Queue closed");
+    }
+
+    /**
+     * 所有队列共享的后台刷盘线程，守护线程，第一次使用时创建
+     */
+    static final class Flusher {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PersistentDelayQueue-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * In-memory index entry pointing at a record in a segment.
+     * <p>
+     * 内存索引项，指向段中的一条记录
+     */
+    final class Entry implements Comparable<Entry> {
+        final long deadline;
+        final long seq;
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Entry(long deadline, long seq, Segment segment, int offset, int length) {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int compareTo(Entry o) {
+            int c = Long.compare(deadline, o.deadline);
+            return (c != 0) ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.  Guarded by the lock of the enclosing
+     * queue.
+     * <p>
+     * 内存映射的段文件，由外部队列的锁保护
+     */
+    final class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buf;
+
+        /**
+         * 下一条记录的写入位置
+         */
+        int writePos;
+
+        /**
+         * 未消费的记录数
+         */
+        int live;
+
+        Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            // 映射在文件关闭后依然有效，直到被垃圾回收
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                this.buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+            }
+        }
+
+        int remaining() {
+            return buf.capacity() - writePos;
+        }
+
+        /**
+         * 顺序扫描记录，直到遇到长度为 0 或校验失败的记录
+         */
+        void scan() {
+            int pos = 0;
+            int cap = buf.capacity();
+            while (pos + HEADER_SIZE <= cap) {
+                int len = buf.getInt(pos + LENGTH_OFFSET);
+                if (len <= 0 || len > cap - pos - HEADER_SIZE)
+                    break;
+                long deadline = buf.getLong(pos + DEADLINE_OFFSET);
+                if (crc(pos, len) != buf.getInt(pos + CRC_OFFSET))
+                    break;
+                if (buf.get(pos + STATE_OFFSET) == LIVE) {
+                    index.offer(new Entry(deadline, sequence++, this, pos, len));
+                    live++;
+                }
+                pos += HEADER_SIZE + len;
+            }
+            // 清除未完成的尾部记录，避免之后的写入被误判
+            if (pos + 4 <= cap)
+                buf.putInt(pos + LENGTH_OFFSET, 0);
+            writePos = pos;
+        }
+
+        /**
+         * crc 覆盖截止时间和负载
+         */
+        private int crc(int pos, int len) {
+            CRC32 crc = new CRC32();
+            ByteBuffer view = buf.duplicate();
+            view.limit(pos + HEADER_SIZE + len).position(pos + DEADLINE_OFFSET);
+            crc.update(view);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * 追加一条记录，最后写长度
+         */
+        Entry append(long deadline, byte[] payload) {
+            int pos = writePos;
+            buf.put(pos + STATE_OFFSET, LIVE);
+            buf.putLong(pos + DEADLINE_OFFSET, deadline);
+            ByteBuffer view = buf.duplicate();
+            view.position(pos + HEADER_SIZE);
+            view.put(payload);
+            buf.putInt(pos + CRC_OFFSET, crc(pos, payload.length));
+            buf.putInt(pos + LENGTH_OFFSET, payload.length);
+            writePos = pos + HEADER_SIZE + payload.length;
+            live++;
+            return new Entry(deadline, sequence++, this, pos, payload.length);
+        }
+
+        byte[] read(Entry entry) {
+            byte[] payload = new byte[entry.length];
+            ByteBuffer view = buf.duplicate();
+            view.position(entry.offset + HEADER_SIZE);
+            view.get(payload);
+            return payload;
+        }
+
+        void consume(Entry entry) {
+            buf.put(entry.offset + STATE_OFFSET, CONSUMED);
+            live--;
+        }
+
+        void force() {
+            buf.force();
+        }
+
+        void delete() {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded {@linkplain BlockingQueue blocking queue} that sorts its
+ * elements into a fixed number of priority classes, class {@code 0}
+ * being the highest.  Each class is a FIFO lane with its own capacity,
+ * so a flood of low-priority elements can never fill the queue for
+ * high-priority ones.
+ * <p>
+ * 有界的分级优先阻塞队列：元素按优先级分为固定数量的类别，0 为最高。每个类别是一个有独立容量的 FIFO 通道，
+ * 大量低优先级元素不会占满高优先级元素的容量。
+ *
+ * <p>Elements are taken by weighted round robin: in every round class
+ * {@code i} may supply up to {@code weights[i]} elements, higher classes
+ * first, and a new round starts once every non-empty class has used up
+ * its share.  Higher classes thus overtake lower ones, while each class
+ * still gets its share of every round and cannot be starved.  On top of
+ * that, an element that has waited longer than the aging interval is
+ * promoted by one class per interval waited, so that a low-priority
+ * element held back by a busy higher class is served ahead of it once it
+ * becomes old enough.
+ * <p>
+ * 按加权轮询出队：每一轮中类别 i 最多出队 weights[i] 个元素，高优先级的类别优先，所有非空类别都用完额度后开始新的一轮。
+ * 因此高优先级元素会越过低优先级元素，而每个类别在每一轮都能得到自己的份额，不会饿死。
+ * 此外，等待超过老化间隔的元素每等待一个间隔提升一级，被繁忙的高优先级类别压住的低优先级元素足够老之后会先于它们出队。
+ *
+ * <p>The class of an element is computed by a classifier when it is
+ * inserted.  With a classifier over {@code Runnable} this queue can be
+ * the work queue of a {@link java.util.concurrent.ThreadPoolExecutor}:
+ * a task whose class is full is rejected, just as with a full
+ * {@code ArrayBlockingQueue}.  Null elements are not permitted.
+ * <p>
+ * 元素的类别在插入时由分类函数计算。分类函数作用于 Runnable 时，本队列可以作为 ThreadPoolExecutor 的工作队列：
+ * 所属类别已满的任务会被拒绝，与使用已满的 ArrayBlockingQueue 相同。不允许 null 元素。
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class PriorityClassBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+      说明：
+
+      1. 所有类别共用一把锁和一个 notEmpty 条件，每个类别有自己的 notFull 条件，出队只唤醒腾出空间的那个类别的生产者；
+      2. 每个类别的剩余额度保存在 credits 中，出队时扣减；被选中的类别额度为 0 时说明所有非空类别都已用完，此时重新填满；
+      3. 出队时按每个类别队首元素的有效类别（类别减去已等待的老化间隔数，最小为 0）选择，有效类别相同取等待更久的；
+         有剩余额度的类别优先，没有老化时就是按类别从高到低的加权轮询。类别数很少，每次出队扫描全部类别。
+     */
+
+    /**
+     * 最大类别数
+     */
+    static final int MAX_CLASSES = 64;
+
+    /**
+     * 默认老化间隔，毫秒
+     */
+    static final long DEFAULT_AGING_MILLIS = 1000L;
+
+    /**
+     * 每个类别的 FIFO 通道
+     */
+    private final ArrayDeque<Node<E>>[] lanes;
+
+    /**
+     * 每个类别的容量
+     */
+    private final int[] capacities;
+
+    /**
+     * 每个类别每一轮的出队份额
+     */
+    private final int[] weights;
+
+    /**
+     * 每个类别本轮剩余的份额
+     */
+    private final int[] credits;
+
+    /**
+     * 老化间隔，纳秒，0 表示不老化
+     */
+    private final long agingNanos;
+
+    /**
+     * 计算元素类别的函数
+     */
+    private final ToIntFunction<? super E> classifier;
+
+    /**
+     * 元素总数
+     */
+    private int count;
+
+    /**
+     * Main lock guarding all access
+     */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Condition for waiting takes
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 每个类别的 Condition for waiting puts
+     */
+    private final Condition[] notFull;
+
+    /**
+     * Creates a queue with the given number of classes, each with the
+     * given capacity, weights decreasing linearly from {@code classes} for
+     * class {@code 0} to {@code 1} for the lowest class, and the default
+     * aging interval of one second.
+     *
+     * @param classes          the number of priority classes 类别数
+     * @param capacityPerClass the capacity of each class 每个类别的容量
+     * @param classifier       the function computing the class of an element 计算元素类别的函数
+     * @throws IllegalArgumentException if {@code classes} is not in
+     *                                  {@code [1, 64]} or {@code capacityPerClass} is less than 1
+     * @throws NullPointerException     if {@code classifier} is null
+     */
+    public PriorityClassBlockingQueue(int classes, int capacityPerClass, ToIntFunction<? super E> classifier) {
+        this(filled(classes, capacityPerClass), linearWeights(classes),
+                DEFAULT_AGING_MILLIS, TimeUnit.MILLISECONDS, classifier);
+    }
+
+    /**
+     * Creates a queue with one class per entry of {@code capacities}.
+     *
+     * @param capacities the capacity of each class 每个类别的容量
+     * @param weights    the number of elements each class may supply per
+     *                   round 每个类别每一轮的出队份额
+     * @param aging      the time after which a waiting element is promoted
+     *                   by one class, or {@code 0} to disable aging 元素提升一级所需的等待时间，0 表示不老化
+     * @param unit       the time unit of {@code aging}
+     * @param classifier the function computing the class of an element 计算元素类别的函数
+     * @throws IllegalArgumentException if the arrays differ in length or
+     *                                  have no or more than 64 entries, a capacity or weight is less
+     *                                  than 1, or {@code aging} is negative
+     * @throws NullPointerException     if any argument is null
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityClassBlockingQueue(int[] capacities, int[] weights, long aging, TimeUnit unit,
+                                      ToIntFunction<? super E> classifier) {
+        if (capacities == null || weights == null || unit == null || classifier == null)
+            throw new NullPointerException();
+        int k = capacities.length;
+        if (k < 1 || k > MAX_CLASSES || weights.length != k)
+            throw new IllegalArgumentException("classes must be in [1, " + MAX_CLASSES + "] with one weight each");
+        for (int i = 0; i < k; i++) {
+            if (capacities[i] < 1 || weights[i] < 1)
+                throw new IllegalArgumentException("capacity and weight of class " + i + " must be positive");
+        }
+        if (aging < 0)
+            throw new IllegalArgumentException("aging must not be negative: " + aging);
+        this.capacities = capacities.clone();
+        this.weights = weights.clone();
+        this.credits = weights.clone();
+        this.agingNanos = unit.toNanos(aging);
+        this.classifier = classifier;
+        this.lanes = (ArrayDeque<Node<E>>[]) new ArrayDeque<?>[k];
+        this.notFull = new Condition[k];
+        for (int i = 0; i < k; i++) {
+            lanes[i] = new ArrayDeque<Node<E>>(Math.min(capacities[i], 1 << 10));
+            notFull[i] = lock.newCondition();
+        }
+    }
+
+    private static int[] filled(int classes, int capacity) {
+        if (classes < 1 || classes > MAX_CLASSES)
+            throw new IllegalArgumentException("classes must be in [1, " + MAX_CLASSES + "]: " + classes);
+        int[] a = new int[classes];
+        for (int i = 0; i < classes; i++)
+            a[i] = capacity;
+        return a;
+    }
+
+    private static int[] linearWeights(int classes) {
+        int[] a = new int[classes];
+        for (int i = 0; i < classes; i++)
+            a[i] = classes - i;
+        return a;
+    }
+
+    /**
+     * Returns the number of priority classes.
+     *
+     * @return the number of classes 类别数
+     */
+    public int classCount() {
+        return lanes.length;
+    }
+
+    /**
+     * 计算元素的类别并检查范围
+     */
+    private int classOf(E e) {
+        int c = classifier.applyAsInt(e);
+        if (c < 0 || c >= lanes.length)
+            throw new IllegalArgumentException("class out of range [0, " + lanes.length + "): " + c);
+        return c;
+    }
+
+    /**
+     * Inserts the element into its class lane.  Call only when holding
+     * lock and the lane is not full.
+     * <p>
+     * 入队，只在持有锁且通道未满时调用
+     */
+    private void enqueue(int c, E e) {
+        lanes[c].offerLast(new Node<E>(e, (agingNanos > 0L) ? System.nanoTime() : 0L));
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Picks the class lane the next element is taken from, or {@code -1}
+     * if the queue is empty.  Call only when holding lock.
+     * <p>
+     * 选择下一个出队的类别：有剩余额度的类别优先，其中有效类别最高的（数值最小）、相同时等待更久的；都没有额度时在全部非空类别中选择
+     */
+    private int pickLane() {
+        final ArrayDeque<Node<E>>[] lanes = this.lanes;
+        final long now = (agingNanos > 0L) ? System.nanoTime() : 0L;
+        int best = -1, bestRank = Integer.MAX_VALUE;
+        long bestTime = 0L;
+        boolean bestCredited = false;
+        for (int c = 0; c < lanes.length; c++) {
+            Node<E> h = lanes[c].peekFirst();
+            if (h == null)
+                continue;
+            int rank = c;
+            if (agingNanos > 0L && c > 0)
+                rank -= (int) Math.min(c, (now - h.time) / agingNanos);
+            boolean credited = credits[c] > 0;
+            // 有效类别相同时取等待更久的，不老化时各类别的有效类别互不相同
+            if (best < 0 || (credited && !bestCredited)
+                    || (credited == bestCredited
+                    && (rank < bestRank || (rank == bestRank && h.time - bestTime < 0L)))) {
+                best = c;
+                bestRank = rank;
+                bestTime = h.time;
+                bestCredited = credited;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Removes the next element.  Call only when holding lock.
+     * <p>
+     * 出队，只在持有锁时调用
+     */
+    private E dequeue() {
+        int c = pickLane();
+        if (c < 0)
+            return null;
+        // 所有非空类别的额度都已用完，开始新的一轮
+        if (credits[c] == 0)
+            System.arraycopy(weights, 0, credits, 0, credits.length);
+        credits[c]--;
+        E x = lanes[c].pollFirst().item;
+        count--;
+        notFull[c].signal();
+        return x;
+    }
+
+    /**
+     * Inserts the specified element into the lane of its class if there
+     * is room, returning {@code true} upon success and {@code false} if
+     * that class is full.
+     *
+     * @throws NullPointerException     if the specified element is null
+     * @throws IllegalArgumentException if the classifier maps the element
+     *                                  to a class that does not exist
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        int c = classOf(e);
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (lanes[c].size() == capacities[c])
+                return false;
+            enqueue(c, e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element into the lane of its class, waiting
+     * if necessary for space to become available in that class.
+     *
+     * @throws InterruptedException     {@inheritDoc}
+     * @throws NullPointerException     {@inheritDoc}
+     * @throws IllegalArgumentException if the classifier maps the element
+     *                                  to a class that does not exist
+     */
+    public void put(E e) throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        int c = classOf(e);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (lanes[c].size() == capacities[c])
+                notFull[c].await();
+            enqueue(c, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element into the lane of its class, waiting
+     * up to the specified wait time for space to become available in that
+     * class.
+     *
+     * @throws InterruptedException     {@inheritDoc}
+     * @throws NullPointerException     {@inheritDoc}
+     * @throws IllegalArgumentException if the classifier maps the element
+     *                                  to a class that does not exist
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        int c = classOf(e);
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (lanes[c].size() == capacities[c]) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notFull[c].awaitNanos(nanos);
+            }
+            enqueue(c, e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == 0)
+                notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the element the next {@code poll}
+     * would return, or returns {@code null} if this queue is empty.
+     */
+    public E peek() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int c = pickLane();
+            return (c < 0) ? null : lanes[c].peekFirst().item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of elements in the given class.
+     *
+     * @param priorityClass the class 类别
+     * @return the number of elements in that class
+     * @throws IndexOutOfBoundsException if the class does not exist
+     */
+    public int size(int priorityClass) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return lanes[priorityClass].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total number of additional elements all classes
+     * together can accept without blocking.  An element can only use the
+     * room of its own class, see {@link #remainingCapacity(int)}.
+     * <p>
+     * 返回所有类别剩余容量之和。元素只能使用自己所属类别的容量
+     */
+    public int remainingCapacity() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            long n = 0;
+            for (int c = 0; c < lanes.length; c++)
+                n += capacities[c] - lanes[c].size();
+            return (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of additional elements the given class can
+     * accept without blocking.
+     *
+     * @param priorityClass the class 类别
+     * @return the remaining capacity of that class
+     * @throws IndexOutOfBoundsException if the class does not exist
+     */
+    public int remainingCapacity(int priorityClass) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return capacities[priorityClass] - lanes[priorityClass].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most the given number of elements, in the order
+     * {@code poll} would return them, and adds them to the given
+     * collection.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int n = 0;
+            for (E e; n < maxElements && (e = dequeue()) != null; ) {
+                c.add(e);
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (int c = 0; c < lanes.length; c++) {
+                for (Iterator<Node<E>> it = lanes[c].iterator(); it.hasNext(); ) {
+                    if (o.equals(it.next().item)) {
+                        it.remove();
+                        count--;
+                        notFull[c].signal();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (int c = 0; c < lanes.length; c++) {
+                if (!lanes[c].isEmpty()) {
+                    lanes[c].clear();
+                    notFull[c].signalAll();
+                }
+            }
+            count = 0;
+            System.arraycopy(weights, 0, credits, 0, credits.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, class
+     * by class from the highest, each class in FIFO order.
+     */
+    public Object[] toArray() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            List<Object> list = new ArrayList<Object>(count);
+            for (ArrayDeque<Node<E>> lane : lanes)
+                for (Node<E> n : lane)
+                    list.add(n.item);
+            return list.toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue, class by class
+     * from the highest.  The iterator works on a snapshot and is weakly
+     * consistent.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    /**
+     * Snapshot iterator, removal goes through remove(Object).
+     */
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            PriorityClassBlockingQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
+    /**
+     * 通道中的节点，记录入队时间用于老化
+     */
+    static final class Node<E> {
+        final E item;
+
+        /**
+         * 入队时间，不老化时为 0
+         */
+        final long time;
+
+        Node(E item, long time) {
+            this.item = item;
+            this.time = time;
+        }
+    }
+}
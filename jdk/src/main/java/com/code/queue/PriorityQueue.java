@@ -26,6 +26,8 @@
 package com.code.queue;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Consumer;
 
 import sun.misc.SharedSecrets;
@@ -282,6 +284,50 @@ public class PriorityQueue<E> extends AbstractQueue<E>
         initElementsFromCollection(c);
     }
 
+    /**
+     * Creates a {@code PriorityQueue} containing the elements of the
+     * specified collection, building the heap in parallel in the
+     * {@linkplain ForkJoinPool#commonPool() common pool}.
+     * <p>
+     * 使用 fork-join 并行建堆，适用于启动时从上千万元素重建堆的场景。
+     *
+     * <p>Heap construction is split over disjoint subtrees: the two child
+     * subtrees of a node are heapified concurrently, then the node itself
+     * is sifted down.  Sifting down only ever touches the subtree below the
+     * node, so concurrent tasks never write the same slot.  Small subtrees
+     * are heapified sequentially, level by level.
+     * <p>
+     * 按子树拆分任务：先并行地对左右两棵子树建堆，再对当前节点做自上而下的调整。
+     * 调整只会访问当前节点下方的子树，因此并发的任务之间不会写同一个位置。子树足够小时顺序建堆。
+     *
+     * <p>The comparator (or the elements' {@code compareTo}) is invoked from
+     * several threads and must therefore be thread-safe.
+     *
+     * @param c          the collection whose elements are to be placed into the queue
+     * @param comparator the comparator, or {@code null} for natural ordering
+     * @param <E>        the type of elements
+     * @return a new priority queue
+     * @throws ClassCastException   if the elements cannot be compared
+     * @throws NullPointerException if the collection or any element is null
+     */
+    public static <E> PriorityQueue<E> parallelOf(Collection<? extends E> c,
+                                                  Comparator<? super E> comparator) {
+        PriorityQueue<E> pq = new PriorityQueue<E>(1, comparator);
+        Object[] a = c.toArray();
+        // If c.toArray incorrectly doesn't return Object[], copy it.
+        if (a.getClass() != Object[].class)
+            a = Arrays.copyOf(a, a.length, Object[].class);
+        for (Object o : a)
+            if (o == null)
+                throw new NullPointerException();
+        if (a.length > 0) {
+            pq.queue = a;
+            pq.size = a.length;
+        }
+        pq.heapifyParallel();
+        return pq;
+    }
+
     private void initFromPriorityQueue(PriorityQueue<? extends E> c) {
         if (c.getClass() == PriorityQueue.class) {
             this.queue = c.toArray();
@@ -427,6 +473,69 @@ public class PriorityQueue<E> extends AbstractQueue<E>
         return true;
     }
 
+    /**
+     * Adds all of the elements in the specified collection to this queue.
+     * <p>
+     * 批量添加元素。
+     *
+     * <p>When the batch is at least as large as the current heap, the
+     * elements are appended to the backing array and the whole heap is
+     * rebuilt bottom-up, which costs O(n + k) comparisons; a smaller
+     * batch is inserted one {@code siftUp} at a time, which costs at most
+     * O(k log(n + k)) but is usually cheaper when the heap is large.
+     * <p>
+     * 批量元素个数 k 不小于当前堆大小 n 时，直接追加到数组末尾再整体建堆，比较次数为 O(n + k)；
+     * 否则逐个 siftUp，最坏 O(k log(n + k))，但堆较大时通常更快。
+     *
+     * @param c collection containing elements to be added to this queue
+     * @return {@code true} if this queue changed as a result of the call
+     * @throws ClassCastException       if an element cannot be compared with
+     *                                  the elements of this queue
+     * @throws NullPointerException     if the specified collection or any
+     *                                  of its elements are null
+     * @throws IllegalArgumentException if the specified collection is this queue
+     */
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        Object[] a = c.toArray();
+        int k = a.length;
+        if (k == 0)
+            return false;
+
+        // 先检查空元素，避免插入一半后失败
+        for (Object e : a)
+            if (e == null)
+                throw new NullPointerException();
+
+        // 批量较小，逐个插入
+        if (k < size) {
+            for (Object e : a) {
+                @SuppressWarnings("unchecked") E x = (E) e;
+                offer(x);
+            }
+            return true;
+        }
+
+        int n = size;
+        int newSize = n + k;
+        if (newSize < 0) // overflow
+            throw new OutOfMemoryError();
+        if (newSize > queue.length)
+            queue = Arrays.copyOf(queue, newSize);
+        System.arraycopy(a, 0, queue, n, k);
+        size = newSize;
+        modCount++;
+
+        // 整体重新建堆
+        heapify();
+        return true;
+    }
+
     /**
      * 返回堆顶元素
      *
@@ -765,6 +874,37 @@ public class PriorityQueue<E> extends AbstractQueue<E>
 
 
 
+    /**
+     * Replaces the head of this queue with {@code e} and restores the heap
+     * invariant with a single sift-down.  Cheaper than {@code poll}
+     * followed by {@code offer}.  Used by {@link TopKQueue}.
+     * <p>
+     * 用 e 替换堆顶元素，只需一次自上而下的调整，比先 poll 再 offer 开销小
+     *
+     * @param e the new element, must not be null
+     * @return the former head
+     */
+    @SuppressWarnings("unchecked")
+    E replaceHead(E e) {
+        // assert size > 0 && e != null;
+        modCount++;
+        E result = (E) queue[0];
+        siftDown(0, e);
+        return result;
+    }
+
+    /**
+     * Compares two elements using this queue's ordering.
+     * <p>
+     * 按照队列的排序规则比较两个元素
+     */
+    @SuppressWarnings("unchecked")
+    int compare(E a, E b) {
+        return (comparator != null) ?
+                comparator.compare(a, b) :
+                ((Comparable<? super E>) a).compareTo(b);
+    }
+
     /**
      * Inserts item x at position k, maintaining heap invariant by
      * promoting x up the tree until it is greater than or equal to
@@ -975,6 +1115,91 @@ public class PriorityQueue<E> extends AbstractQueue<E>
             siftDown(i, (E) queue[i]);
     }
 
+    /**
+     * 子树元素个数不超过该值时顺序建堆
+     */
+    private static final int PARALLEL_HEAPIFY_THRESHOLD = 1 << 16;
+
+    /**
+     * Establishes the heap invariant in the entire tree using the common
+     * fork-join pool.  Falls back to {@link #heapify} for small heaps.
+     * <p>
+     * 并行建堆，元素较少时退化为顺序建堆
+     */
+    void heapifyParallel() {
+        if (size <= PARALLEL_HEAPIFY_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2)
+            heapify();
+        else
+            ForkJoinPool.commonPool().invoke(new HeapifyTask(0));
+    }
+
+    /**
+     * Heapifies the subtree rooted at {@code root} bottom-up, one level at a
+     * time.  The nodes of a subtree at a given depth form a contiguous range
+     * of the array, so each level is a simple backwards scan.
+     * <p>
+     * 对以 root 为根的子树自底向上建堆。子树中同一层的节点在数组中是连续的，逐层倒序调整即可。
+     */
+    @SuppressWarnings("unchecked")
+    private void heapifySubtree(int root) {
+        int lastParent = (size >>> 1) - 1;
+        if (root > lastParent)
+            return;
+
+        // 记录子树每一层的下标范围，二叉树最多 31 层
+        int[] los = new int[32], his = new int[32];
+        int levels = 0;
+        long lo = root, hi = root;
+        while (lo <= lastParent) {
+            los[levels] = (int) lo;
+            his[levels] = (int) Math.min(hi, lastParent);
+            levels++;
+            lo = (lo << 1) + 1;
+            hi = (hi << 1) + 2;
+        }
+
+        // 从最深的一层开始往上调整
+        for (int l = levels - 1; l >= 0; l--)
+            for (int i = his[l]; i >= los[l]; i--)
+                siftDown(i, (E) queue[i]);
+    }
+
+    /**
+     * Fork-join task heapifying the subtree rooted at {@code root}.
+     * <p>
+     * 对以 root 为根的子树并行建堆的任务
+     */
+    private final class HeapifyTask extends RecursiveAction {
+        private static final long serialVersionUID = -3617245186741402925L;
+
+        private final int root;
+
+        HeapifyTask(int root) {
+            this.root = root;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void compute() {
+            int n = size;
+            if (root > (n >>> 1) - 1)
+                return;
+
+            // 以 root 为根的子树大约有 n / (root + 1) 个节点，足够小时顺序处理
+            if (n / (root + 1) <= PARALLEL_HEAPIFY_THRESHOLD) {
+                heapifySubtree(root);
+                return;
+            }
+
+            // 左右子树互不相交，可以并行建堆
+            int left = (root << 1) + 1;
+            invokeAll(new HeapifyTask(left), new HeapifyTask(left + 1));
+
+            // 两棵子树都已满足堆的性质，再调整根节点
+            siftDown(root, (E) queue[root]);
+        }
+    }
+
     /**
      * Returns the comparator used to order the elements in this
      * queue, or {@code null} if this queue is sorted according to
@@ -0,0 +1,126 @@
+package com.code.queue;
+
+/**
+ * Read-only view of the instrumentation a blocking queue records once its
+ * {@code enableMetrics()} method has been called: throughput, time spent
+ * blocked in {@code put}/{@code take}, lock contention and the occupancy
+ * high-water mark.
+ * <p>
+ * 阻塞队列调用 enableMetrics() 之后记录的指标的只读视图：吞吐量、put/take 阻塞时间、锁竞争次数和元素个数的最高水位。
+ *
+ * <p>Blocking times are kept both as totals and as histograms with
+ * power-of-two buckets: bucket {@code 0} counts waits shorter than one
+ * nanosecond, and bucket {@code i > 0} counts waits of at least
+ * {@code 2^(i-1)} and less than {@code 2^i} nanoseconds.  The last bucket
+ * also counts every longer wait.  Only waits that actually parked the
+ * thread are recorded, and a wait is recorded when it ends normally or
+ * times out.
+ * <p>
+ * 阻塞时间同时记录总和与按 2 的幂分桶的直方图：桶 0 统计小于 1 纳秒的等待，桶 i 统计 [2^(i-1), 2^i) 纳秒的等待，
+ * 最后一个桶还包含更长的等待。只记录真正阻塞过的等待，在等待正常结束或超时时记录。
+ *
+ * <p>Lock contention is sampled by checking whether the lock is held just
+ * before acquiring it, which never changes the fairness of the lock.
+ * All values are read without stopping the queue and are only
+ * approximately consistent with each other.
+ * <p>
+ * 锁竞争通过获取锁之前检查锁是否被占用来采样，不会改变锁的公平性。所有值都不停止队列读取，彼此之间只是近似一致。
+ */
+public interface QueueMetrics {
+
+    /**
+     * The number of histogram buckets.
+     */
+    int HISTOGRAM_BUCKETS = 40;
+
+    /**
+     * Returns the number of elements inserted.
+     *
+     * @return the number of insertions 入队次数
+     */
+    long enqueueCount();
+
+    /**
+     * Returns the number of elements removed from the head.
+     *
+     * @return the number of removals 出队次数
+     */
+    long dequeueCount();
+
+    /**
+     * Returns the average insertion rate since the metrics were enabled or
+     * last reset.
+     *
+     * @return insertions per second 每秒入队数
+     */
+    double enqueueRate();
+
+    /**
+     * Returns the average removal rate since the metrics were enabled or
+     * last reset.
+     *
+     * @return removals per second 每秒出队数
+     */
+    double dequeueRate();
+
+    /**
+     * Returns the number of insertions that had to wait for space.
+     *
+     * @return the number of blocked insertions 阻塞的入队次数
+     */
+    long putWaitCount();
+
+    /**
+     * Returns the total time insertions spent waiting for space.
+     *
+     * @return the total wait in nanoseconds 入队等待总时长（纳秒）
+     */
+    long putWaitNanos();
+
+    /**
+     * Returns a snapshot of the insertion wait-time histogram.
+     *
+     * @return a new array of {@link #HISTOGRAM_BUCKETS} counts 入队等待时长直方图
+     */
+    long[] putWaitHistogram();
+
+    /**
+     * Returns the number of removals that had to wait for an element.
+     *
+     * @return the number of blocked removals 阻塞的出队次数
+     */
+    long takeWaitCount();
+
+    /**
+     * Returns the total time removals spent waiting for an element.
+     *
+     * @return the total wait in nanoseconds 出队等待总时长（纳秒）
+     */
+    long takeWaitNanos();
+
+    /**
+     * Returns a snapshot of the removal wait-time histogram.
+     *
+     * @return a new array of {@link #HISTOGRAM_BUCKETS} counts 出队等待时长直方图
+     */
+    long[] takeWaitHistogram();
+
+    /**
+     * Returns the number of lock acquisitions that found the lock held.
+     *
+     * @return the number of contended acquisitions 锁竞争次数
+     */
+    long lockContentionCount();
+
+    /**
+     * Returns the largest number of elements observed in the queue.
+     *
+     * @return the occupancy high-water mark 元素个数最高水位
+     */
+    int highWaterMark();
+
+    /**
+     * Clears all counters and restarts the rate measurement.
+     */
+    void reset();
+}
@@ -0,0 +1,173 @@
+package com.code.queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recorder behind {@link QueueMetrics}.  A queue holds a reference to one
+ * only while metrics are enabled; with a {@code null} reference every
+ * hook is skipped by a single branch.  All counters are
+ * {@link LongAdder}s, so recording never contends with the queue's own
+ * locks.
+ * <p>
+ * QueueMetrics 的记录器。只有启用指标后队列才持有它的引用，为 null 时所有埋点只是一次判断。
+ * 计数器都是 LongAdder，记录时不会与队列自身的锁产生竞争。
+ */
+final class QueueStats implements QueueMetrics {
+
+    private final LongAdder enqueues = new LongAdder();
+    private final LongAdder dequeues = new LongAdder();
+    private final LongAdder contention = new LongAdder();
+    private final WaitHistogram putWaits = new WaitHistogram();
+    private final WaitHistogram takeWaits = new WaitHistogram();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+
+    /**
+     * 统计开始时间，用于计算速率
+     */
+    private volatile long startNanos = System.nanoTime();
+
+    /**
+     * 获取锁之前调用：锁已被持有则记为一次竞争
+     */
+    void beforeLock(ReentrantLock lock) {
+        if (lock.isLocked())
+            contention.increment();
+    }
+
+    /**
+     * 入队后调用，size 为入队后的元素个数
+     */
+    void enqueued(int size) {
+        enqueues.increment();
+        int max;
+        while (size > (max = highWaterMark.get()))
+            if (highWaterMark.compareAndSet(max, size))
+                break;
+    }
+
+    void dequeued() {
+        dequeues.increment();
+    }
+
+    void dequeued(int n) {
+        dequeues.add(n);
+    }
+
+    void putWaited(long nanos) {
+        putWaits.record(nanos);
+    }
+
+    void takeWaited(long nanos) {
+        takeWaits.record(nanos);
+    }
+
+    public long enqueueCount() {
+        return enqueues.sum();
+    }
+
+    public long dequeueCount() {
+        return dequeues.sum();
+    }
+
+    public double enqueueRate() {
+        return perSecond(enqueues.sum());
+    }
+
+    public double dequeueRate() {
+        return perSecond(dequeues.sum());
+    }
+
+    private double perSecond(long n) {
+        long elapsed = System.nanoTime() - startNanos;
+        return (elapsed <= 0) ? 0.0 : n * 1e9 / elapsed;
+    }
+
+    public long putWaitCount() {
+        return putWaits.count.sum();
+    }
+
+    public long putWaitNanos() {
+        return putWaits.total.sum();
+    }
+
+    public long[] putWaitHistogram() {
+        return putWaits.snapshot();
+    }
+
+    public long takeWaitCount() {
+        return takeWaits.count.sum();
+    }
+
+    public long takeWaitNanos() {
+        return takeWaits.total.sum();
+    }
+
+    public long[] takeWaitHistogram() {
+        return takeWaits.snapshot();
+    }
+
+    public long lockContentionCount() {
+        return contention.sum();
+    }
+
+    public int highWaterMark() {
+        return highWaterMark.get();
+    }
+
+    public void reset() {
+        enqueues.reset();
+        dequeues.reset();
+        contention.reset();
+        putWaits.reset();
+        takeWaits.reset();
+        highWaterMark.set(0);
+        startNanos = System.nanoTime();
+    }
+
+    public String toString() {
+        return "QueueMetrics[enqueues=" + enqueueCount() + ", dequeues=" + dequeueCount()
+                + ", putWaits=" + putWaitCount() + "/" + putWaitNanos() + "ns"
+                + ", takeWaits=" + takeWaitCount() + "/" + takeWaitNanos() + "ns"
+                + ", contention=" + lockContentionCount() + ", highWaterMark=" + highWaterMark() + "]";
+    }
+
+    /**
+     * 按 2 的幂分桶的等待时长直方图
+     */
+    static final class WaitHistogram {
+        final LongAdder count = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final LongAdder[] buckets = new LongAdder[HISTOGRAM_BUCKETS];
+
+        WaitHistogram() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            count.increment();
+            total.add(nanos);
+            // 桶下标为最高位的位置 + 1
+            int b = 64 - Long.numberOfLeadingZeros(nanos);
+            buckets[Math.min(b, HISTOGRAM_BUCKETS - 1)].increment();
+        }
+
+        long[] snapshot() {
+            long[] a = new long[buckets.length];
+            for (int i = 0; i < a.length; i++)
+                a[i] = buckets[i].sum();
+            return a;
+        }
+
+        void reset() {
+            count.reset();
+            total.reset();
+            for (LongAdder b : buckets)
+                b.reset();
+        }
+    }
+}
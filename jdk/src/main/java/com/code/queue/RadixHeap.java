@@ -0,0 +1,389 @@
+package com.code.queue;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A monotone priority queue on {@code long} keys, carrying a payload with
+ * every key.  <em>Monotone</em> means that a key may never be smaller than
+ * the key most recently removed by {@link #poll}, which holds for event
+ * simulation, Dijkstra-style searches and timer deadlines.  In exchange
+ * for that restriction, offer is O(1) and poll is amortized O(log C),
+ * where C is the spread of the keys, and neither ever compares payloads.
+ * <p>
+ * 单调基数堆：插入的键不能小于最近一次 poll 出的键（事件模拟、Dijkstra、定时器截止时间都满足这一点）。
+ * 作为交换，offer 为 O(1)，poll 均摊 O(log C)（C 为键的取值跨度），且从不比较负载对象。
+ *
+ * <p>Elements are kept in 65 buckets relative to {@code last}, the most
+ * recently removed key.  Bucket {@code 0} holds keys equal to {@code last};
+ * bucket {@code i > 0} holds keys whose highest bit differing from
+ * {@code last} is bit {@code i - 1}.  When bucket {@code 0} runs empty,
+ * the first non-empty bucket is scanned for its minimum, which becomes the
+ * new {@code last}, and its elements are redistributed into strictly lower
+ * buckets.  Each element can only move down at most 64 times, which gives
+ * the amortized bound.
+ * <p>
+ * 元素按与 last（最近一次取出的键）的关系放入 65 个桶：桶 0 存放等于 last 的键；桶 i 存放与 last
+ * 最高不同位为第 i-1 位的键。桶 0 为空时，找到第一个非空桶中的最小键作为新的 last，再把该桶的元素
+ * 重新分配到更低的桶中。每个元素最多下移 64 次，因此 poll 是均摊 O(log C) 的。
+ *
+ * <p>Buckets are parallel {@code long[]}/{@code Object[]} arrays, so
+ * offering and polling does not allocate once the buckets have grown.
+ * Payloads must not be {@code null}.  This class is not thread-safe.
+ *
+ * @param <V> the type of the payloads
+ */
+public class RadixHeap<V> implements Iterable<V> {
+
+    /**
+     * 桶的个数：桶 0 加上 64 个二进制位
+     */
+    private static final int BUCKETS = 65;
+
+    /**
+     * 每个桶的初始容量
+     */
+    private static final int INITIAL_BUCKET_CAPACITY = 8;
+
+    /**
+     * 每个桶中的键
+     */
+    private final long[][] keys = new long[BUCKETS][];
+
+    /**
+     * 每个桶中的负载，与 keys 一一对应
+     */
+    private final Object[][] values = new Object[BUCKETS][];
+
+    /**
+     * 每个桶中的元素个数
+     */
+    private final int[] sizes = new int[BUCKETS];
+
+    /**
+     * 最近一次取出的键，所有元素的键都不小于它
+     */
+    private long last;
+
+    /**
+     * 元素总数
+     */
+    private int size;
+
+    /**
+     * 缓存的最小键所在的桶和位置，-1 表示缓存失效
+     */
+    private int minBucket = -1, minIndex = -1;
+
+    /**
+     * 写次数，用于迭代器快速失败
+     */
+    private int modCount;
+
+    /**
+     * Creates an empty heap whose keys must be at least {@code Long.MIN_VALUE}.
+     */
+    public RadixHeap() {
+        this(Long.MIN_VALUE);
+    }
+
+    /**
+     * Creates an empty heap whose keys must be at least {@code initialKey}.
+     *
+     * @param initialKey the lower bound for all keys 所有键的下界
+     */
+    public RadixHeap(long initialKey) {
+        this.last = initialKey;
+    }
+
+    /**
+     * Returns the smallest key that may currently be offered, i.e. the key
+     * most recently removed.
+     *
+     * @return the current lower bound for keys 当前允许插入的最小键
+     */
+    public long lastKey() {
+        return last;
+    }
+
+    /**
+     * 计算键所在的桶：与 last 最高的不同位 + 1，相等时为 0
+     */
+    private int bucketOf(long key) {
+        return BUCKETS - 1 - Long.numberOfLeadingZeros(key ^ last);
+    }
+
+    /**
+     * Inserts a payload with the given key.
+     * <p>
+     * 插入负载，O(1)
+     *
+     * @param key   the ordering key, not smaller than {@link #lastKey()} 排序键
+     * @param value the payload 负载
+     * @throws IllegalArgumentException if {@code key} is smaller than {@link #lastKey()}
+     * @throws NullPointerException     if {@code value} is null
+     */
+    public void offer(long key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        if (key < last)
+            throw new IllegalArgumentException("key " + key + " is smaller than last removed key " + last);
+        modCount++;
+        int b = bucketOf(key);
+        int i = append(b, key, value);
+        size++;
+
+        // 维护最小值缓存
+        if (minBucket >= 0 && key < keys[minBucket][minIndex]) {
+            minBucket = b;
+            minIndex = i;
+        }
+    }
+
+    /**
+     * 追加到桶 b 的末尾，返回所在位置
+     */
+    private int append(int b, long key, Object value) {
+        long[] ks = keys[b];
+        int n = sizes[b];
+        if (ks == null) {
+            ks = keys[b] = new long[INITIAL_BUCKET_CAPACITY];
+            values[b] = new Object[INITIAL_BUCKET_CAPACITY];
+        } else if (n == ks.length) {
+            int newCapacity = n + (n >> 1);
+            if (newCapacity < 0) // overflow
+                throw new OutOfMemoryError();
+            ks = keys[b] = Arrays.copyOf(ks, newCapacity);
+            values[b] = Arrays.copyOf(values[b], newCapacity);
+        }
+        ks[n] = key;
+        values[b][n] = value;
+        sizes[b] = n + 1;
+        return n;
+    }
+
+    /**
+     * Locates the minimum without changing {@code last}, so that peeking
+     * never restricts which keys may be offered afterwards.
+     * <p>
+     * 定位最小元素但不修改 last，因此 peek 不会影响之后允许插入的键
+     */
+    private boolean locateMin() {
+        if (size == 0)
+            return false;
+        if (minBucket >= 0)
+            return true;
+        for (int b = 0; b < BUCKETS; b++) {
+            int n = sizes[b];
+            if (n == 0)
+                continue;
+            long[] ks = keys[b];
+            int best = 0;
+            // 桶 0 中的键都等于 last，无需比较
+            if (b > 0) {
+                for (int i = 1; i < n; i++)
+                    if (ks[i] < ks[best])
+                        best = i;
+            }
+            minBucket = b;
+            minIndex = best;
+            return true;
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Returns the smallest key without removing it.
+     *
+     * @return the smallest key
+     * @throws NoSuchElementException if this heap is empty
+     */
+    public long peekKey() {
+        if (!locateMin())
+            throw new NoSuchElementException();
+        return keys[minBucket][minIndex];
+    }
+
+    /**
+     * Returns the payload of the smallest key without removing it.
+     *
+     * @return the payload, or {@code null} if this heap is empty
+     */
+    @SuppressWarnings("unchecked")
+    public V peek() {
+        return locateMin() ? (V) values[minBucket][minIndex] : null;
+    }
+
+    /**
+     * Removes the smallest key and returns its payload.
+     * <p>
+     * 取出最小键对应的负载，均摊 O(log C)
+     *
+     * @return the payload, or {@code null} if this heap is empty
+     */
+    @SuppressWarnings("unchecked")
+    public V poll() {
+        if (!locateMin())
+            return null;
+        modCount++;
+        int b = minBucket, i = minIndex;
+        if (b > 0) {
+            // 最小值不在桶 0：以它作为新的 last，把所在桶重新分配到更低的桶中
+            long[] ks = keys[b];
+            Object[] vs = values[b];
+            int n = sizes[b];
+            last = ks[i];
+            sizes[b] = 0;
+            for (int j = 0; j < n; j++) {
+                append(bucketOf(ks[j]), ks[j], vs[j]);
+                vs[j] = null;
+            }
+        }
+
+        // 此时最小值都在桶 0 中，且都等于 last，取最后一个即可
+        int n = sizes[0] - 1;
+        V result = (V) values[0][n];
+        values[0][n] = null;
+        sizes[0] = n;
+        size--;
+
+        // 桶 0 中还有元素则它们就是最小值，否则缓存失效，下次查找
+        if (n > 0) {
+            minBucket = 0;
+            minIndex = n - 1;
+        } else {
+            minBucket = minIndex = -1;
+        }
+        return result;
+    }
+
+    /**
+     * Removes the first payload equal to {@code o}.  Runs in linear time.
+     *
+     * @param o the payload to remove
+     * @return {@code true} if a payload was removed
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        for (int b = 0; b < BUCKETS; b++) {
+            Object[] vs = values[b];
+            for (int i = 0, n = sizes[b]; i < n; i++) {
+                if (o.equals(vs[i])) {
+                    removeAt(b, i);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 删除桶 b 中位置 i 的元素：用桶内最后一个元素填补空位，桶内元素无序
+     */
+    private void removeAt(int b, int i) {
+        modCount++;
+        int n = --sizes[b];
+        keys[b][i] = keys[b][n];
+        values[b][i] = values[b][n];
+        values[b][n] = null;
+        size--;
+        // 简单起见，删除后使最小值缓存失效
+        minBucket = minIndex = -1;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether this heap is empty.
+     *
+     * @return {@code true} if this heap contains no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries.  {@link #lastKey()} is left unchanged.
+     */
+    public void clear() {
+        modCount++;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (sizes[b] > 0) {
+                Arrays.fill(values[b], 0, sizes[b], null);
+                sizes[b] = 0;
+            }
+        }
+        size = 0;
+        minBucket = minIndex = -1;
+    }
+
+    /**
+     * Returns an iterator over the payloads in no particular order.  The
+     * iterator supports {@code remove} and is fail-fast.
+     *
+     * @return an iterator over the payloads
+     */
+    public Iterator<V> iterator() {
+        return new Itr();
+    }
+
+    private final class Itr implements Iterator<V> {
+        private int bucket = 0;
+        private int index = 0;
+        private int lastBucket = -1, lastIndex = -1;
+        private int expectedModCount = modCount;
+
+        /**
+         * 跳过空桶
+         */
+        private void advance() {
+            while (bucket < BUCKETS && index >= sizes[bucket]) {
+                bucket++;
+                index = 0;
+            }
+        }
+
+        public boolean hasNext() {
+            advance();
+            return bucket < BUCKETS;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            advance();
+            if (bucket >= BUCKETS)
+                throw new NoSuchElementException();
+            lastBucket = bucket;
+            lastIndex = index;
+            return (V) values[bucket][index++];
+        }
+
+        public void remove() {
+            if (lastBucket < 0)
+                throw new IllegalStateException();
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            // 桶内最后一个元素会被移到 lastIndex，下次需要重新访问该位置
+            removeAt(lastBucket, lastIndex);
+            index = lastIndex;
+            lastBucket = lastIndex = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    public String toString() {
+        return "RadixHeap[size=" + size + ", last=" + last + "]";
+    }
+}
@@ -0,0 +1,379 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@linkplain BlockingQueue blocking queue} decorator that releases
+ * elements to consumers at a limited rate, as set by a token bucket with
+ * a burst size.  Producers use the wrapped queue unchanged; {@link #take}
+ * and the {@code poll} methods additionally need a token, and a consumer
+ * that finds the bucket empty waits exactly until the next token is due,
+ * instead of sleeping after the element has been taken.
+ * <p>
+ * 限速的阻塞队列装饰器：按带突发容量的令牌桶向消费者放出元素。生产者照常使用被包装的队列；take 和各个 poll 方法还需要一个令牌，
+ * 桶中没有令牌时消费者恰好等待到下一个令牌产生，而不是取出元素之后再 sleep。
+ *
+ * <p>The bucket holds at most {@code burst} tokens and refills at
+ * {@code permitsPerSecond}, so over any period of {@code t} seconds at
+ * most {@code burst + t * permitsPerSecond} elements are taken.  A token
+ * is only spent when an element is actually returned: an empty queue
+ * does not waste tokens, and tokens accumulate while the queue is empty,
+ * up to {@code burst}.
+ * <p>
+ * 桶中最多 burst 个令牌，每秒补充 permitsPerSecond 个，因此任意 t 秒内最多取出 burst + t * permitsPerSecond 个元素。
+ * 只有真正返回元素时才消耗令牌：队列为空不会浪费令牌，队列为空期间令牌继续累积，最多 burst 个。
+ *
+ * <p>Consumers take turns on a lock of this decorator, so the rate holds
+ * however many consumers there are.  A consumer blocked in {@link #take}
+ * or the timed {@code poll} on an empty wrapped queue keeps its turn, so
+ * meanwhile {@link #poll()} returns {@code null} and {@link #drainTo}
+ * returns zero at once instead of waiting behind it; an element that
+ * arrives goes to the consumer already waiting for it.  {@link #drainTo}
+ * only drains as many elements as there are tokens.  All other methods,
+ * including every insertion method, go straight to the wrapped queue.
+ * <p>
+ * 消费者在装饰器的锁上依次取元素，消费者再多也不会超过速率。在 take 或限时 poll 中等待被包装队列中元素的消费者一直占着锁，
+ * 此时 poll() 立即返回 null、drainTo 立即返回 0，不会排在它后面等待；新到的元素交给已经在等待的消费者。
+ * drainTo 只取出与现有令牌数相同个数的元素。其他方法（包括所有插入方法）直接委托给被包装的队列。
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class RateLimitedBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+      说明：
+
+      1. 令牌桶用 GCRA（虚拟调度）表示，只保存一个时间 tat：每个令牌间隔 interval 纳秒，
+         now >= tat - tolerance 时有令牌可用，其中 tolerance = (burst - 1) * interval；消耗 n 个令牌时 tat = max(tat, now) + n * interval；
+      2. 消费者先持有 takeLock 等到有令牌，再从被包装的队列中取元素，取到元素才消耗令牌。
+         同一时刻只有一个消费者在取元素，不会透支令牌；等待令牌时在 tokenDue 上限时等待，释放锁，可被中断。
+      3. 等待元素时仍持有 takeLock（否则多个消费者都会先占一个令牌再等元素，突发会超过 burst），并置位 awaitingElement。
+         poll()、drainTo 拿不到锁时，如果持有锁的消费者在等元素，说明队列为空，直接返回；否则锁很快就会释放，让出 CPU 后重试。
+         tat 是 volatile，availablePermits 不加锁读取。
+     */
+
+    /**
+     * 被包装的队列
+     */
+    private final BlockingQueue<E> queue;
+
+    /**
+     * 令牌间隔，纳秒
+     */
+    private final long intervalNanos;
+
+    /**
+     * 突发容量
+     */
+    private final int burst;
+
+    /**
+     * 允许提前取令牌的时间，(burst - 1) * intervalNanos
+     */
+    private final long toleranceNanos;
+
+    /**
+     * 理论到达时间，只在持有 takeLock 时修改，volatile 使 availablePermits 可以不加锁读取
+     */
+    private volatile long tat;
+
+    /**
+     * 持有 takeLock 的消费者是否正在被包装的队列上等待元素，只在持有 takeLock 时修改
+     */
+    private volatile boolean awaitingElement;
+
+    /**
+     * 消费者锁
+     */
+    private final ReentrantLock takeLock = new ReentrantLock();
+
+    /**
+     * 等待下一个令牌
+     */
+    private final Condition tokenDue = takeLock.newCondition();
+
+    /**
+     * Creates a decorator that releases the elements of the given queue
+     * at the given rate, with a burst of up to {@code burst} elements.
+     * The bucket starts full.
+     *
+     * @param queue           the queue to rate-limit 被包装的队列
+     * @param permitsPerSecond the number of elements released per second 每秒放出的元素个数
+     * @param burst           the number of tokens the bucket holds 突发容量
+     * @throws NullPointerException     if {@code queue} is null
+     * @throws IllegalArgumentException if {@code permitsPerSecond} is not
+     *                                  positive or exceeds one per nanosecond, or {@code burst} is
+     *                                  less than 1 or too large for the rate
+     */
+    public RateLimitedBlockingQueue(BlockingQueue<E> queue, double permitsPerSecond, int burst) {
+        if (queue == null)
+            throw new NullPointerException();
+        if (!(permitsPerSecond > 0.0D) || permitsPerSecond > 1e9)
+            throw new IllegalArgumentException("permitsPerSecond must be in (0, 1e9]: " + permitsPerSecond);
+        if (burst < 1)
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        long interval = Math.max(1L, Math.round(1e9 / permitsPerSecond));
+        // 突发容量对应的时间不能溢出
+        if (burst - 1 > (Long.MAX_VALUE >>> 2) / interval)
+            throw new IllegalArgumentException("burst too large for the rate: " + burst);
+        this.queue = queue;
+        this.intervalNanos = interval;
+        this.burst = burst;
+        this.toleranceNanos = (burst - 1) * intervalNanos;
+        this.tat = System.nanoTime();
+    }
+
+    /**
+     * Returns the time until a token is available, or a value not
+     * greater than zero if one is.  Call only when holding takeLock.
+     * <p>
+     * 距离下一个令牌可用的纳秒数，不大于 0 表示现在就有
+     */
+    private long tokenDelay(long now) {
+        return tat - toleranceNanos - now;
+    }
+
+    /**
+     * Returns the number of tokens available at {@code now}.  Without
+     * takeLock the result may be stale.
+     */
+    private int tokens(long now) {
+        long d = now - (tat - toleranceNanos);
+        if (d < 0L)
+            return 0;
+        long n = d / intervalNanos + 1;
+        return (n >= burst) ? burst : (int) n;
+    }
+
+    /**
+     * Spends {@code n} tokens.  Call only when holding takeLock.
+     * <p>
+     * 消耗 n 个令牌，桶中积累的令牌不超过 burst 个
+     */
+    private void spend(long now, int n) {
+        long t = tat;
+        tat = ((t - now < 0L) ? now : t) + n * intervalNanos;
+    }
+
+    /**
+     * Waits until a token is available.  Call only when holding takeLock.
+     * <p>
+     * 等待到有令牌可用
+     */
+    private void awaitToken() throws InterruptedException {
+        for (long delay; (delay = tokenDelay(System.nanoTime())) > 0L; )
+            tokenDue.awaitNanos(delay);
+    }
+
+    /**
+     * Acquires takeLock for a non-blocking retrieval, or returns false if
+     * the holder is waiting for an element of the wrapped queue, which
+     * is then empty.
+     * <p>
+     * 为不阻塞的取元素操作获取 takeLock；持有锁的消费者在等待元素（此时队列为空）时返回 false
+     */
+    private boolean tryLockForPoll() {
+        final ReentrantLock takeLock = this.takeLock;
+        while (!takeLock.tryLock()) {
+            if (awaitingElement)
+                return false;
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of the wrapped queue, waiting first
+     * until a token is available, then until an element is.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E take() throws InterruptedException {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            awaitToken();
+            E x;
+            awaitingElement = true;
+            try {
+                x = queue.take();
+            } finally {
+                awaitingElement = false;
+            }
+            spend(System.nanoTime(), 1);
+            return x;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of the wrapped queue if a token is
+     * available now, or returns {@code null} if there is no token or no
+     * element, or another consumer is waiting for an element.
+     */
+    public E poll() {
+        if (!tryLockForPoll())
+            return null;
+        final ReentrantLock takeLock = this.takeLock;
+        try {
+            long now = System.nanoTime();
+            if (tokenDelay(now) > 0L)
+                return null;
+            E x = queue.poll();
+            if (x != null)
+                spend(now, 1);
+            return x;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of the wrapped queue, waiting up to
+     * the specified wait time, in total, for a token and an element.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + nanos;
+        final ReentrantLock takeLock = this.takeLock;
+        if (!takeLock.tryLock(nanos, TimeUnit.NANOSECONDS))
+            return null;
+        try {
+            for (long delay; (delay = tokenDelay(System.nanoTime())) > 0L; ) {
+                nanos = deadline - System.nanoTime();
+                // 超时之前等不到令牌
+                if (nanos < delay)
+                    return null;
+                tokenDue.awaitNanos(delay);
+            }
+            E x;
+            awaitingElement = true;
+            try {
+                x = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } finally {
+                awaitingElement = false;
+            }
+            if (x != null)
+                spend(System.nanoTime(), 1);
+            return x;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tokens in the bucket, that is, how many
+     * elements could be taken right now without waiting for the rate.
+     * <p>
+     * 桶中现有的令牌数
+     *
+     * @return the number of available tokens
+     */
+    public int availablePermits() {
+        return tokens(System.nanoTime());
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most as many elements as there are tokens available now,
+     * and no more than {@code maxElements}, and adds them to the given
+     * collection.  Returns zero at once if another consumer is waiting
+     * for an element.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        if (!tryLockForPoll())
+            return 0;
+        final ReentrantLock takeLock = this.takeLock;
+        try {
+            long now = System.nanoTime();
+            int n = Math.min(maxElements, tokens(now));
+            if (n == 0)
+                return 0;
+            n = queue.drainTo(c, n);
+            if (n > 0)
+                spend(now, n);
+            return n;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    public boolean offer(E e) {
+        return queue.offer(e);
+    }
+
+    public void put(E e) throws InterruptedException {
+        queue.put(e);
+    }
+
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(e, timeout, unit);
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of the wrapped queue,
+     * whether or not a token is available.
+     */
+    public E peek() {
+        return queue.peek();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    public boolean remove(Object o) {
+        return queue.remove(o);
+    }
+
+    public boolean contains(Object o) {
+        return queue.contains(o);
+    }
+
+    public void clear() {
+        queue.clear();
+    }
+
+    public Object[] toArray() {
+        return queue.toArray();
+    }
+
+    public <T> T[] toArray(T[] a) {
+        return queue.toArray(a);
+    }
+
+    /**
+     * Returns the iterator of the wrapped queue.  Removal through it is
+     * not rate-limited.
+     */
+    public Iterator<E> iterator() {
+        return queue.iterator();
+    }
+
+    public String toString() {
+        return queue.toString();
+    }
+}
@@ -0,0 +1,561 @@
+package com.code.queue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of preallocated, mutable event slots in the style of the
+ * LMAX Disruptor.  Unlike the blocking queues of this package, events are
+ * not enqueued: a producer <em>claims</em> a sequence, fills in the slot
+ * that was created up front by an {@link EventFactory}, and then
+ * <em>publishes</em> the sequence.  Consumers never remove anything either;
+ * each one only advances its own {@link Sequence}, so the same event can be
+ * multicast to any number of consumers without copying or allocation.
+ * <p>
+ * Disruptor 风格的环形缓冲区：槽位在创建时通过 EventFactory 预先分配，生产者先申请序号，
+ * 再填充槽位，最后发布序号；消费者只推进自己的序号，不会删除元素，因此同一个事件可以广播给多个消费者，
+ * 整个过程中没有任何对象分配。
+ *
+ * <p>Stage dependencies are expressed with {@link SequenceBarrier}s: a
+ * consumer created with {@code newBarrier(a, b)} only sees an event after
+ * consumers {@code a} and {@code b} have both processed it.  The producer
+ * is held back by the <em>gating sequences</em>, normally the sequences of
+ * the last stage, so that it never overwrites a slot that has not been
+ * consumed yet.
+ * <p>
+ * 消费者之间的依赖通过 SequenceBarrier 表达；生产者受 gatingSequences（通常是最后一级消费者的序号）
+ * 约束，不会覆盖还没有被消费的槽位。
+ *
+ * <p>Typical usage:
+ * <pre> {@code
+ * RingBuffer<LongEvent> rb = RingBuffer.createSingleProducer(LongEvent::new, 1024);
+ * BatchEventProcessor<LongEvent> journal =
+ *     new BatchEventProcessor<>(rb, rb.newBarrier(), journalHandler);
+ * BatchEventProcessor<LongEvent> business =
+ *     new BatchEventProcessor<>(rb, rb.newBarrier(journal.getSequence()), businessHandler);
+ * rb.addGatingSequences(business.getSequence());
+ * // start both processors on their own threads, then:
+ * long seq = rb.next();
+ * try {
+ *     rb.get(seq).set(42L);
+ * } finally {
+ *     rb.publish(seq);
+ * }}</pre>
+ *
+ * @param <E> the type of the preallocated events
+ */
+public class RingBuffer<E> {
+
+    /*
+      说明：
+
+      1. 缓冲区大小必须是 2 的幂次方，序号到下标的映射使用 sequence & indexMask，避免取模运算。
+      2. 单生产者模式下，申请序号不需要 CAS，nextValue/cachedValue 只被生产者线程访问；
+         多生产者模式下，通过 CAS 推进 cursor 来申请序号，发布则写入 availableBuffer，
+         消费者需要借助 availableBuffer 判断哪些序号真正发布了。
+      3. 生产者申请序号时，如果会覆盖最慢的消费者还没处理的槽位，则自旋 + park 等待。
+      4. 消费者等待生产者时，先自旋一段时间，再在 notEmpty 条件上阻塞；只有存在阻塞的消费者时，
+         发布操作才会去获取锁并唤醒，避免每次发布都加锁。
+     */
+
+    /**
+     * 单次 park 的时长，用于生产者等待消费者腾出空间
+     */
+    private static final long PARK_NANOS = 1L;
+
+    /**
+     * 预分配的事件槽位
+     */
+    private final Object[] entries;
+
+    /**
+     * 下标掩码，bufferSize - 1
+     */
+    private final int indexMask;
+
+    /**
+     * 缓冲区大小
+     */
+    private final int bufferSize;
+
+    /**
+     * 是否是多生产者模式
+     */
+    private final boolean multiProducer;
+
+    /**
+     * 单生产者：已发布的最大序号；多生产者：已申请的最大序号
+     */
+    final Sequence cursor = new Sequence();
+
+    /**
+     * 限制生产者的消费者序号，生产者不能超过其中最小值一圈
+     */
+    private volatile Sequence[] gatingSequences = new Sequence[0];
+
+    /**
+     * 类字面量只能是原始类型 RingBuffer.class，因此更新器的类型参数也是原始类型
+     */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<RingBuffer, Sequence[]> GATING =
+            AtomicReferenceFieldUpdater.newUpdater(RingBuffer.class, Sequence[].class, "gatingSequences");
+
+    /**
+     * 单生产者：下一个要申请的序号 - 1，只被生产者线程访问
+     */
+    private long nextValue = Sequence.INITIAL_VALUE;
+
+    /**
+     * 单生产者：缓存的最小消费者序号，减少读取 gatingSequences 的次数
+     */
+    private long cachedValue = Sequence.INITIAL_VALUE;
+
+    /**
+     * 多生产者：缓存的最小消费者序号
+     */
+    private final Sequence gatingSequenceCache = new Sequence();
+
+    /**
+     * 多生产者：每个槽位当前发布到第几圈，未发布为 -1
+     */
+    private final AtomicIntegerArray availableBuffer;
+
+    /**
+     * 多生产者：sequence >>> indexShift 即为圈数
+     */
+    private final int indexShift;
+
+    /**
+     * 消费者阻塞等待时使用的锁
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 有新事件发布的条件变量
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 是否有消费者在 notEmpty 上阻塞，发布时据此决定是否需要唤醒
+     */
+    private final AtomicBoolean signalNeeded = new AtomicBoolean(false);
+
+    RingBuffer(EventFactory<E> factory, int bufferSize, boolean multiProducer) {
+        if (factory == null)
+            throw new NullPointerException();
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must not be less than 1");
+        if (Integer.bitCount(bufferSize) != 1)
+            throw new IllegalArgumentException("bufferSize must be a power of 2");
+        this.bufferSize = bufferSize;
+        this.indexMask = bufferSize - 1;
+        this.multiProducer = multiProducer;
+        this.entries = new Object[bufferSize];
+
+        // 预先分配所有槽位的事件对象
+        for (int i = 0; i < bufferSize; i++)
+            entries[i] = factory.newInstance();
+
+        if (multiProducer) {
+            this.availableBuffer = new AtomicIntegerArray(bufferSize);
+            for (int i = 0; i < bufferSize; i++)
+                availableBuffer.lazySet(i, -1);
+            this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        } else {
+            this.availableBuffer = null;
+            this.indexShift = 0;
+        }
+    }
+
+    /**
+     * Creates a ring buffer that may only be claimed by one thread at a time.
+     * <p>
+     * 创建单生产者环形缓冲区，申请序号无需 CAS
+     *
+     * @param factory    used to preallocate every slot 用于预分配槽位
+     * @param bufferSize the number of slots, must be a power of 2 槽位数，必须为 2 的幂
+     * @param <E>        the event type
+     * @return a new ring buffer
+     * @throws IllegalArgumentException if {@code bufferSize} is not a
+     *                                  positive power of 2
+     */
+    public static <E> RingBuffer<E> createSingleProducer(EventFactory<E> factory, int bufferSize) {
+        return new RingBuffer<E>(factory, bufferSize, false);
+    }
+
+    /**
+     * Creates a ring buffer that may be claimed concurrently by any number
+     * of threads.
+     * <p>
+     * 创建多生产者环形缓冲区，申请序号基于 CAS
+     *
+     * @param factory    used to preallocate every slot 用于预分配槽位
+     * @param bufferSize the number of slots, must be a power of 2 槽位数，必须为 2 的幂
+     * @param <E>        the event type
+     * @return a new ring buffer
+     * @throws IllegalArgumentException if {@code bufferSize} is not a
+     *                                  positive power of 2
+     */
+    public static <E> RingBuffer<E> createMultiProducer(EventFactory<E> factory, int bufferSize) {
+        return new RingBuffer<E>(factory, bufferSize, true);
+    }
+
+    /**
+     * Returns the preallocated event for the given sequence.  Producers call
+     * this between {@link #next} and {@link #publish}; consumers call it
+     * for sequences returned by {@link SequenceBarrier#waitFor}.
+     * <p>
+     * 获取序号对应槽位上的预分配事件
+     *
+     * @param sequence the sequence 序号
+     * @return the event in the slot
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & indexMask];
+    }
+
+    /**
+     * Returns the number of slots.
+     *
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the current cursor.  For a single producer this is the
+     * highest published sequence; for multiple producers it is the highest
+     * claimed sequence.
+     *
+     * @return the cursor value
+     */
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    /**
+     * Adds consumer sequences that the producer must not overtake by more
+     * than one lap of the ring.
+     * <p>
+     * 添加门控序号，生产者最多领先其中最小值一圈
+     *
+     * @param sequences the sequences to add
+     */
+    public void addGatingSequences(Sequence... sequences) {
+        Sequence[] current, updated;
+        long cursorValue;
+        do {
+            current = gatingSequences;
+            updated = Arrays.copyOf(current, current.length + sequences.length);
+            cursorValue = cursor.get();
+            int index = current.length;
+            for (Sequence s : sequences) {
+                // 新加入的消费者从当前位置开始，不能回头去消费已经可能被覆盖的槽位
+                s.set(cursorValue);
+                updated[index++] = s;
+            }
+        } while (!GATING.compareAndSet(this, current, updated));
+
+        // 再次设置，防止期间生产者推进了 cursor
+        cursorValue = cursor.get();
+        for (Sequence s : sequences)
+            s.set(cursorValue);
+    }
+
+    /**
+     * Removes a gating sequence, for example when a consumer is halted.
+     *
+     * @param sequence the sequence to remove
+     * @return {@code true} if the sequence was found
+     */
+    public boolean removeGatingSequence(Sequence sequence) {
+        Sequence[] current, updated;
+        do {
+            current = gatingSequences;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == sequence) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return false;
+            updated = new Sequence[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        } while (!GATING.compareAndSet(this, current, updated));
+        return true;
+    }
+
+    /**
+     * Creates a barrier that consumers use to wait for events.  With no
+     * arguments the barrier tracks the producer; otherwise it tracks the
+     * slowest of the given consumer sequences, which makes the new
+     * consumer a later stage of the pipeline.
+     * <p>
+     * 创建序号屏障。无参时等待生产者发布；传入依赖的消费者序号时，等待这些消费者都处理完毕。
+     *
+     * @param dependentSequences sequences of the stages to run after 依赖的上游消费者序号
+     * @return a new barrier
+     */
+    public SequenceBarrier newBarrier(Sequence... dependentSequences) {
+        return new SequenceBarrier(this, dependentSequences);
+    }
+
+    /**
+     * Claims the next sequence, waiting for the slowest gating consumer if
+     * the ring is full.
+     * <p>
+     * 申请下一个序号，缓冲区满时等待最慢的消费者
+     *
+     * @return the claimed sequence
+     */
+    public long next() {
+        return next(1);
+    }
+
+    /**
+     * Claims the next {@code n} sequences as a batch, waiting for the
+     * slowest gating consumer if the ring is full.
+     * <p>
+     * 批量申请 n 个序号，返回最大的那个序号，[返回值 - n + 1, 返回值] 都归调用方所有
+     *
+     * @param n the number of sequences to claim 申请个数
+     * @return the highest claimed sequence
+     * @throws IllegalArgumentException if {@code n} is less than 1 or
+     *                                  greater than the buffer size
+     */
+    public long next(int n) {
+        if (n < 1 || n > bufferSize)
+            throw new IllegalArgumentException("n must be > 0 and <= bufferSize");
+        return multiProducer ? nextMulti(n) : nextSingle(n);
+    }
+
+    /**
+     * Claims the next sequence only if a slot is free right now.
+     * <p>
+     * 尝试申请序号，缓冲区已满时立即返回 -1，不等待
+     *
+     * @return the claimed sequence, or {@code -1} if the ring is full
+     */
+    public long tryNext() {
+        if (multiProducer) {
+            long current, next;
+            do {
+                current = cursor.get();
+                next = current + 1;
+                if (!hasCapacity(next))
+                    return -1L;
+            } while (!cursor.compareAndSet(current, next));
+            return next;
+        } else {
+            long next = nextValue + 1;
+            if (!hasCapacity(next))
+                return -1L;
+            nextValue = next;
+            return next;
+        }
+    }
+
+    /**
+     * 判断申请 sequence 是否会覆盖未消费的槽位
+     */
+    private boolean hasCapacity(long sequence) {
+        long wrapPoint = sequence - bufferSize;
+        long cached = multiProducer ? gatingSequenceCache.get() : cachedValue;
+        if (wrapPoint > cached) {
+            long minSequence = Sequence.getMinimumSequence(gatingSequences, cursor.get());
+            if (multiProducer)
+                gatingSequenceCache.set(minSequence);
+            else
+                cachedValue = minSequence;
+            return wrapPoint <= minSequence;
+        }
+        return true;
+    }
+
+    private long nextSingle(int n) {
+        long next = nextValue + n;
+
+        // 绕一圈后的位置，如果大于最慢的消费者序号，说明会覆盖还没消费的槽位
+        long wrapPoint = next - bufferSize;
+        if (wrapPoint > cachedValue) {
+            // 让消费者能看到之前已经发布的数据
+            cursor.setVolatile(nextValue);
+            long minSequence;
+            while (wrapPoint > (minSequence = Sequence.getMinimumSequence(gatingSequences, nextValue)))
+                LockSupport.parkNanos(PARK_NANOS);
+            cachedValue = minSequence;
+        }
+        nextValue = next;
+        return next;
+    }
+
+    private long nextMulti(int n) {
+        long current, next;
+        for (; ; ) {
+            current = cursor.get();
+            next = current + n;
+            long wrapPoint = next - bufferSize;
+            long cached = gatingSequenceCache.get();
+
+            if (wrapPoint > cached || cached > current) {
+                long minSequence = Sequence.getMinimumSequence(gatingSequences, current);
+                if (wrapPoint > minSequence) {
+                    // 空间不足，等待消费者
+                    LockSupport.parkNanos(PARK_NANOS);
+                    continue;
+                }
+                gatingSequenceCache.set(minSequence);
+            } else if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Publishes a claimed sequence, making its event visible to consumers.
+     * <p>
+     * 发布序号，消费者随后可以看到该槽位的事件
+     *
+     * @param sequence the sequence to publish
+     */
+    public void publish(long sequence) {
+        if (multiProducer) {
+            setAvailable(sequence);
+        } else {
+            cursor.set(sequence);
+        }
+        signalAllWhenBlocking();
+    }
+
+    /**
+     * Publishes a batch of claimed sequences.
+     *
+     * @param lo the first sequence of the batch
+     * @param hi the last sequence of the batch
+     */
+    public void publish(long lo, long hi) {
+        if (multiProducer) {
+            for (long l = lo; l <= hi; l++)
+                setAvailable(l);
+        } else {
+            cursor.set(hi);
+        }
+        signalAllWhenBlocking();
+    }
+
+    /**
+     * 有消费者阻塞时才加锁唤醒
+     */
+    private void signalAllWhenBlocking() {
+        if (signalNeeded.getAndSet(false)) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Blocks until the cursor reaches {@code sequence} or the barrier is
+     * alerted.  Called by {@link SequenceBarrier} after spinning failed.
+     * <p>
+     * 阻塞等待 cursor 到达 sequence，或者屏障被 alert
+     */
+    void awaitCursor(long sequence, SequenceBarrier barrier)
+            throws InterruptedException, SequenceBarrier.AlertException {
+        if (cursor.get() >= sequence)
+            return;
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (cursor.get() < sequence) {
+                barrier.checkAlert();
+                // 先声明需要唤醒，再检查一次，防止错过发布
+                signalNeeded.set(true);
+                if (cursor.get() >= sequence)
+                    break;
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up every consumer blocked on this ring, used by
+     * {@link SequenceBarrier#alert}.
+     */
+    void wakeAll() {
+        signalNeeded.set(true);
+        signalAllWhenBlocking();
+    }
+
+    private void setAvailable(long sequence) {
+        availableBuffer.lazySet((int) sequence & indexMask, (int) (sequence >>> indexShift));
+    }
+
+    /**
+     * Returns whether the given sequence has been published.
+     *
+     * @param sequence the sequence to check
+     * @return {@code true} if the event may be consumed
+     */
+    public boolean isAvailable(long sequence) {
+        if (!multiProducer)
+            return sequence <= cursor.get();
+        return availableBuffer.get((int) sequence & indexMask) == (int) (sequence >>> indexShift);
+    }
+
+    /**
+     * Returns the highest sequence in {@code [lo, available]} such that all
+     * sequences up to it have been published.  With multiple producers a
+     * sequence may be claimed but not yet published, which creates a gap.
+     * <p>
+     * 多生产者模式下，序号可能已被申请但还未发布，需要找出连续已发布的最大序号
+     */
+    long getHighestPublishedSequence(long lo, long available) {
+        if (!multiProducer)
+            return available;
+        for (long sequence = lo; sequence <= available; sequence++) {
+            if (!isAvailable(sequence))
+                return sequence - 1;
+        }
+        return available;
+    }
+
+    /**
+     * Returns the number of slots that can be claimed without waiting.
+     *
+     * @return the remaining capacity
+     */
+    public long remainingCapacity() {
+        long consumed = Sequence.getMinimumSequence(gatingSequences, cursor.get());
+        long produced = multiProducer ? cursor.get() : nextValue;
+        return bufferSize - (produced - consumed);
+    }
+
+    /**
+     * Factory that preallocates the events of a {@link RingBuffer}.
+     * <p>
+     * 事件工厂，用于预分配环形缓冲区中的事件对象
+     *
+     * @param <E> the event type
+     */
+    @FunctionalInterface
+    public interface EventFactory<E> {
+        E newInstance();
+    }
+}
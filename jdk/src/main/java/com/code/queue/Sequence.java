@@ -0,0 +1,148 @@
+package com.code.queue;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Left-hand cache line padding for {@link Sequence}.
+ * <p>
+ * 左侧缓存行填充，字段布局通过继承层次保证，JVM 不会把子类字段重排到父类字段之前。
+ */
+class SequenceLhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+/**
+ * The padded value of a {@link Sequence}.
+ */
+class SequenceValue extends SequenceLhsPadding {
+    protected volatile long value;
+}
+
+/**
+ * Right-hand cache line padding for {@link Sequence}.
+ */
+class SequenceRhsPadding extends SequenceValue {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+}
+
+/**
+ * A concurrent sequence used to track the progress of the producer and
+ * of every consumer of a {@link RingBuffer}.  The value is padded on both
+ * sides so that two sequences never share a cache line.
+ * <p>
+ * 并发序号，用于追踪 RingBuffer 生产者以及每个消费者的进度。value 两侧做了缓存行填充，避免伪共享。
+ *
+ * <p>{@link #set} is an ordered (lazy) write: it is cheaper than a volatile
+ * write and is sufficient for a single writer publishing its own progress.
+ * <p>
+ * set 是有序写（lazySet），比 volatile 写开销小，对于单写者发布自己的进度已经足够。
+ */
+public class Sequence extends SequenceRhsPadding {
+
+    /**
+     * 序号初始值，第一个可用的序号是 0
+     */
+    static final long INITIAL_VALUE = -1L;
+
+    private static final AtomicLongFieldUpdater<SequenceValue> VALUE =
+            AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    /**
+     * Creates a sequence initialised to {@code -1}.
+     */
+    public Sequence() {
+        this(INITIAL_VALUE);
+    }
+
+    /**
+     * Creates a sequence with the given initial value.
+     *
+     * @param initialValue the initial value 初始值
+     */
+    public Sequence(long initialValue) {
+        VALUE.lazySet(this, initialValue);
+    }
+
+    /**
+     * Volatile read of this sequence.
+     *
+     * @return the current value
+     */
+    public long get() {
+        return value;
+    }
+
+    /**
+     * Ordered write of this sequence, i.e. a store-store barrier
+     * before the write but no store-load barrier after it.
+     * <p>
+     * 有序写，只保证写之前的操作不会重排到写之后
+     *
+     * @param value the new value
+     */
+    public void set(long value) {
+        VALUE.lazySet(this, value);
+    }
+
+    /**
+     * Volatile write of this sequence.
+     *
+     * @param value the new value
+     */
+    public void setVolatile(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Atomically sets the value if it currently equals {@code expected}.
+     *
+     * @param expected the expected current value 期望值
+     * @param update   the new value 新值
+     * @return {@code true} if successful
+     */
+    public boolean compareAndSet(long expected, long update) {
+        return VALUE.compareAndSet(this, expected, update);
+    }
+
+    /**
+     * Atomically adds the given increment.
+     *
+     * @param increment the value to add
+     * @return the updated value
+     */
+    public long addAndGet(long increment) {
+        return VALUE.addAndGet(this, increment);
+    }
+
+    /**
+     * Atomically increments by one.
+     *
+     * @return the updated value
+     */
+    public long incrementAndGet() {
+        return addAndGet(1L);
+    }
+
+    /**
+     * Returns the minimum of the given sequences, or {@code minimum} if
+     * no sequences are given or all are greater.
+     * <p>
+     * 返回一组序号中的最小值，用于计算最慢的消费者进度
+     *
+     * @param sequences the sequences to inspect
+     * @param minimum   upper bound of the result
+     * @return the smallest value found
+     */
+    static long getMinimumSequence(Sequence[] sequences, long minimum) {
+        for (Sequence s : sequences) {
+            long v = s.get();
+            if (v < minimum)
+                minimum = v;
+        }
+        return minimum;
+    }
+
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,162 @@
+package com.code.queue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coordination barrier through which a consumer of a {@link RingBuffer}
+ * waits for events.  A barrier without dependencies waits for the
+ * producer's cursor; a barrier with dependencies waits until every
+ * dependent consumer has processed the sequence, which is how pipeline
+ * stages are ordered.
+ * <p>
+ * 序号屏障，消费者通过它等待可消费的事件。没有依赖时等待生产者发布；有依赖时等待所有上游消费者都处理完毕，
+ * 以此实现消费者之间的先后顺序。
+ *
+ * <p>Waiting is adaptive: the barrier first busy-spins, then yields, and
+ * finally blocks on the ring buffer (when waiting for the producer) or
+ * parks briefly (when waiting for another consumer).
+ * <p>
+ * 等待策略：先自旋，再让出 CPU，最后阻塞（等待生产者）或者短暂 park（等待上游消费者）。
+ */
+public final class SequenceBarrier {
+
+    /**
+     * 自旋次数
+     */
+    private static final int SPIN_TRIES = 100;
+
+    /**
+     * 让出 CPU 的次数
+     */
+    private static final int YIELD_TRIES = 100;
+
+    /**
+     * 等待上游消费者时单次 park 的时长
+     */
+    private static final long PARK_NANOS = 1000L;
+
+    private final RingBuffer<?> ringBuffer;
+
+    /**
+     * 依赖的上游消费者序号，为空时依赖生产者
+     */
+    private final Sequence[] dependentSequences;
+
+    /**
+     * 是否已被通知停止等待
+     */
+    private volatile boolean alerted = false;
+
+    SequenceBarrier(RingBuffer<?> ringBuffer, Sequence[] dependentSequences) {
+        this.ringBuffer = ringBuffer;
+        this.dependentSequences = dependentSequences.clone();
+    }
+
+    /**
+     * Waits until {@code sequence} may be consumed and returns the highest
+     * sequence that may be consumed, which can be greater than the one
+     * requested so that the caller can process a batch.  The result may be
+     * smaller than {@code sequence} when another producer has claimed but
+     * not yet published it; callers should simply wait again.
+     * <p>
+     * 等待直到 sequence 可消费，返回当前可消费的最大序号（可能大于 sequence，调用方可以批量处理）。
+     * 多生产者模式下如果有序号已申请但未发布，返回值可能小于 sequence，调用方再次等待即可。
+     *
+     * @param sequence the sequence to wait for 期望消费的序号
+     * @return the highest available sequence 可消费的最大序号
+     * @throws AlertException       if the barrier was alerted 屏障被通知停止
+     * @throws InterruptedException if interrupted while blocking
+     */
+    public long waitFor(long sequence) throws AlertException, InterruptedException {
+        checkAlert();
+
+        long available;
+        int counter = SPIN_TRIES + YIELD_TRIES;
+        while ((available = availableSequence()) < sequence) {
+            checkAlert();
+            if (counter > YIELD_TRIES) {
+                --counter;
+            } else if (counter > 0) {
+                --counter;
+                Thread.yield();
+            } else if (dependentSequences.length == 0) {
+                // 等待生产者，阻塞直到有新事件发布
+                ringBuffer.awaitCursor(sequence, this);
+            } else {
+                // 等待上游消费者，上游消费者不会唤醒下游，只能短暂 park
+                LockSupport.parkNanos(PARK_NANOS);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+
+        return ringBuffer.getHighestPublishedSequence(sequence, available);
+    }
+
+    /**
+     * 依赖生产者时取 cursor，否则取上游消费者中最小的序号
+     */
+    private long availableSequence() {
+        long cursor = ringBuffer.cursor.get();
+        return dependentSequences.length == 0 ?
+                cursor : Sequence.getMinimumSequence(dependentSequences, cursor);
+    }
+
+    /**
+     * Returns the current value this barrier is tracking.
+     *
+     * @return the cursor or the minimum dependent sequence
+     */
+    public long getCursor() {
+        return availableSequence();
+    }
+
+    /**
+     * Alerts waiting consumers so that they stop waiting, used to halt
+     * processors.
+     * <p>
+     * 通知等待中的消费者停止等待
+     */
+    public void alert() {
+        alerted = true;
+        ringBuffer.wakeAll();
+    }
+
+    /**
+     * Clears a previous alert.
+     */
+    public void clearAlert() {
+        alerted = false;
+    }
+
+    /**
+     * Returns whether the barrier is alerted.
+     *
+     * @return {@code true} if alerted
+     */
+    public boolean isAlerted() {
+        return alerted;
+    }
+
+    void checkAlert() throws AlertException {
+        if (alerted)
+            throw AlertException.INSTANCE;
+    }
+
+    /**
+     * Thrown from {@link #waitFor} once the barrier has been alerted.  A
+     * shared instance without a stack trace is used since it is only a
+     * control-flow signal.
+     * <p>
+     * 屏障被通知后从 waitFor 抛出，仅用于流程控制，因此使用不带堆栈的单例
+     */
+    public static final class AlertException extends Exception {
+        private static final long serialVersionUID = 3240637429382812578L;
+
+        static final AlertException INSTANCE = new AlertException();
+
+        private AlertException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package com.code.queue;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded {@linkplain BlockingQueue blocking queue} of {@code Delayed}
+ * elements with the same contract as {@link DelayQueue}, striped over
+ * several independent heaps so that producers do not serialize on a
+ * single lock.
+ * <p>
+ * 分片的无界阻塞延时队列，语义与 DelayQueue 相同，但元素分散在多个独立的堆中，生产者不再竞争同一把锁。
+ *
+ * <p>Every shard is a {@link PriorityQueue} guarded by its own lock, and
+ * publishes the deadline of its head in a volatile field.  A producer
+ * locks only the shard it is assigned to (trying the other shards first
+ * if that one is busy), and touches the consumer side only when its
+ * element expires earlier than the deadline the waiting leader sleeps
+ * for.  Consumers coordinate through a separate lock with the
+ * leader-follower scheme of {@link DelayQueue}: the leader merges the
+ * shard heads by their published deadlines, takes the earliest one if it
+ * has expired, and otherwise waits until it does.
+ * <p>
+ * 每个分片是一个由独立的锁保护的 PriorityQueue，并通过 volatile 字段发布堆顶的截止时间。生产者只锁住分配给它的分片
+ * （如果该分片繁忙，先尝试其他分片），只有当元素比 leader 正在等待的截止时间更早到期时才需要唤醒消费者。
+ * 消费者之间通过另一把锁和 DelayQueue 相同的 leader-follower 模式协调：leader 按截止时间合并各分片的堆顶，
+ * 最早的已经到期就取出，否则等待到它到期。
+ *
+ * <p>Elements are returned in deadline order across shards, up to the
+ * skew of reading the shard heads while producers are inserting: an
+ * element inserted concurrently with a {@code take} may be returned
+ * after an element that expires later, but never before its own delay
+ * has expired.  {@link #size} sums the shards without a global lock and
+ * is therefore only an estimate under concurrent updates.
+ * <p>
+ * 跨分片按截止时间顺序返回元素，误差仅来自读取堆顶时并发的插入：与 take 并发插入的元素可能晚于一个更晚到期的元素返回，
+ * 但绝不会在自身到期前返回。size 不加全局锁，并发修改时只是估计值。
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class ShardedDelayQueue<E extends Delayed> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+      说明：
+
+      1. 生产者与消费者之间不共享锁，唤醒依赖 Dekker 式的可见性：
+         生产者先写分片的 headDeadline，再读 wakeDeadline；leader 先写 wakeDeadline，再重新读各分片的 headDeadline。
+         两者都是 volatile，因此要么生产者看到 leader 的等待时间并唤醒它，要么 leader 看到新的堆顶而不进入等待；
+      2. 没有 leader 时 wakeDeadline 为 Long.MIN_VALUE，生产者不会去获取消费者锁；
+         队列为空时 leader 的 wakeDeadline 为 Long.MAX_VALUE，任何插入都会唤醒它；
+      3. 只有持有消费者锁的线程才会从分片中取出元素，因此 leader 看到的最早堆顶只可能变得更早，不会被其他消费者取走。
+     */
+
+    /**
+     * 没有 leader 等待时 wakeDeadline 的取值
+     */
+    private static final long NO_WAITER = Long.MIN_VALUE;
+
+    /**
+     * 分片
+     */
+    private final Shard<E>[] shards;
+
+    /**
+     * 分片掩码，shards.length - 1
+     */
+    private final int mask;
+
+    /**
+     * 消费者锁，take/poll/drainTo 之间互斥
+     */
+    private final transient ReentrantLock takeLock = new ReentrantLock();
+
+    /**
+     * 有元素到期或需要新 leader 时发出信号
+     */
+    private final Condition available = takeLock.newCondition();
+
+    /**
+     * 等待最早堆顶的线程，含义同 DelayQueue.leader
+     */
+    private Thread leader = null;
+
+    /**
+     * leader 等待到的截止时间，比它更早到期的插入需要唤醒 leader
+     */
+    private volatile long wakeDeadline = NO_WAITER;
+
+    /**
+     * Creates an empty queue with one shard per available processor,
+     * rounded up to a power of 2.
+     */
+    public ShardedDelayQueue() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an empty queue with the given number of shards.
+     *
+     * @param shardCount the number of shards, rounded up to a power of 2 分片数，向上取整为 2 的幂
+     * @throws IllegalArgumentException if {@code shardCount} is less than 1
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedDelayQueue(int shardCount) {
+        if (shardCount < 1 || shardCount > (1 << 16))
+            throw new IllegalArgumentException("shardCount must be in [1, 65536]: " + shardCount);
+        int n = 1;
+        while (n < shardCount)
+            n <<= 1;
+        this.shards = (Shard<E>[]) new Shard<?>[n];
+        for (int i = 0; i < n; i++)
+            shards[i] = new Shard<E>();
+        this.mask = n - 1;
+    }
+
+    /**
+     * Creates a queue with default settings initially containing the
+     * elements of the given collection.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the collection or any element is null
+     */
+    public ShardedDelayQueue(Collection<? extends E> c) {
+        this();
+        this.addAll(c);
+    }
+
+    /**
+     * 元素的绝对截止时间，防止溢出
+     */
+    static long deadlineOf(Delayed e, long now) {
+        long delay = e.getDelay(NANOSECONDS);
+        // nanoTime 可能为负数，不能用 Long.MAX_VALUE - now 判断
+        long deadline = now + delay;
+        return (delay > 0 && deadline < now) ? Long.MAX_VALUE - 1 : deadline;
+    }
+
+    /**
+     * Inserts the specified element into this queue.
+     * <p>
+     * 插入元素，只锁住一个分片
+     *
+     * @param e the element to add
+     * @return {@code true}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        Shard<E> shard = lockShard();
+        long deadline;
+        try {
+            deadline = shard.offer(e);
+        } finally {
+            shard.lock.unlock();
+        }
+        // 先写 headDeadline（在 shard.offer 中），再读 wakeDeadline
+        if (deadline != Long.MAX_VALUE && deadline < wakeDeadline)
+            signalEarlier(deadline);
+        return true;
+    }
+
+    /**
+     * Locks a shard for insertion: the shard of the current thread if it
+     * is free, otherwise the first free one, otherwise waits for the
+     * shard of the current thread.
+     * <p>
+     * 选择并锁住一个分片：优先当前线程对应的分片，繁忙则尝试其他分片，都繁忙再阻塞等待自己的分片
+     */
+    private Shard<E> lockShard() {
+        Shard<E>[] shards = this.shards;
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        int start = (h * 0x9e3779b9) & mask;
+        for (int i = 0; i <= mask; i++) {
+            Shard<E> s = shards[(start + i) & mask];
+            if (s.lock.tryLock())
+                return s;
+        }
+        Shard<E> s = shards[start];
+        s.lock.lock();
+        return s;
+    }
+
+    /**
+     * 插入的元素比 leader 等待的时间更早到期，重新选择 leader
+     */
+    private void signalEarlier(long deadline) {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            if (deadline < wakeDeadline) {
+                leader = null;
+                wakeDeadline = NO_WAITER;
+                available.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    /**
+     * Inserts the specified element. As the queue is unbounded this method
+     * will never block.
+     *
+     * @param e the element to add
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Inserts the specified element. As the queue is unbounded this method
+     * will never block.
+     *
+     * @param e       the element to add
+     * @param timeout This parameter is ignored as the method never blocks
+     * @param unit    This parameter is ignored as the method never blocks
+     * @return {@code true}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Returns the shard whose head expires first, or {@code null} if all
+     * shards are empty.
+     * <p>
+     * 合并各分片的堆顶，返回最早到期的分片
+     */
+    private Shard<E> earliestShard() {
+        Shard<E> best = null;
+        long min = Long.MAX_VALUE;
+        for (Shard<E> s : shards) {
+            long d = s.headDeadline;
+            if (d < min) {
+                min = d;
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 最早的堆顶截止时间，全部为空时为 Long.MAX_VALUE
+     */
+    private long earliestDeadline() {
+        Shard<E> s = earliestShard();
+        return s == null ? Long.MAX_VALUE : s.headDeadline;
+    }
+
+    /**
+     * Removes the earliest head if it has expired.  Call only when holding
+     * takeLock.
+     */
+    private E pollExpired() {
+        // assert takeLock.isHeldByCurrentThread();
+        for (; ; ) {
+            Shard<E> s = earliestShard();
+            if (s == null)
+                return null;
+            s.lock.lock();
+            try {
+                E first = s.q.peek();
+                if (first != null) {
+                    if (first.getDelay(NANOSECONDS) > 0)
+                        return null;
+                    s.poll();
+                    return first;
+                }
+            } finally {
+                s.lock.unlock();
+            }
+            // 堆顶被 remove/clear 删除了，重新选择
+        }
+    }
+
+    /**
+     * Retrieves and removes an expired element, or returns {@code null} if
+     * this queue has no elements with an expired delay.
+     *
+     * @return the earliest expired element, or {@code null}
+     */
+    public E poll() {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            return pollExpired();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the earliest expired element, waiting if
+     * necessary until one is available.
+     *
+     * @return the earliest expired element
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E take() throws InterruptedException {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                E e = pollExpired();
+                if (e != null)
+                    return e;
+                if (leader != null) {
+                    available.await();
+                    continue;
+                }
+                Thread thisThread = Thread.currentThread();
+                leader = thisThread;
+                try {
+                    long deadline = earliestDeadline();
+                    wakeDeadline = deadline;
+                    // 再读一次堆顶，与生产者的写入配对，避免丢失唤醒
+                    if (earliestDeadline() < deadline)
+                        continue;
+                    if (deadline == Long.MAX_VALUE)
+                        available.await();
+                    else
+                        available.awaitNanos(deadline - System.nanoTime());
+                } finally {
+                    if (leader == thisThread) {
+                        leader = null;
+                        wakeDeadline = NO_WAITER;
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && earliestShard() != null)
+                available.signal();
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the earliest expired element, waiting if
+     * necessary until one is available or the specified wait time elapses.
+     *
+     * @return the earliest expired element, or {@code null} if the
+     * waiting time elapsed first
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                E e = pollExpired();
+                if (e != null)
+                    return e;
+                if (nanos <= 0)
+                    return null;
+                if (leader != null) {
+                    nanos = available.awaitNanos(nanos);
+                    continue;
+                }
+                // 超时时间比最早的截止时间还短时也要成为 leader，否则空队列上的插入无法唤醒它
+                Thread thisThread = Thread.currentThread();
+                leader = thisThread;
+                try {
+                    long now = System.nanoTime();
+                    long deadline = earliestDeadline();
+                    wakeDeadline = deadline;
+                    if (earliestDeadline() < deadline)
+                        continue;
+                    long delay = (deadline == Long.MAX_VALUE) ? Long.MAX_VALUE : deadline - now;
+                    if (nanos < delay) {
+                        nanos = available.awaitNanos(nanos);
+                    } else {
+                        long timeLeft = available.awaitNanos(delay);
+                        nanos -= delay - timeLeft;
+                    }
+                } finally {
+                    if (leader == thisThread) {
+                        leader = null;
+                        wakeDeadline = NO_WAITER;
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && earliestShard() != null)
+                available.signal();
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the element that expires first, or
+     * returns {@code null} if this queue is empty.
+     *
+     * @return the head of this queue, or {@code null} if empty
+     */
+    public E peek() {
+        for (; ; ) {
+            Shard<E> s = earliestShard();
+            if (s == null)
+                return null;
+            s.lock.lock();
+            try {
+                E first = s.q.peek();
+                if (first != null)
+                    return first;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of elements, summed over the shards without a
+     * global lock.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        long n = 0;
+        for (Shard<E> s : shards)
+            n += s.size;
+        return (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because the queue is not
+     * capacity constrained.
+     *
+     * @return {@code Integer.MAX_VALUE}
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            int n = 0;
+            for (E e; n < maxElements && (e = pollExpired()) != null; ) {
+                c.add(e);
+                ++n;
+            }
+            return n;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present, whether or not it has expired.
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        for (Shard<E> s : shards) {
+            s.lock.lock();
+            try {
+                if (s.remove(o))
+                    return true;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all of the elements from this queue, one shard at a time.
+     */
+    public void clear() {
+        for (Shard<E> s : shards) {
+            s.lock.lock();
+            try {
+                s.clear();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    public Object[] toArray() {
+        List<Object> list = new ArrayList<Object>();
+        for (Shard<E> s : shards) {
+            s.lock.lock();
+            try {
+                for (E e : s.q)
+                    list.add(e);
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return list.toArray();
+    }
+
+    /**
+     * Returns an iterator over all the elements (both expired and
+     * unexpired) in this queue, in no particular order.  The iterator works
+     * on a snapshot and is weakly consistent.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    /**
+     * Snapshot iterator, removal goes through remove(Object).
+     */
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            ShardedDelayQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
+    /**
+     * A heap with its own lock, publishing the deadline of its head.  All
+     * methods are called while holding {@code lock}.
+     * <p>
+     * 分片：带独立锁的堆，发布堆顶的截止时间。所有方法都在持有 lock 时调用
+     */
+    static final class Shard<E extends Delayed> {
+        final ReentrantLock lock = new ReentrantLock();
+
+        final PriorityQueue<E> q = new PriorityQueue<E>();
+
+        /**
+         * 堆顶的截止时间，为空时为 Long.MAX_VALUE
+         */
+        volatile long headDeadline = Long.MAX_VALUE;
+
+        /**
+         * 元素个数，供 size() 无锁读取
+         */
+        volatile int size;
+
+        /**
+         * 插入元素，成为新堆顶时返回其截止时间，否则返回 Long.MAX_VALUE
+         */
+        long offer(E e) {
+            q.offer(e);
+            size = q.size();
+            if (q.peek() != e)
+                return Long.MAX_VALUE;
+            long deadline = deadlineOf(e, System.nanoTime());
+            headDeadline = deadline;
+            return deadline;
+        }
+
+        void poll() {
+            q.poll();
+            afterRemoval();
+        }
+
+        boolean remove(Object o) {
+            if (!q.remove(o))
+                return false;
+            afterRemoval();
+            return true;
+        }
+
+        void clear() {
+            q.clear();
+            afterRemoval();
+        }
+
+        private void afterRemoval() {
+            size = q.size();
+            E head = q.peek();
+            headDeadline = (head == null) ? Long.MAX_VALUE : deadlineOf(head, System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded concurrent priority queue backed by a lock-free skip list.
+ * Insertion and {@link #poll} never take a lock; only {@link #take} and
+ * the timed {@link #poll(long, TimeUnit) poll} park on a lock when the
+ * queue is empty, which makes this class a {@link BlockingQueue} for its
+ * consumers while producers never block.
+ * <p>
+ * 基于无锁跳表的无界并发优先队列。插入和 poll 都不加锁，只有队列为空时 take 和超时 poll 才会在锁上阻塞，
+ * 因此对消费者而言它是一个阻塞队列，而生产者永远不会阻塞。
+ *
+ * <p>Elements are kept in order in the bottom level of the skip list, so
+ * the head is always the first node.  {@link #poll} walks the bottom
+ * level from the head and <em>logically deletes</em> the first node it
+ * can claim with a single CAS on the node's {@code claimed} flag; the
+ * claiming thread then unlinks the node from every level.  Equal
+ * elements are returned in insertion order.
+ * <p>
+ * 元素按顺序保存在跳表的最底层，队首总是第一个节点。poll 从头开始遍历最底层，用一次 CAS 设置节点的 claimed 标记来
+ * 逻辑删除它能抢到的第一个节点，再由抢到的线程把节点从各层中摘除。相等的元素按插入顺序返回。
+ *
+ * <p>When no insertion is in progress, {@link #poll} always returns the
+ * least element.  An element inserted concurrently with a
+ * {@code poll} may be passed over by it, in which case the
+ * {@code poll} returns a greater element that was already present.
+ * {@link #size} is maintained separately from the list and is only an
+ * estimate under concurrent updates.  Iterators are weakly consistent
+ * and return elements in priority order.
+ * <p>
+ * 没有并发插入时，poll 总是返回最小的元素；与 poll 并发插入的元素可能被它跳过，此时 poll 返回一个已经存在的更大的元素。
+ * size 与链表分开维护，并发修改时只是估计值。迭代器是弱一致的，按优先级顺序返回元素。
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class SkipListPriorityQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+      说明：
+
+      1. 跳表的每个 next 指针都是 AtomicMarkableReference，标记位表示该节点在这一层已被删除（Harris 链表的做法）。
+         删除节点时从最高层到最底层依次标记，最底层标记成功即表示物理删除开始，之后的 find 会把它从各层摘除；
+      2. 节点先通过 claimed 标记被某个 poll 独占（逻辑删除），只有抢到的线程会去标记 next 指针，因此不会重复删除；
+      3. 比较时先比较元素，相等再比较插入序号 seq，保证跳表中的键唯一，也使相等元素先进先出；
+      4. 消费者阻塞时先登记 waiters 再重新 poll，生产者插入后读取 waiters，只有存在阻塞的消费者时才去获取锁并唤醒。
+     */
+
+    /**
+     * 跳表的最大层数
+     */
+    private static final int MAX_LEVEL = 32;
+
+    /**
+     * 头节点，不保存元素，拥有全部层
+     */
+    private final Node<E> head = new Node<E>(null, 0L, MAX_LEVEL - 1);
+
+    /**
+     * 比较器，为 null 时使用元素的自然顺序
+     */
+    private final Comparator<? super E> comparator;
+
+    /**
+     * 插入序号，用于区分相等的元素
+     */
+    private final AtomicLong sequencer = new AtomicLong();
+
+    /**
+     * 元素个数
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * 消费者阻塞等待时使用的锁
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 队列非空的条件变量
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 在 notEmpty 上阻塞的消费者个数，只在持有 lock 时修改
+     */
+    private volatile int waiters;
+
+    /**
+     * Creates an empty queue that orders its elements according to their
+     * {@linkplain Comparable natural ordering}.
+     */
+    public SkipListPriorityQueue() {
+        this((Comparator<? super E>) null);
+    }
+
+    /**
+     * Creates an empty queue that orders its elements according to the
+     * specified comparator.
+     *
+     * @param comparator the comparator that will be used to order this
+     *                   queue, or {@code null} for natural ordering
+     */
+    public SkipListPriorityQueue(Comparator<? super E> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Creates a queue that orders its elements according to their natural
+     * ordering and initially contains the elements of the given collection.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws ClassCastException   if the elements cannot be compared
+     * @throws NullPointerException if the collection or any element is null
+     */
+    public SkipListPriorityQueue(Collection<? extends E> c) {
+        this((Comparator<? super E>) null);
+        this.addAll(c);
+    }
+
+    /**
+     * Returns the comparator used to order the elements in this queue, or
+     * {@code null} if this queue uses natural ordering.
+     *
+     * @return the comparator, or {@code null}
+     */
+    public Comparator<? super E> comparator() {
+        return comparator;
+    }
+
+    // ---------------------------------------------------------------- 跳表
+
+    /**
+     * 节点 a 是否排在节点 b 之前
+     */
+    @SuppressWarnings("unchecked")
+    private boolean before(Node<E> a, Node<E> b) {
+        int c = (comparator == null)
+                ? ((Comparable<? super E>) a.item).compareTo(b.item)
+                : comparator.compare(a.item, b.item);
+        return c < 0 || (c == 0 && a.seq < b.seq);
+    }
+
+    /**
+     * Finds the predecessors and successors of the given node on every
+     * level, unlinking the marked nodes met on the way.
+     * <p>
+     * 查找节点 x 在每一层的前驱和后继，顺带摘除路过的已标记节点
+     *
+     * @return true if x is linked on the bottom level
+     */
+    private boolean find(Node<E> x, Node<E>[] preds, Node<E>[] succs) {
+        boolean[] marked = {false};
+        retry:
+        for (; ; ) {
+            Node<E> pred = head;
+            for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+                Node<E> curr = pred.next[level].getReference();
+                while (curr != null) {
+                    Node<E> succ = curr.next[level].get(marked);
+                    // curr 在这一层已被删除，摘除它
+                    if (marked[0]) {
+                        if (!pred.next[level].compareAndSet(curr, succ, false, false))
+                            continue retry;
+                        curr = succ;
+                        continue;
+                    }
+                    if (!before(curr, x))
+                        break;
+                    pred = curr;
+                    curr = succ;
+                }
+                preds[level] = pred;
+                succs[level] = curr;
+            }
+            return succs[0] == x;
+        }
+    }
+
+    /**
+     * 随机层数，第 i 层的概率为 1/2^(i+1)
+     */
+    private static int randomLevel() {
+        int r = ThreadLocalRandom.current().nextInt();
+        // 末尾 0 的个数为 i 的概率为 1/2^(i+1)
+        return Math.min(Integer.numberOfTrailingZeros(r | (1 << (MAX_LEVEL - 1))), MAX_LEVEL - 1);
+    }
+
+    /**
+     * Links a new node on the bottom level, then on the levels above it.
+     * <p>
+     * 先链接最底层（此时元素已可见），再逐层向上链接
+     */
+    @SuppressWarnings("unchecked")
+    private void insert(Node<E> x) {
+        Node<E>[] preds = (Node<E>[]) new Node<?>[MAX_LEVEL];
+        Node<E>[] succs = (Node<E>[]) new Node<?>[MAX_LEVEL];
+        int top = x.topLevel;
+        for (; ; ) {
+            find(x, preds, succs);
+            for (int level = 0; level <= top; level++)
+                x.next[level].set(succs[level], false);
+            if (preds[0].next[0].compareAndSet(succs[0], x, false, false))
+                break;
+        }
+        link:
+        for (int level = 1; level <= top; level++) {
+            for (; ; ) {
+                Node<E> pred = preds[level], succ = succs[level];
+                // 重试时后继可能变了；x 已被删除（标记）则不再向上链接
+                Node<E> old = x.next[level].getReference();
+                if (old != succ && !x.next[level].compareAndSet(old, succ, false, false))
+                    break link;
+                if (pred.next[level].compareAndSet(succ, x, false, false))
+                    break;
+                find(x, preds, succs);
+            }
+        }
+        // 链接上层的过程中 x 可能已被删除，清理残留的上层链接
+        if (x.next[0].isMarked())
+            find(x, preds, succs);
+    }
+
+    /**
+     * Marks a claimed node as deleted on every level, top down, and
+     * unlinks it.  Called only by the thread that claimed the node.
+     * <p>
+     * 从最高层到最底层依次标记已被抢到的节点，再通过 find 把它摘除。只由抢到节点的线程调用
+     */
+    @SuppressWarnings("unchecked")
+    private void unlink(Node<E> x) {
+        boolean[] marked = {false};
+        for (int level = x.topLevel; level >= 0; level--) {
+            Node<E> succ = x.next[level].get(marked);
+            while (!marked[0]) {
+                x.next[level].compareAndSet(succ, succ, false, true);
+                succ = x.next[level].get(marked);
+            }
+        }
+        find(x, (Node<E>[]) new Node<?>[MAX_LEVEL], (Node<E>[]) new Node<?>[MAX_LEVEL]);
+    }
+
+    /**
+     * Returns the first node that has not been claimed, or null.
+     * <p>
+     * 返回最底层第一个未被抢占的节点
+     */
+    private Node<E> firstUnclaimed() {
+        for (Node<E> n = head.next[0].getReference(); n != null; n = n.next[0].getReference())
+            if (n.claimed == 0)
+                return n;
+        return null;
+    }
+
+    // ---------------------------------------------------------------- 队列
+
+    /**
+     * Inserts the specified element into this priority queue.  This
+     * method never blocks.
+     * <p>
+     * 插入元素，不会阻塞，只有存在阻塞的消费者时才获取锁去唤醒
+     *
+     * @param e the element to add
+     * @return {@code true}
+     * @throws ClassCastException   if the specified element cannot be
+     *                              compared with the elements currently in the queue
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        Node<E> x = new Node<E>(e, sequencer.getAndIncrement(), randomLevel());
+        insert(x);
+        count.increment();
+        // 先链接节点（CAS），再读 waiters
+        if (waiters > 0)
+            signalNotEmpty();
+        return true;
+    }
+
+    private void signalNotEmpty() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element.  As the queue is unbounded this
+     * method never blocks.
+     *
+     * @param e the element to add
+     * @throws ClassCastException   {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Inserts the specified element.  As the queue is unbounded this
+     * method never blocks.
+     *
+     * @param e       the element to add
+     * @param timeout This parameter is ignored as the method never blocks
+     * @param unit    This parameter is ignored as the method never blocks
+     * @return {@code true}
+     * @throws ClassCastException   {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, without taking any
+     * lock.
+     * <p>
+     * 取出队首元素，不加锁：抢占最底层第一个可以抢到的节点
+     *
+     * @return the head of this queue, or {@code null} if it is empty
+     */
+    public E poll() {
+        for (Node<E> n = head.next[0].getReference(); n != null; n = n.next[0].getReference()) {
+            if (n.claimed == 0 && CLAIMED.compareAndSet(n, 0, 1)) {
+                count.decrement();
+                unlink(n);
+                return n.item;
+            }
+        }
+        return null;
+    }
+
+    public E take() throws InterruptedException {
+        E x = poll();
+        if (x != null)
+            return x;
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            ++waiters;
+            try {
+                // 先登记 waiters，再重新 poll，避免错过登记之前的插入
+                while ((x = poll()) == null)
+                    notEmpty.await();
+            } finally {
+                --waiters;
+                // 被唤醒的线程可能因中断而放弃，把信号传递给其他等待者
+                if (waiters > 0 && !isEmpty())
+                    notEmpty.signal();
+            }
+            return x;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E x = poll();
+        if (x != null)
+            return x;
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            ++waiters;
+            try {
+                while ((x = poll()) == null) {
+                    if (nanos <= 0)
+                        return null;
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            } finally {
+                --waiters;
+                if (waiters > 0 && !isEmpty())
+                    notEmpty.signal();
+            }
+            return x;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue.
+     *
+     * @return the head of this queue, or {@code null} if it is empty
+     */
+    public E peek() {
+        Node<E> n = firstUnclaimed();
+        return (n == null) ? null : n.item;
+    }
+
+    public boolean isEmpty() {
+        return firstUnclaimed() == null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  The count is kept
+     * apart from the skip list and is only an estimate under concurrent
+     * updates.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        long n = count.sum();
+        return (n < 0) ? 0 : (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because the queue is not
+     * capacity constrained.
+     *
+     * @return {@code Integer.MAX_VALUE}
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (E e; n < maxElements && (e = poll()) != null; ) {
+            c.add(e);
+            ++n;
+        }
+        return n;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        for (Node<E> n = head.next[0].getReference(); n != null; n = n.next[0].getReference()) {
+            if (o.equals(n.item) && removeNode(n))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 抢占并删除指定节点
+     */
+    private boolean removeNode(Node<E> n) {
+        if (n.claimed != 0 || !CLAIMED.compareAndSet(n, 0, 1))
+            return false;
+        count.decrement();
+        unlink(n);
+        return true;
+    }
+
+    /**
+     * Removes all of the elements from this queue.  Elements inserted
+     * concurrently may or may not be removed.
+     */
+    public void clear() {
+        while (poll() != null)
+            ;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in priority
+     * order.  The iterator is weakly consistent.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    /**
+     * Weakly consistent iterator over the bottom level, skipping claimed
+     * nodes.
+     */
+    private class Itr implements Iterator<E> {
+        Node<E> next = firstUnclaimed();
+        Node<E> lastRet;
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public E next() {
+            Node<E> n = next;
+            if (n == null)
+                throw new NoSuchElementException();
+            lastRet = n;
+            Node<E> p = n.next[0].getReference();
+            while (p != null && p.claimed != 0)
+                p = p.next[0].getReference();
+            next = p;
+            return n.item;
+        }
+
+        public void remove() {
+            Node<E> n = lastRet;
+            if (n == null)
+                throw new IllegalStateException();
+            lastRet = null;
+            removeNode(n);
+        }
+    }
+
+    /**
+     * Skip-list node.
+     * <p>
+     * 跳表节点，next[i] 是第 i 层的后继，标记位表示该节点在第 i 层已被删除
+     */
+    static final class Node<E> {
+        final E item;
+
+        /**
+         * 插入序号
+         */
+        final long seq;
+
+        /**
+         * 节点的最高层
+         */
+        final int topLevel;
+
+        final AtomicMarkableReference<Node<E>>[] next;
+
+        /**
+         * 是否已被某个 poll/remove 抢占（逻辑删除），0 否 1 是
+         */
+        volatile int claimed;
+
+        @SuppressWarnings("unchecked")
+        Node(E item, long seq, int topLevel) {
+            this.item = item;
+            this.seq = seq;
+            this.topLevel = topLevel;
+            this.next = (AtomicMarkableReference<Node<E>>[]) new AtomicMarkableReference<?>[topLevel + 1];
+            for (int i = 0; i <= topLevel; i++)
+                next[i] = new AtomicMarkableReference<Node<E>>(null, false);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> CLAIMED =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "claimed");
+}
@@ -0,0 +1,583 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TransferQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A synchronous {@linkplain TransferQueue transfer queue}: like
+ * {@code SynchronousQueue} it has no capacity, and every insertion is a
+ * hand-off to a waiting consumer.  A thread that has to wait for its
+ * counterpart spins for an adaptively chosen number of iterations before
+ * parking, so that hand-offs between busy threads avoid the
+ * park/unpark round trip.
+ * <p>
+ * 同步移交队列：与 SynchronousQueue 一样没有容量，每次插入都是把元素直接交给等待的消费者。
+ * 需要等待对方的线程先自旋一段自适应的次数再阻塞，使繁忙线程之间的移交避开 park/unpark 的开销。
+ *
+ * <p>{@link #offer(Object)} succeeds only if a consumer is already
+ * waiting, and {@link #offer(Object, long, TimeUnit)} waits up to the
+ * given time for one, which is what {@code ThreadPoolExecutor} expects
+ * from the work queue of a cached thread pool:
+ * <pre> {@code
+ * new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+ *                        new SpinningTransferQueue<Runnable>());}</pre>
+ * <p>
+ * offer 只有在已经有消费者等待时才会成功，超时 offer 最多等待给定的时间，这正是 ThreadPoolExecutor 对缓存线程池工作队列的要求。
+ *
+ * <p>The spin limit grows while waiters keep being matched during their
+ * spin and shrinks when they end up parking; on a uniprocessor waiters
+ * never spin.  By default waiting consumers are matched in LIFO order,
+ * which keeps recently active threads busy and lets idle pool threads
+ * time out; a fair queue matches waiters in FIFO order.  The latency of
+ * each hand-off, from the moment a waiter is matched until it resumes,
+ * can be recorded with {@link #enableHandoffLatency()}.
+ * <p>
+ * 等待者在自旋期间被匹配时增大自旋上限，最终还是阻塞时减小自旋上限；单核机器上不自旋。默认按 LIFO 顺序匹配等待的消费者，
+ * 让最近活跃的线程保持繁忙，空闲的线程池线程得以超时退出；公平模式按 FIFO 顺序匹配。
+ * 调用 enableHandoffLatency() 后记录每次移交的延迟，即等待者从被匹配到恢复运行的时间。
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class SpinningTransferQueue<E> extends AbstractQueue<E>
+        implements TransferQueue<E> {
+
+    /*
+      说明：
+
+      1. 和 SynchronousQueue 一样是"双重队列"：同一时刻只会有一种等待者（生产者或消费者），到来的线程先尝试匹配对方的等待者，
+         匹配不到才把自己入队等待；
+      2. 匹配在锁内完成，临界区只有出队和一次 CAS。等待则在锁外进行：等待者在自己节点的 state 上自旋，超过自旋上限后才 park，
+         因此锁不会被等待者长期占用；
+      3. 节点的 state 只会从 WAITING 通过 CAS 变为 MATCHED 或 CANCELLED，超时/中断与匹配之间的竞争由这次 CAS 决定；
+      4. 等待者 park 前先写 parked 再复查 state，匹配者先 CAS state 再读 parked，只有等待者可能已经阻塞时才 unpark。
+     */
+
+    /**
+     * 节点状态：等待中、已匹配、已取消
+     */
+    static final int WAITING = 0, MATCHED = 1, CANCELLED = 2;
+
+    /**
+     * 调用方式：立即返回、超时等待、一直等待
+     */
+    private static final int NOW = 0, TIMED = 1, SYNC = 2;
+
+    /**
+     * 多核时的最大自旋次数，单核时为 0
+     */
+    static final int MAX_SPINS =
+            (Runtime.getRuntime().availableProcessors() < 2) ? 0 : 1 << 12;
+
+    /**
+     * 自旋上限的下限，保证自旋上限还能重新增长
+     */
+    static final int MIN_SPINS = MAX_SPINS >>> 6;
+
+    /**
+     * 保护两个等待队列的锁
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 等待消费的生产者
+     */
+    private final ArrayDeque<Node> producers = new ArrayDeque<Node>();
+
+    /**
+     * 等待元素的消费者
+     */
+    private final ArrayDeque<Node> consumers = new ArrayDeque<Node>();
+
+    /**
+     * 是否按 FIFO 顺序匹配
+     */
+    private final boolean fair;
+
+    /**
+     * 当前的自旋上限，按匹配结果自适应调整
+     */
+    private volatile int spinLimit = MAX_SPINS >>> 2;
+
+    /**
+     * 移交延迟记录器，未启用时为 null
+     */
+    private volatile HandoffLatency latency;
+
+    /**
+     * Creates a queue that matches waiters in LIFO order.
+     */
+    public SpinningTransferQueue() {
+        this(false);
+    }
+
+    /**
+     * Creates a queue with the given fairness policy.
+     *
+     * @param fair if true, waiting threads are matched in FIFO order;
+     *             otherwise in LIFO order 是否按 FIFO 顺序匹配
+     */
+    public SpinningTransferQueue(boolean fair) {
+        this.fair = fair;
+    }
+
+    // ---------------------------------------------------------------- 核心
+
+    /**
+     * Matches a waiter of the opposite kind, or waits to be matched.
+     * <p>
+     * 匹配一个对方的等待者，匹配不到则根据 how 决定是否入队等待
+     *
+     * @param e      the element to hand off, or null to receive one
+     * @param how    NOW, TIMED or SYNC
+     * @param nanos  the timeout if TIMED
+     * @return the element handed off or received, or null on failure
+     */
+    @SuppressWarnings("unchecked")
+    private E xfer(E e, int how, long nanos) throws InterruptedException {
+        boolean isData = (e != null);
+        Node m = null, s = null;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            ArrayDeque<Node> opposite = isData ? consumers : producers;
+            for (Node n; (n = fair ? opposite.pollFirst() : opposite.pollLast()) != null; ) {
+                // 跳过已取消的节点
+                if (n.tryMatch(e, latency != null)) {
+                    m = n;
+                    break;
+                }
+            }
+            if (m == null) {
+                if (how == NOW || (how == TIMED && nanos <= 0))
+                    return null;
+                s = new Node(Thread.currentThread(), e);
+                (isData ? producers : consumers).addLast(s);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (m != null) {
+            // 先 CAS state（在 tryMatch 中），再读 parked
+            if (m.parked)
+                LockSupport.unpark(m.waiter);
+            return isData ? e : (E) m.item;
+        }
+        Object x = awaitMatch(s, how == TIMED, nanos);
+        return (x == null) ? null : isData ? e : (E) x;
+    }
+
+    /**
+     * Spins, then parks, until the node is matched, cancelled by timeout
+     * or interrupted.
+     * <p>
+     * 先自旋再阻塞，直到节点被匹配、超时或中断
+     *
+     * @return the item of the matched node, or null if timed out
+     */
+    private Object awaitMatch(Node s, boolean timed, long nanos) throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        final int spins = spinLimit;
+        boolean parked = false, interrupted = false;
+        for (int i = 0; ; ) {
+            if (s.state == MATCHED) {
+                afterMatch(s, parked);
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+                return s.item;
+            }
+            if (!interrupted && Thread.interrupted()) {
+                if (cancel(s))
+                    throw new InterruptedException();
+                // 已被匹配，保留中断状态后正常返回
+                interrupted = true;
+                continue;
+            }
+            if (timed && (nanos = deadline - System.nanoTime()) <= 0) {
+                if (cancel(s))
+                    return null;
+                continue;
+            }
+            if (i < spins) {
+                ++i;
+                continue;
+            }
+            // 先写 parked，再复查 state
+            s.parked = true;
+            parked = true;
+            if (s.state == WAITING) {
+                if (timed)
+                    LockSupport.parkNanos(this, nanos);
+                else
+                    LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * 取消节点，成功则把它从等待队列中移除；失败说明已被匹配
+     */
+    private boolean cancel(Node s) {
+        if (!STATE.compareAndSet(s, WAITING, CANCELLED))
+            return false;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (!producers.remove(s))
+                consumers.remove(s);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * 根据是否需要阻塞调整自旋上限，并记录移交延迟
+     */
+    private void afterMatch(Node s, boolean parked) {
+        int limit = spinLimit;
+        if (!parked) {
+            if (limit < MAX_SPINS)
+                spinLimit = Math.min(MAX_SPINS, limit + (limit >>> 3) + 1);
+        } else if (limit > MIN_SPINS) {
+            spinLimit = Math.max(MIN_SPINS, limit >>> 1);
+        }
+        HandoffLatency latency = this.latency;
+        if (latency != null && s.matchNanos != 0L)
+            latency.record(System.nanoTime() - s.matchNanos, parked);
+    }
+
+    // ---------------------------------------------------------------- TransferQueue
+
+    /**
+     * Transfers the element to a waiting consumer, waiting if necessary
+     * for one.
+     * <p>
+     * 把元素交给消费者，没有等待的消费者则一直等待
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void transfer(E e) throws InterruptedException {
+        if (e == null) throw new NullPointerException();
+        xfer(e, SYNC, 0L);
+    }
+
+    /**
+     * Transfers the element to a waiting consumer immediately, if
+     * possible.
+     * <p>
+     * 如果有等待的消费者，立即把元素交给它，否则返回 false
+     *
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean tryTransfer(E e) {
+        if (e == null) throw new NullPointerException();
+        try {
+            return xfer(e, NOW, 0L) != null;
+        } catch (InterruptedException ie) {
+            // NOW 模式不会等待
+            throw new AssertionError(ie);
+        }
+    }
+
+    /**
+     * Transfers the element to a consumer, waiting up to the specified
+     * time for one.  The element is not left in the queue if the time
+     * elapses.
+     * <p>
+     * 把元素交给消费者，最多等待指定的时间；超时后元素不会留在队列中
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean tryTransfer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null) throw new NullPointerException();
+        return xfer(e, TIMED, unit.toNanos(timeout)) != null;
+    }
+
+    /**
+     * Equivalent to {@link #transfer}.
+     */
+    public void put(E e) throws InterruptedException {
+        transfer(e);
+    }
+
+    /**
+     * Equivalent to {@link #tryTransfer(Object, long, TimeUnit)}.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return tryTransfer(e, timeout, unit);
+    }
+
+    /**
+     * Equivalent to {@link #tryTransfer(Object)}: succeeds only if a
+     * consumer is waiting.
+     */
+    public boolean offer(E e) {
+        return tryTransfer(e);
+    }
+
+    public E take() throws InterruptedException {
+        return xfer(null, SYNC, 0L);
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return xfer(null, TIMED, unit.toNanos(timeout));
+    }
+
+    /**
+     * Retrieves and removes an element if a producer is waiting to hand
+     * one off.
+     *
+     * @return the element, or {@code null} if no producer is waiting
+     */
+    public E poll() {
+        try {
+            return xfer(null, NOW, 0L);
+        } catch (InterruptedException ie) {
+            throw new AssertionError(ie);
+        }
+    }
+
+    public boolean hasWaitingConsumer() {
+        return getWaitingConsumerCount() > 0;
+    }
+
+    public int getWaitingConsumerCount() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int n = 0;
+            for (Node s : consumers)
+                if (s.state == WAITING)
+                    ++n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- Collection
+
+    /**
+     * Always returns {@code null}: the queue holds no elements.
+     */
+    public E peek() {
+        return null;
+    }
+
+    /**
+     * Always returns zero: the queue holds no elements.
+     */
+    public int size() {
+        return 0;
+    }
+
+    /**
+     * Always returns zero: the queue has no capacity.
+     */
+    public int remainingCapacity() {
+        return 0;
+    }
+
+    public Iterator<E> iterator() {
+        return Collections.<E>emptyIterator();
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (E e; n < maxElements && (e = poll()) != null; ) {
+            c.add(e);
+            ++n;
+        }
+        return n;
+    }
+
+    public String toString() {
+        return "[]";
+    }
+
+    // ---------------------------------------------------------------- 延迟统计
+
+    /**
+     * Starts recording the latency of hand-offs to waiting threads.
+     * Calling it again returns the existing recorder.
+     * <p>
+     * 开始记录移交给等待线程的延迟，重复调用返回同一个记录器
+     *
+     * @return the hand-off latency recorder
+     */
+    public HandoffLatency enableHandoffLatency() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (latency == null)
+                latency = new HandoffLatency();
+            return latency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hand-off latency recorder.
+     *
+     * @return the recorder, or {@code null} if
+     * {@link #enableHandoffLatency()} has not been called
+     */
+    public HandoffLatency handoffLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the current spin limit, for monitoring.
+     *
+     * @return the number of iterations a waiter spins before parking
+     */
+    public int spinLimit() {
+        return spinLimit;
+    }
+
+    /**
+     * The latency of hand-offs to waiting threads, measured from the
+     * moment a waiter is matched until it resumes, and kept separately for
+     * waiters that were still spinning and waiters that had parked.
+     * Histograms use the buckets of {@link QueueMetrics}.
+     * <p>
+     * 移交延迟：从等待者被匹配到它恢复运行的时间，自旋中被匹配和已经阻塞后被唤醒的分别统计。直方图的分桶与 QueueMetrics 相同
+     */
+    public static final class HandoffLatency {
+        private final QueueStats.WaitHistogram spun = new QueueStats.WaitHistogram();
+        private final QueueStats.WaitHistogram parked = new QueueStats.WaitHistogram();
+
+        HandoffLatency() {
+        }
+
+        void record(long nanos, boolean wasParked) {
+            (wasParked ? parked : spun).record(nanos);
+        }
+
+        /**
+         * @return the number of hand-offs to spinning waiters 移交给自旋中等待者的次数
+         */
+        public long spunCount() {
+            return spun.count.sum();
+        }
+
+        /**
+         * @return the total latency of hand-offs to spinning waiters, in nanoseconds
+         */
+        public long spunNanos() {
+            return spun.total.sum();
+        }
+
+        /**
+         * @return a snapshot of the latency histogram of hand-offs to spinning waiters
+         */
+        public long[] spunHistogram() {
+            return spun.snapshot();
+        }
+
+        /**
+         * @return the number of hand-offs to parked waiters 移交给已阻塞等待者的次数
+         */
+        public long parkedCount() {
+            return parked.count.sum();
+        }
+
+        /**
+         * @return the total latency of hand-offs to parked waiters, in nanoseconds
+         */
+        public long parkedNanos() {
+            return parked.total.sum();
+        }
+
+        /**
+         * @return a snapshot of the latency histogram of hand-offs to parked waiters
+         */
+        public long[] parkedHistogram() {
+            return parked.snapshot();
+        }
+
+        /**
+         * Clears all counters.
+         */
+        public void reset() {
+            spun.reset();
+            parked.reset();
+        }
+
+        public String toString() {
+            return "HandoffLatency[spun=" + spunCount() + "/" + spunNanos() + "ns"
+                    + ", parked=" + parkedCount() + "/" + parkedNanos() + "ns]";
+        }
+    }
+
+    // ---------------------------------------------------------------- 节点
+
+    /**
+     * A waiting producer or consumer.
+     * <p>
+     * 等待中的生产者或消费者
+     */
+    static final class Node {
+        final Thread waiter;
+
+        /**
+         * 生产者节点为要移交的元素；消费者节点在匹配后为收到的元素
+         */
+        volatile Object item;
+
+        volatile int state;
+
+        /**
+         * 等待者是否可能已经阻塞
+         */
+        volatile boolean parked;
+
+        /**
+         * 被匹配的时间，只在记录延迟时设置
+         */
+        long matchNanos;
+
+        Node(Thread waiter, Object item) {
+            this.waiter = waiter;
+            this.item = item;
+        }
+
+        /**
+         * Matches this node, handing it {@code e} if it is a consumer.
+         * Called while holding the queue lock.
+         */
+        boolean tryMatch(Object e, boolean stamp) {
+            if (state != WAITING)
+                return false;
+            if (e != null)
+                item = e;
+            if (stamp)
+                matchNanos = System.nanoTime();
+            // CAS 成功之前写入的 item、matchNanos 对等待者可见
+            return STATE.compareAndSet(this, WAITING, MATCHED);
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<Node> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "state");
+}
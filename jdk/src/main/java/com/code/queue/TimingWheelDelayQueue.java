@@ -0,0 +1,926 @@
+package com.code.queue;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded {@linkplain BlockingQueue blocking queue} of {@code Delayed}
+ * elements with the same contract as {@link DelayQueue}, whose storage is
+ * a hashed timing wheel instead of a binary heap.
+ * <p>
+ * 与 DelayQueue 语义相同的无界阻塞延时队列，底层存储是哈希时间轮而不是二叉堆。
+ *
+ * <p>Time is divided into ticks of a configurable resolution
+ * ({@code tickDuration}); the wheel has {@code ticksPerWheel} buckets and
+ * an element is hashed into the bucket of the tick in which it expires.
+ * Insertion is therefore O(1).  Consumers advance the wheel one tick at a
+ * time and move every element whose tick has passed to a FIFO ready list,
+ * from which {@code take} and {@code poll} are served.  Elements further
+ * away than one revolution are kept in an overflow heap ordered by tick
+ * and moved into the wheel once they come within one revolution, so a
+ * bucket only ever holds elements of a single tick and long delays are
+ * not rescanned on every revolution; inserting such an element costs
+ * O(log n) instead.
+ * <p>
+ * 时间按 tickDuration 划分为一个个 tick，时间轮共有 ticksPerWheel 个桶，元素按到期的 tick 哈希到对应的桶中，
+ * 因此插入为 O(1)。消费者逐个推进 tick，把到期的元素移动到先进先出的就绪链表，take/poll 从就绪链表中获取。
+ * 超过一圈的元素放在按 tick 排序的溢出堆中，进入一圈范围后才移入时间轮，因此每个桶中只有同一 tick 的元素，
+ * 长延时的元素不会每圈都被扫描一次，代价是插入这类元素为 O(log n)。
+ *
+ * <p>{@link #remove(Object)} scans the queue the first time it is called
+ * and builds an index from element to node, which makes every later removal
+ * O(1) at the cost of one hash entry per inserted element.  Queues that
+ * never remove arbitrary elements do not pay for the index.
+ * <p>
+ * remove(Object) 第一次调用时遍历队列，建立元素到节点的索引，之后的删除都是 O(1)，代价是每次插入多维护一个哈希表项；
+ * 从不删除任意元素的队列不需要维护索引。
+ *
+ * <p>The price of O(1) operations is precision: an element is never
+ * returned before its delay has expired, but may be returned up to one
+ * {@code tickDuration} late, and elements expiring within the same tick
+ * are returned in insertion order rather than strict deadline order.  The
+ * expiration tick is computed once, from
+ * {@code getDelay(TimeUnit.NANOSECONDS)}, when the element is inserted.
+ * <p>
+ * O(1) 的代价是精度：元素不会提前返回，但最多可能延后一个 tickDuration；同一 tick 内到期的元素按插入顺序返回，
+ * 而不是严格按截止时间排序。到期 tick 在插入时根据 getDelay 计算一次。
+ *
+ * <p>Like {@link DelayQueue}, a single lock guards the queue and a
+ * leader thread waits for the next tick while other consumers wait
+ * indefinitely.  {@link #peek} is O(1) when an element has expired but
+ * otherwise scans the wheel for the earliest deadline.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class TimingWheelDelayQueue<E extends Delayed> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+      说明：
+
+      1. 节点通过 prev/next 组成桶内（或就绪链表内）的双向链表，删除时无需遍历；
+      2. index 在第一次 remove(Object) 时才建立，维护元素到节点的映射，相等的元素通过 dupPrev/dupNext 串联；
+      3. processedTick 表示已经处理过的 tick，推进时间轮就是处理 (processedTick, currentTick] 之间的桶；
+      4. 与 DelayQueue 一样使用 leader 减少不必要的定时等待，leader 只等待到下一个非空桶对应的 tick；
+      5. 时间轮中只存放 tick 在 (processedTick, processedTick + ticksPerWheel] 内的节点，更远的节点放在溢出堆中，
+         每次推进后把进入这个范围的节点移入时间轮。因此一个桶中的节点 tick 都相同，处理桶时整个链表一起移到就绪链表。
+     */
+
+    /**
+     * 默认 tick 时长：1 毫秒
+     */
+    private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 默认时间轮大小
+     */
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    /**
+     * 节点位于就绪链表中的标记
+     */
+    private static final int READY = -1;
+
+    /**
+     * 节点已经离开队列的标记
+     */
+    private static final int REMOVED = -2;
+
+    /**
+     * 节点位于溢出堆中的标记
+     */
+    private static final int OVERFLOW = -3;
+
+    /**
+     * 溢出堆的初始容量
+     */
+    private static final int INITIAL_OVERFLOW_CAPACITY = 16;
+
+    private final transient ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 有元素到期或需要新 leader 时发出信号
+     */
+    private final Condition available = lock.newCondition();
+
+    /**
+     * 每个 tick 的时长（纳秒）
+     */
+    private final long tickNanos;
+
+    /**
+     * 时间轮的桶，每个桶是一个双向链表的头节点
+     */
+    private final Node<E>[] wheel;
+
+    /**
+     * 时间轮掩码，ticksPerWheel - 1
+     */
+    private final int mask;
+
+    /**
+     * 时间轮的起始时间，tick 从这里开始计算
+     */
+    private final long startTime;
+
+    /**
+     * 已经处理过的 tick
+     */
+    private long processedTick;
+
+    /**
+     * 就绪链表的头尾
+     */
+    private Node<E> readyHead, readyTail;
+
+    /**
+     * 超过一圈的节点组成的最小堆，按 (tick, seq) 排序
+     */
+    private Node<E>[] overflow;
+
+    /**
+     * 溢出堆中的节点个数
+     */
+    private int overflowSize;
+
+    /**
+     * 进入溢出堆的序号，保证同一 tick 的元素按插入顺序返回
+     */
+    private long overflowSeq;
+
+    /**
+     * 元素到节点的索引，第一次 remove(Object) 之前为 null
+     */
+    private HashMap<Object, Node<E>> index;
+
+    /**
+     * 元素个数
+     */
+    private int count;
+
+    /**
+     * 时间轮中（尚未就绪）的元素个数
+     */
+    private int wheelCount;
+
+    /**
+     * 等待队列头部元素的线程，含义同 DelayQueue.leader
+     */
+    private Thread leader = null;
+
+    /**
+     * leader 计划醒来的 tick，插入更早到期的元素时需要唤醒它
+     */
+    private long leaderWakeTick = Long.MAX_VALUE;
+
+    /**
+     * Creates an empty queue with a 1 millisecond resolution and 512
+     * buckets.
+     */
+    public TimingWheelDelayQueue() {
+        this(DEFAULT_TICK_NANOS, NANOSECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * Creates an empty queue with the given resolution and wheel size.
+     *
+     * @param tickDuration  the resolution of the wheel 每个 tick 的时长，即精度
+     * @param unit          the time unit of {@code tickDuration}
+     * @param ticksPerWheel the number of buckets, rounded up to a power of 2 时间轮的桶数，向上取整为 2 的幂
+     * @throws IllegalArgumentException if {@code tickDuration} or
+     *                                  {@code ticksPerWheel} is not positive
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheelDelayQueue(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+            throw new IllegalArgumentException("ticksPerWheel must be in (0, 2^30]: " + ticksPerWheel);
+        this.tickNanos = unit.toNanos(tickDuration);
+        int n = 1;
+        while (n < ticksPerWheel)
+            n <<= 1;
+        this.wheel = (Node<E>[]) new Node<?>[n];
+        this.overflow = (Node<E>[]) new Node<?>[INITIAL_OVERFLOW_CAPACITY];
+        this.mask = n - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Creates a queue with default settings initially containing the
+     * elements of the given collection.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the collection or any element is null
+     */
+    public TimingWheelDelayQueue(Collection<? extends E> c) {
+        this();
+        this.addAll(c);
+    }
+
+    /**
+     * 当前时间对应的 tick
+     */
+    private long currentTick(long now) {
+        return (now - startTime) / tickNanos;
+    }
+
+    /**
+     * 截止时间对应的 tick：向上取整，保证元素不会提前到期
+     */
+    private long tickOf(long deadline) {
+        long elapsed = deadline - startTime;
+        // deadline 不早于 startTime，差值为负说明溢出（例如截止时间被截断为 Long.MAX_VALUE）
+        if (elapsed < 0)
+            elapsed = Long.MAX_VALUE;
+        long tick = elapsed / tickNanos;
+        return (elapsed % tickNanos == 0) ? tick : tick + 1;
+    }
+
+    /**
+     * Inserts the specified element into this queue.
+     * <p>
+     * 插入元素，O(1)
+     *
+     * @param e the element to add
+     * @return {@code true}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            long delay = e.getDelay(NANOSECONDS);
+            long now = System.nanoTime();
+            Node<E> node = new Node<E>(e);
+            // 防止溢出。nanoTime 可能为负数，不能用 Long.MAX_VALUE - now 判断
+            long deadline = now + delay;
+            if (delay > 0 && deadline < now)
+                deadline = Long.MAX_VALUE;
+            long tick;
+            if (delay <= 0 || (tick = tickOf(deadline)) <= processedTick) {
+                // 已经到期，或者所在的 tick 已经处理过，直接放入就绪链表
+                linkReady(node);
+                tick = processedTick;
+            } else {
+                node.tick = tick;
+                if (tick - processedTick > mask + 1)
+                    offerOverflow(node);
+                else
+                    linkBucket(node);
+            }
+            if (index != null)
+                indexNode(node);
+            count++;
+
+            // 比 leader 计划醒来的时间更早到期，需要重新选择 leader
+            if (tick < leaderWakeTick) {
+                leader = null;
+                available.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    /**
+     * Inserts the specified element. As the queue is unbounded this method
+     * will never block.
+     *
+     * @param e the element to add
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Inserts the specified element. As the queue is unbounded this method
+     * will never block.
+     *
+     * @param e       the element to add
+     * @param timeout This parameter is ignored as the method never blocks
+     * @param unit    This parameter is ignored as the method never blocks
+     * @return {@code true}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Advances the wheel up to the current time, moving every element whose
+     * tick has passed to the ready list.  Call only when holding lock.
+     * <p>
+     * 推进时间轮到当前时间，把到期的元素移动到就绪链表
+     */
+    private void advance(long now) {
+        // assert lock.isHeldByCurrentThread();
+        long current = currentTick(now);
+        if (current <= processedTick)
+            return;
+
+        // 时间轮中没有元素时直接跳到当前 tick；超过一圈时每个桶只需要处理一次
+        if (wheelCount > 0) {
+            long from = processedTick + 1;
+            if (current - from > mask)
+                from = current - mask;
+            for (long t = from; t <= current && wheelCount > 0; t++)
+                expireBucket((int) (t & mask));
+        }
+        processedTick = current;
+
+        // 溢出堆中进入一圈范围的节点移入时间轮，已经到期的直接放入就绪链表
+        long horizon = current + mask + 1;
+        while (overflowSize > 0 && overflow[0].tick <= horizon) {
+            Node<E> node = pollOverflow();
+            if (node.tick <= current)
+                linkReady(node);
+            else
+                linkBucket(node);
+        }
+    }
+
+    /**
+     * 处理一个桶：桶中的节点 tick 都相同且已经到期，整个链表移到就绪链表
+     */
+    private void expireBucket(int b) {
+        Node<E> node = wheel[b];
+        if (node == null)
+            return;
+        wheel[b] = null;
+        while (node.next != null)
+            node = node.next;
+        // 后插入的节点在链表头部，从尾部开始移动以保持插入顺序
+        while (node != null) {
+            Node<E> prev = node.prev;
+            linkReady(node);
+            wheelCount--;
+            node = prev;
+        }
+    }
+
+    /**
+     * 从就绪链表取出一个元素，没有则返回 null
+     */
+    private E pollReady() {
+        Node<E> node = readyHead;
+        if (node == null)
+            return null;
+        unlinkReady(node);
+        if (index != null)
+            unindexNode(node);
+        node.where = REMOVED;
+        count--;
+        return node.item;
+    }
+
+    /**
+     * Retrieves and removes an expired element, or returns {@code null} if
+     * this queue has no elements with an expired delay.
+     *
+     * @return an expired element, or {@code null}
+     */
+    public E poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return pollReady();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the tick of the next non-empty bucket after the processed
+     * tick, scanning at most one revolution, or the end of the revolution
+     * if the wheel is empty and only the overflow heap holds elements.
+     * Call only when holding lock.
+     * <p>
+     * 找到下一个非空桶对应的 tick，最多扫描一圈；时间轮为空时返回一圈之后的 tick，届时溢出堆中的节点会移入时间轮
+     */
+    private long nextWakeTick() {
+        if (wheelCount > 0) {
+            for (long t = processedTick + 1, end = processedTick + mask + 1; t <= end; t++) {
+                if (wheel[(int) (t & mask)] != null)
+                    return t;
+            }
+        }
+        return processedTick + mask + 1;
+    }
+
+    /**
+     * Retrieves and removes an expired element, waiting if necessary until
+     * one is available.
+     *
+     * @return an expired element
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                long now = System.nanoTime();
+                advance(now);
+                E e = pollReady();
+                if (e != null)
+                    return e;
+                if (count == 0 || leader != null) {
+                    available.await();
+                } else {
+                    Thread thisThread = Thread.currentThread();
+                    leader = thisThread;
+                    long wakeTick = leaderWakeTick = nextWakeTick();
+                    try {
+                        // 等待到目标 tick 结束
+                        available.awaitNanos(startTime + wakeTick * tickNanos - now);
+                    } finally {
+                        if (leader == thisThread) {
+                            leader = null;
+                            leaderWakeTick = Long.MAX_VALUE;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && count > 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes an expired element, waiting if necessary until
+     * one is available or the specified wait time elapses.
+     *
+     * @return an expired element, or {@code null} if the waiting time
+     * elapsed first
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                long now = System.nanoTime();
+                advance(now);
+                E e = pollReady();
+                if (e != null)
+                    return e;
+                if (nanos <= 0)
+                    return null;
+                if (count == 0) {
+                    nanos = available.awaitNanos(nanos);
+                    continue;
+                }
+                long wakeTick = nextWakeTick();
+                long delay = startTime + wakeTick * tickNanos - now;
+                if (nanos < delay || leader != null) {
+                    nanos = available.awaitNanos(nanos);
+                } else {
+                    Thread thisThread = Thread.currentThread();
+                    leader = thisThread;
+                    leaderWakeTick = wakeTick;
+                    try {
+                        long timeLeft = available.awaitNanos(delay);
+                        nanos -= delay - timeLeft;
+                    } finally {
+                        if (leader == thisThread) {
+                            leader = null;
+                            leaderWakeTick = Long.MAX_VALUE;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && count > 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue: an expired
+     * element if there is one, otherwise the element with the earliest
+     * deadline (found by scanning the buckets of one revolution), or
+     * {@code null} if empty.
+     *
+     * @return the head of this queue, or {@code null} if empty
+     */
+    public E peek() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            if (readyHead != null)
+                return readyHead.item;
+            if (wheelCount == 0)
+                return overflowSize == 0 ? null : overflow[0].item;
+            // 第一个非空桶中最早插入的节点，即链表尾部
+            Node<E> n = wheel[(int) (nextWakeTick() & mask)];
+            while (n.next != null)
+                n = n.next;
+            return n.item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because the queue is not
+     * capacity constrained.
+     *
+     * @return {@code Integer.MAX_VALUE}
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            int n = 0;
+            for (Node<E> node; n < maxElements && (node = readyHead) != null; ) {
+                c.add(node.item);       // In this order, in case add() throws.
+                pollReady();
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present, whether or not it has expired.  The first call
+     * builds the element index in linear time; later calls run in constant
+     * time, or logarithmic time for elements more than one revolution away.
+     * <p>
+     * 删除指定元素，无论是否到期。第一次调用时建立索引，为 O(n)；之后为 O(1)，溢出堆中的元素为 O(log n)
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (index == null)
+                buildIndex();
+            Node<E> node = index.get(o);
+            if (node == null)
+                return false;
+            removeNode(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从所在链表和索引中删除节点
+     */
+    private void removeNode(Node<E> node) {
+        if (node.where == READY)
+            unlinkReady(node);
+        else if (node.where == OVERFLOW)
+            removeOverflow(node);
+        else
+            unlinkBucket(node);
+        unindexNode(node);
+        node.where = REMOVED;
+        count--;
+    }
+
+    /**
+     * Atomically removes all of the elements from this queue.
+     */
+    public void clear() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (int i = 0; i < wheel.length; i++)
+                wheel[i] = null;
+            Arrays.fill(overflow, 0, overflowSize, null);
+            readyHead = readyTail = null;
+            // 索引随队列一起丢弃，下一次 remove(Object) 时重新建立
+            index = null;
+            count = wheelCount = overflowSize = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Object[] toArray() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            List<Object> list = new ArrayList<Object>(count);
+            for (Node<E> n = readyHead; n != null; n = n.next)
+                list.add(n.item);
+            for (Node<E> head : wheel)
+                for (Node<E> n = head; n != null; n = n.next)
+                    list.add(n.item);
+            for (int i = 0; i < overflowSize; i++)
+                list.add(overflow[i].item);
+            return list.toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over all the elements (both expired and
+     * unexpired) in this queue, in no particular order.  The iterator works
+     * on a snapshot and is weakly consistent.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    /**
+     * Snapshot iterator, removal goes through remove(Object).
+     */
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            TimingWheelDelayQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
+    // ------------------------------ 链表操作 ------------------------------
+
+    private void linkBucket(Node<E> node) {
+        int b = (int) (node.tick & mask);
+        Node<E> head = wheel[b];
+        node.prev = null;
+        node.next = head;
+        if (head != null)
+            head.prev = node;
+        wheel[b] = node;
+        node.where = b;
+        wheelCount++;
+    }
+
+    private void unlinkBucket(Node<E> node) {
+        Node<E> prev = node.prev, next = node.next;
+        if (prev == null)
+            wheel[node.where] = next;
+        else
+            prev.next = next;
+        if (next != null)
+            next.prev = prev;
+        node.prev = node.next = null;
+        wheelCount--;
+    }
+
+    private void linkReady(Node<E> node) {
+        node.next = null;
+        node.prev = readyTail;
+        if (readyTail == null)
+            readyHead = node;
+        else
+            readyTail.next = node;
+        readyTail = node;
+        node.where = READY;
+    }
+
+    private void unlinkReady(Node<E> node) {
+        Node<E> prev = node.prev, next = node.next;
+        if (prev == null)
+            readyHead = next;
+        else
+            prev.next = next;
+        if (next == null)
+            readyTail = prev;
+        else
+            next.prev = prev;
+        node.prev = node.next = null;
+    }
+
+    // ------------------------------ 溢出堆操作 ------------------------------
+
+    /**
+     * 堆中的顺序：tick 小的在前，tick 相同时先进入的在前
+     */
+    private static boolean before(Node<?> a, Node<?> b) {
+        return a.tick < b.tick || (a.tick == b.tick && a.seq < b.seq);
+    }
+
+    private void offerOverflow(Node<E> node) {
+        int i = overflowSize;
+        if (i >= overflow.length)
+            overflow = Arrays.copyOf(overflow, i + (i >> 1));
+        overflowSize = i + 1;
+        node.seq = overflowSeq++;
+        node.where = OVERFLOW;
+        siftUpOverflow(i, node);
+    }
+
+    private Node<E> pollOverflow() {
+        Node<E>[] heap = overflow;
+        Node<E> top = heap[0];
+        int n = --overflowSize;
+        Node<E> last = heap[n];
+        heap[n] = null;
+        if (n > 0)
+            siftDownOverflow(0, last);
+        return top;
+    }
+
+    private void removeOverflow(Node<E> node) {
+        Node<E>[] heap = overflow;
+        int i = node.heapIndex;
+        int n = --overflowSize;
+        Node<E> last = heap[n];
+        heap[n] = null;
+        if (i != n) {
+            siftDownOverflow(i, last);
+            if (heap[i] == last)
+                siftUpOverflow(i, last);
+        }
+    }
+
+    private void siftUpOverflow(int k, Node<E> x) {
+        Node<E>[] heap = overflow;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            Node<E> e = heap[parent];
+            if (!before(x, e))
+                break;
+            heap[k] = e;
+            e.heapIndex = k;
+            k = parent;
+        }
+        heap[k] = x;
+        x.heapIndex = k;
+    }
+
+    private void siftDownOverflow(int k, Node<E> x) {
+        Node<E>[] heap = overflow;
+        int n = overflowSize;
+        int half = n >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            Node<E> c = heap[child];
+            int right = child + 1;
+            if (right < n && before(heap[right], c))
+                c = heap[child = right];
+            if (!before(c, x))
+                break;
+            heap[k] = c;
+            c.heapIndex = k;
+            k = child;
+        }
+        heap[k] = x;
+        x.heapIndex = k;
+    }
+
+    // ------------------------------ 索引操作 ------------------------------
+
+    /**
+     * 第一次 remove(Object) 时为队列中已有的节点建立索引
+     */
+    private void buildIndex() {
+        index = new HashMap<Object, Node<E>>();
+        for (Node<E> n = readyHead; n != null; n = n.next)
+            indexNode(n);
+        for (Node<E> head : wheel)
+            for (Node<E> n = head; n != null; n = n.next)
+                indexNode(n);
+        for (int i = 0; i < overflowSize; i++)
+            indexNode(overflow[i]);
+    }
+
+    /**
+     * 加入索引，相等的元素串成一条链
+     */
+    private void indexNode(Node<E> node) {
+        Node<E> first = index.putIfAbsent(node.item, node);
+        if (first != null) {
+            node.dupPrev = first;
+            node.dupNext = first.dupNext;
+            if (first.dupNext != null)
+                first.dupNext.dupPrev = node;
+            first.dupNext = node;
+        }
+    }
+
+    private void unindexNode(Node<E> node) {
+        Node<E> prev = node.dupPrev, next = node.dupNext;
+        if (prev != null) {
+            prev.dupNext = next;
+            if (next != null)
+                next.dupPrev = prev;
+        } else if (next != null) {
+            next.dupPrev = null;
+            index.put(next.item, next);
+        } else {
+            index.remove(node.item);
+        }
+        node.dupPrev = node.dupNext = null;
+    }
+
+    /**
+     * Wheel node.
+     */
+    static final class Node<E> {
+        final E item;
+
+        /**
+         * 到期的 tick
+         */
+        long tick;
+
+        /**
+         * 所在的桶下标，或 READY / OVERFLOW / REMOVED
+         */
+        int where;
+
+        /**
+         * 在溢出堆中的下标和进入溢出堆的序号
+         */
+        int heapIndex;
+        long seq;
+
+        Node<E> prev, next;
+
+        /**
+         * 相等元素链
+         */
+        Node<E> dupPrev, dupNext;
+
+        Node(E item) {
+            this.item = item;
+        }
+    }
+}
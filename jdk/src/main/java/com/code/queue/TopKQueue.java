@@ -0,0 +1,210 @@
+package com.code.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collector;
+
+/**
+ * A bounded mode of {@link PriorityQueue} that retains only the {@code k}
+ * <em>greatest</em> elements offered to it, according to the queue's
+ * ordering.  Use it for leaderboards or "slowest N requests" reports where
+ * millions of candidates are offered and almost all of them are discarded.
+ * <p>
+ * PriorityQueue 的有界模式：只保留按排序规则最大的 k 个元素。适用于排行榜、"最慢的 N 个请求"等
+ * 需要从海量候选中选出少量元素的场景。
+ *
+ * <p>The backing heap is a min-heap, so its head is the smallest retained
+ * element, i.e. the k-th greatest seen so far.  Once the queue is full,
+ * {@link #offer} compares a candidate with the head only once: candidates
+ * that are not greater are rejected immediately without touching the
+ * heap; greater ones replace the head with a single sift-down.  To keep
+ * the k <em>smallest</em> elements pass a reversed comparator.
+ * <p>
+ * 底层是小顶堆，堆顶是已保留元素中最小的，即目前第 k 大的元素。队列满后，offer 只与堆顶比较一次：
+ * 不大于堆顶的候选直接拒绝，不修改堆；大于堆顶的候选替换堆顶并做一次自上而下的调整。
+ * 如果要保留最小的 k 个元素，传入反序比较器即可。
+ *
+ * <p>Like {@link PriorityQueue} this class is not thread-safe.  To use
+ * several threads, let each thread fill its own partial queue and combine
+ * them with {@link #merge}, or use {@link #collector} with a parallel
+ * stream, whose combiner merges the partial results.
+ * <p>
+ * 非线程安全。多线程场景下，每个线程填充自己的局部 TopKQueue，再通过 merge 合并；
+ * 或者在并行流中使用 collector，由其 combiner 完成合并。
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class TopKQueue<E> extends PriorityQueue<E> {
+
+    private static final long serialVersionUID = -1825735279472580311L;
+
+    /**
+     * 最多保留的元素个数
+     */
+    private final int k;
+
+    /**
+     * Creates a queue retaining the {@code k} greatest elements by natural
+     * ordering.
+     *
+     * @param k the number of elements to retain 保留的元素个数
+     * @throws IllegalArgumentException if {@code k} is less than 1
+     */
+    public TopKQueue(int k) {
+        this(k, null);
+    }
+
+    /**
+     * Creates a queue retaining the {@code k} greatest elements according to
+     * the given comparator.
+     *
+     * @param k          the number of elements to retain 保留的元素个数
+     * @param comparator the comparator, or {@code null} for natural ordering
+     * @throws IllegalArgumentException if {@code k} is less than 1
+     */
+    public TopKQueue(int k, Comparator<? super E> comparator) {
+        super(checkBound(k), comparator);
+        this.k = k;
+    }
+
+    private static int checkBound(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive: " + k);
+        // 初始容量不超过 k，避免 k 很大时一次性分配大数组
+        return Math.min(k, 1 << 10);
+    }
+
+    /**
+     * Returns the maximum number of elements this queue retains.
+     *
+     * @return {@code k}
+     */
+    public int bound() {
+        return k;
+    }
+
+    /**
+     * Offers a candidate.  While fewer than {@code k} elements are retained
+     * the candidate is simply inserted; afterwards it is retained only if it
+     * is greater than the current head, which is then evicted.
+     * <p>
+     * 未满时直接插入；满了之后只有比堆顶大才保留，并淘汰原堆顶
+     *
+     * @param e the candidate 候选元素
+     * @return {@code true} if the candidate was retained 是否被保留
+     * @throws ClassCastException   if the candidate cannot be compared
+     * @throws NullPointerException if the candidate is null
+     */
+    @Override
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        if (size() < k)
+            return super.offer(e);
+
+        // 只与堆顶比较一次，不大于堆顶则直接拒绝
+        if (compare(e, peek()) <= 0)
+            return false;
+        replaceHead(e);
+        return true;
+    }
+
+    /**
+     * Offers every element of the collection.  Overridden so that the bulk
+     * path of {@link PriorityQueue#addAll} cannot exceed the bound.
+     *
+     * @param c the candidates
+     * @return {@code true} if at least one candidate was retained
+     */
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        boolean modified = false;
+        for (E e : c)
+            if (offer(e))
+                modified = true;
+        return modified;
+    }
+
+    /**
+     * Merges the retained elements of another partial result into this
+     * queue.  Only the elements of {@code other} are offered, each with a
+     * single comparison once this queue is full, so merging two partial
+     * top-k queues costs O(k log k) at worst.
+     * <p>
+     * 合并另一个局部结果，只需把 other 中保留的元素逐个 offer 进来
+     *
+     * @param other another partial result, typically built by another thread 另一个局部结果
+     * @return this queue
+     */
+    public TopKQueue<E> merge(TopKQueue<? extends E> other) {
+        if (other == this)
+            throw new IllegalArgumentException();
+        for (E e : other)
+            offer(e);
+        return this;
+    }
+
+    /**
+     * Returns the retained elements, greatest first.  This queue is not
+     * modified.
+     * <p>
+     * 返回按从大到小排序的结果，不修改队列
+     *
+     * @return a new list of the retained elements in descending order
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> toSortedList() {
+        List<E> list = new ArrayList<E>(size());
+        for (Object o : toArray())
+            list.add((E) o);
+        list.sort((a, b) -> compare(b, a));
+        return list;
+    }
+
+    /**
+     * Returns a {@code Collector} that accumulates the {@code k} greatest
+     * stream elements.  With a parallel stream every worker fills its own
+     * partial queue and the combiner {@linkplain #merge merges} them.
+     * <p>
+     * 返回求 top-k 的 Collector，并行流中每个线程各自累积，combiner 负责合并
+     *
+     * @param k          the number of elements to retain 保留的元素个数
+     * @param comparator the comparator, or {@code null} for natural ordering
+     * @param <E>        the element type
+     * @return a collector producing the retained elements, greatest first
+     */
+    public static <E> Collector<E, ?, List<E>> collector(int k, Comparator<? super E> comparator) {
+        return Collector.<E, TopKQueue<E>, List<E>>of(
+                () -> new TopKQueue<E>(k, comparator),
+                TopKQueue::offer,
+                TopKQueue::merge,
+                TopKQueue::toSortedList,
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * Merges several partial results, for example one per worker thread,
+     * into a new queue.
+     * <p>
+     * 合并多个局部结果（例如每个工作线程一个）
+     *
+     * @param k          the number of elements to retain 保留的元素个数
+     * @param comparator the comparator, or {@code null} for natural ordering
+     * @param parts      the partial results 局部结果
+     * @param <E>        the element type
+     * @return a new queue with the {@code k} greatest elements of all parts
+     */
+    public static <E> TopKQueue<E> mergeAll(int k, Comparator<? super E> comparator,
+                                            Collection<? extends TopKQueue<? extends E>> parts) {
+        TopKQueue<E> result = new TopKQueue<E>(k, comparator);
+        for (TopKQueue<? extends E> part : parts)
+            result.merge(part);
+        return result;
+    }
+}
@@ -0,0 +1,252 @@
+package com.code.queue;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A Chase-Lev style work-stealing deque for per-worker task queues.  One
+ * thread, the <em>owner</em>, pushes and pops elements at the bottom in
+ * LIFO order; any other thread may <em>steal</em> from the top in FIFO
+ * order, one element at a time.  The circular array grows
+ * when the owner fills it.
+ * <p>
+ * Chase-Lev 风格的工作窃取双端队列，用于每个工作线程自己的任务队列。只有所属线程（owner）在底部以 LIFO 顺序压入、弹出元素，
+ * 其他线程从顶部以 FIFO 顺序逐个窃取。环形数组被 owner 填满时扩容。
+ *
+ * <p>This class is independent of {@code ForkJoinPool} and follows the
+ * same protocol as its work queues: elements are claimed by a CAS on
+ * their array slot, so that the owner and thieves only contend when
+ * they race for the last element, and claimed slots are cleared at once
+ * so that stolen elements are not retained.  Thieves advance
+ * {@code base}, the owner advances {@code top}.
+ * <p>
+ * 本类不依赖 ForkJoinPool，协议与其工作队列相同：通过 CAS 数组槽位来获取元素，因此 owner 和窃取线程只在争夺最后一个元素时才有竞争，
+ * 被取走的槽位立即置空，不会残留已被窃取的元素。窃取线程推进 base，owner 推进 top。
+ *
+ * <p>{@link #push} and {@link #pop} must only be called by the owner
+ * thread; this is not checked.  {@link #steal}, {@link #stealInto} and
+ * {@link #size} may be called by any thread.  Null elements are not
+ * permitted.
+ * <p>
+ * push 和 pop 只能由 owner 线程调用（不做检查）；steal、stealInto、size 可以由任意线程调用。不允许 null 元素。
+ *
+ * @param <E> the type of elements held in this deque
+ */
+public class WorkStealingDeque<E> {
+
+    /*
+      说明：
+
+      1. 元素位于 [base, top) 区间，下标与数组长度减 1 做与运算得到槽位，base、top 允许 int 溢出，只使用两者的差值；
+      2. owner 先写槽位再写 volatile 的 top，窃取线程读到 top 之后就能看到槽位中的元素；
+      3. 窃取线程读取 base 对应的槽位，CAS 置空成功后才推进 base；其他线程在 base 推进之前读到空槽位，会重新读取。
+         owner 弹出时同样 CAS 置空 top - 1 对应的槽位，只剩最后一个元素时，与窃取线程争夺同一个槽位，只有一方能成功；
+      4. 扩容时 owner 把旧数组中的元素逐个 CAS 置空后搬到新数组，与其竞争的窃取线程要么先取走元素，要么读到空槽位后重新读取新数组。
+     */
+
+    /**
+     * 默认初始容量
+     */
+    static final int INITIAL_CAPACITY = 1 << 6;
+
+    /**
+     * 最大容量
+     */
+    static final int MAXIMUM_CAPACITY = 1 << 26;
+
+    /**
+     * 环形数组，长度为 2 的幂
+     */
+    private volatile AtomicReferenceArray<E> array;
+
+    /**
+     * 下一个被窃取的位置，由窃取线程推进
+     */
+    private volatile int base;
+
+    /**
+     * 下一个压入的位置，只由 owner 修改
+     */
+    private volatile int top;
+
+    /**
+     * Creates an empty deque with the default initial capacity.
+     */
+    public WorkStealingDeque() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty deque with the given initial capacity.
+     *
+     * @param initialCapacity the initial capacity, rounded up to a power
+     *                        of 2 初始容量，向上取整为 2 的幂
+     * @throws IllegalArgumentException if {@code initialCapacity} is less
+     *                                  than 1 or greater than {@link #MAXIMUM_CAPACITY}
+     */
+    public WorkStealingDeque(int initialCapacity) {
+        if (initialCapacity < 1 || initialCapacity > MAXIMUM_CAPACITY)
+            throw new IllegalArgumentException("initialCapacity must be in [1, " + MAXIMUM_CAPACITY + "]: " + initialCapacity);
+        int n = 2;
+        while (n < initialCapacity)
+            n <<= 1;
+        this.array = new AtomicReferenceArray<E>(n);
+    }
+
+    /**
+     * Pushes an element at the bottom.  Called only by the owner.
+     * <p>
+     * 在底部压入元素，只能由 owner 调用
+     *
+     * @param e the element to push
+     * @throws NullPointerException  if the specified element is null
+     * @throws IllegalStateException if the deque is at its maximum
+     *                               capacity
+     */
+    public void push(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        int s = top;
+        AtomicReferenceArray<E> a = array;
+        // 保留一个空槽位，区分空和满
+        if (s - base >= a.length() - 1)
+            a = grow();
+        a.set(s & (a.length() - 1), e);
+        // 写 top 发布元素
+        top = s + 1;
+    }
+
+    /**
+     * Pops the most recently pushed element from the bottom.  Called only
+     * by the owner.
+     * <p>
+     * 从底部弹出最近压入的元素，只能由 owner 调用
+     *
+     * @return the bottom element, or {@code null} if the deque is empty
+     */
+    public E pop() {
+        for (; ; ) {
+            int s = top - 1;
+            if (s - base < 0)
+                return null;
+            AtomicReferenceArray<E> a = array;
+            int i = s & (a.length() - 1);
+            E x = a.get(i);
+            // 最后一个元素已被窃取
+            if (x == null)
+                return null;
+            if (a.compareAndSet(i, x, null)) {
+                top = s;
+                return x;
+            }
+        }
+    }
+
+    /**
+     * Steals the least recently pushed element from the top.  May be
+     * called by any thread.
+     * <p>
+     * 从顶部窃取最早压入的元素，任意线程均可调用
+     *
+     * @return the top element, or {@code null} if the deque is empty
+     */
+    public E steal() {
+        for (int b; (b = base) - top < 0; ) {
+            AtomicReferenceArray<E> a = array;
+            int i = b & (a.length() - 1);
+            E x = a.get(i);
+            // base 没有变化，槽位中的元素才属于 base 位置
+            if (base == b) {
+                if (x != null) {
+                    if (a.compareAndSet(i, x, null)) {
+                        base = b + 1;
+                        return x;
+                    }
+                } else if (b + 1 == top) {
+                    // 最后一个元素正在被 owner 弹出或被其他线程窃取
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Repeatedly {@linkplain #steal steals} from the top of this deque,
+     * up to half of its elements (rounded up) and at most
+     * {@code maxElements}, pushing each one onto the bottom of the given
+     * deque, which must be owned by the calling thread.  Every element is
+     * claimed by its own {@code steal}, so this costs the same per element
+     * as a loop of single steals and other thieves may take elements in
+     * between; it only saves the caller from writing that loop.
+     * <p>
+     * 从本队列顶部逐个窃取最多一半（向上取整，且不超过 maxElements）的元素，依次压入调用线程自己的队列 into 的底部。
+     * 每个元素都由一次单独的 steal 获取，开销与循环调用 steal 相同，期间其他窃取线程也可能取走中间的元素，本方法只是省去了这个循环。
+     *
+     * @param into        the deque owned by the calling thread 调用线程自己的队列
+     * @param maxElements the maximum number of elements to steal
+     * @return the number of elements stolen
+     * @throws NullPointerException     if {@code into} is null
+     * @throws IllegalArgumentException if {@code into} is this deque
+     */
+    public int stealInto(WorkStealingDeque<? super E> into, int maxElements) {
+        if (into == null)
+            throw new NullPointerException();
+        if (into == this)
+            throw new IllegalArgumentException();
+        int n = Math.min(maxElements, (size() + 1) >>> 1);
+        int stolen = 0;
+        for (E x; stolen < n && (x = steal()) != null; ) {
+            into.push(x);
+            ++stolen;
+        }
+        return stolen;
+    }
+
+    /**
+     * Doubles the array, moving the elements out of the old one slot by
+     * slot.  Called only by the owner.
+     * <p>
+     * 数组扩容为两倍，逐个槽位把元素从旧数组搬到新数组
+     */
+    private AtomicReferenceArray<E> grow() {
+        AtomicReferenceArray<E> oldA = array;
+        int oldLength = oldA.length();
+        if (oldLength >= MAXIMUM_CAPACITY)
+            throw new IllegalStateException("Deque capacity exceeded");
+        AtomicReferenceArray<E> a = new AtomicReferenceArray<E>(oldLength << 1);
+        int oldMask = oldLength - 1, mask = (oldLength << 1) - 1;
+        int s = top, b = base;
+        for (int i = b; i != s; ++i) {
+            // 与窃取线程竞争旧槽位，抢到了才搬到新数组
+            E x = oldA.get(i & oldMask);
+            if (x != null && oldA.compareAndSet(i & oldMask, x, null))
+                a.set(i & mask, x);
+        }
+        array = a;
+        return a;
+    }
+
+    /**
+     * Returns an estimate of the number of elements in this deque.
+     *
+     * @return the number of elements, or an estimate under concurrent
+     * updates
+     */
+    public int size() {
+        int n = top - base;
+        return (n < 0) ? 0 : n;
+    }
+
+    /**
+     * Returns {@code true} if this deque appears to be empty.
+     *
+     * @return {@code true} if this deque has no elements
+     */
+    public boolean isEmpty() {
+        return top - base <= 0;
+    }
+
+    public String toString() {
+        return "WorkStealingDeque[size=" + size() + ", capacity=" + array.length() + "]";
+    }
+}
@@ -0,0 +1,35 @@
+package com.code.queue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CoDelBlockingQueuePractice
+ *
+ * desc：队列持续非空超过 interval 后进入过载，等待超过 target 的请求在出队时交给丢弃处理器；
+ * 开启自适应 LIFO 时，过载期间先取出最新的请求
+ */
+public class CoDelBlockingQueuePractice {
+
+    public static void main(String[] args) throws InterruptedException {
+        // 容量 100，target 10 毫秒，interval 50 毫秒，开启自适应 LIFO；丢弃的请求由处理器让其失败
+        CoDelBlockingQueue<String> queue = new CoDelBlockingQueue<>(100, 10, 50, TimeUnit.MILLISECONDS,
+                true, request -> System.out.println("dropped: " + request));
+
+        // 一批请求积压了 80 毫秒没有被处理
+        for (int i = 0; i < 5; i++)
+            queue.put("old-" + i);
+        Thread.sleep(80);
+
+        // 此时又来了一批新请求
+        for (int i = 0; i < 3; i++)
+            queue.put("new-" + i);
+        System.out.println("overloaded: " + queue.isOverloaded());
+
+        // 出队时先丢弃等待超过 target 的旧请求，再按 LIFO 取出新请求
+        for (String request; (request = queue.poll()) != null; )
+            System.out.println("take: " + request);
+
+        // 队列清空后不再过载，恢复 FIFO
+        System.out.println("overloaded: " + queue.isOverloaded() + ", dropped = " + queue.droppedCount());
+    }
+}
@@ -0,0 +1,55 @@
+package com.code.queue;
+
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * DAryPriorityQueueBenchmark
+ *
+ * desc：对比 PriorityQueue 与 2/4/8 叉堆在 1k、1M、10M 元素规模下的 offer/poll 吞吐量。
+ * 先把堆填充到指定规模，再执行成对的 poll + offer，保持堆大小不变。
+ * 10M 规模建议使用 -Xmx4g 运行。
+ */
+public class DAryPriorityQueueBenchmark {
+
+    private static final int[] SIZES = {1_000, 1_000_000, 10_000_000};
+
+    private static final int OPS = 2_000_000;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        Integer[] values = new Integer[SIZES[SIZES.length - 1] + OPS];
+        for (int i = 0; i < values.length; i++)
+            values[i] = random.nextInt();
+
+        for (int size : SIZES) {
+            System.out.println("size = " + size);
+            // 先跑一轮预热
+            run("PriorityQueue", new PriorityQueue<Integer>(), values, size, false);
+            run("PriorityQueue", new PriorityQueue<Integer>(), values, size, true);
+            for (int arity : new int[]{2, 4, 8}) {
+                run("DAry(" + arity + ")", DAryPriorityQueue.<Integer>withArity(arity), values, size, false);
+                run("DAry(" + arity + ")", DAryPriorityQueue.<Integer>withArity(arity), values, size, true);
+            }
+        }
+    }
+
+    private static void run(String name, Queue<Integer> queue, Integer[] values, int size, boolean print) {
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++)
+            queue.offer(values[i]);
+        long fill = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < OPS; i++) {
+            checksum += queue.poll();
+            queue.offer(values[size + i]);
+        }
+        long steady = System.nanoTime() - start;
+
+        if (print)
+            System.out.printf("  %-14s offer %6.1f Mops/s, poll+offer %6.1f Mops/s (checksum %d)%n",
+                    name, size * 1e3 / fill, OPS * 1e3 / steady, checksum);
+    }
+}
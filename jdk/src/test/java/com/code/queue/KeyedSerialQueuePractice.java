@@ -0,0 +1,47 @@
+package com.code.queue;
+
+/**
+ * KeyedSerialQueuePractice
+ *
+ * desc：按账户处理事件，同一个账户的事件按顺序、同一时刻只由一个工作线程处理，不同账户的事件并行处理
+ */
+public class KeyedSerialQueuePractice {
+
+    public static void main(String[] args) throws InterruptedException {
+        KeyedSerialQueue<String, String> queue = new KeyedSerialQueue<>(16);
+        queue.put("alice", "deposit 100");
+        queue.put("alice", "withdraw 30");
+        queue.put("bob", "deposit 50");
+
+        // 手动取出 alice 的第一个事件，完成之前其他线程拿不到 alice 的事件，只能拿到 bob 的
+        KeyedSerialQueue.Entry<String, String> first = queue.take();
+        KeyedSerialQueue.Entry<String, String> second = queue.poll();
+        System.out.println("holding " + first + ", next = " + second + ", next after that = " + queue.poll());
+        second.complete();
+        // 完成后 alice 的下一个事件才能被取出
+        first.complete();
+
+        queue.put("bob", "withdraw 20");
+        queue.put("alice", "deposit 10");
+
+        // 工作线程通常直接调用 runWorker，取出、处理、完成，直到被中断
+        Thread[] workers = new Thread[2];
+        for (int w = 0; w < workers.length; w++) {
+            workers[w] = new Thread(() -> {
+                try {
+                    queue.runWorker((account, event) ->
+                            System.out.println(Thread.currentThread().getName() + ": " + account + " " + event));
+                } catch (InterruptedException ignored) {
+                }
+            }, "worker-" + w);
+            workers[w].start();
+        }
+
+        // 全部处理完成后通道被释放
+        while (queue.size() != 0 || queue.laneCount() != 0)
+            Thread.sleep(1);
+        for (Thread worker : workers)
+            worker.interrupt();
+        System.out.println("lanes left = " + queue.laneCount());
+    }
+}
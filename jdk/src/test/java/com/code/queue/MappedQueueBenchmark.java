@@ -0,0 +1,95 @@
+package com.code.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MappedQueueBenchmark
+ *
+ * desc：一个生产者线程、一个消费者线程，对比 MappedQueue 与 LinkedBlockingQueue<byte[]> 传递 64 字节消息的吞吐量。
+ * MappedQueue 的数据写在临时目录的映射文件中（不调用 sync），保留的段足以容纳全部消息，结束后删除。
+ */
+public class MappedQueueBenchmark {
+
+    private static final int MESSAGES = 2_000_000;
+
+    private static final int MESSAGE_SIZE = 64;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            // 第一轮作为预热
+            boolean print = round > 0;
+            runLinkedBlockingQueue(print);
+            runMappedQueue(print);
+        }
+    }
+
+    private static void runLinkedBlockingQueue(boolean print) throws InterruptedException {
+        LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(64 * 1024);
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    byte[] message = new byte[MESSAGE_SIZE];
+                    message[0] = (byte) i;
+                    queue.put(message);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        long checksum = 0;
+        for (int i = 0; i < MESSAGES; i++)
+            checksum += queue.take()[0];
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        if (print)
+            report("LinkedBlockingQueue", elapsed, checksum);
+    }
+
+    private static void runMappedQueue(boolean print) throws Exception {
+        File dir = Files.createTempDirectory("mapped-queue").toFile();
+        try {
+            MappedQueue queue = new MappedQueue(dir, 32 << 20, 8);
+            MappedQueue.Appender appender = queue.appender();
+            MappedQueue.Tailer tailer = queue.createTailer("benchmark");
+            Thread producer = new Thread(() -> {
+                ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+                for (int i = 0; i < MESSAGES; i++) {
+                    message.put(0, (byte) i);
+                    appender.append(message);
+                }
+            });
+            long start = System.nanoTime();
+            producer.start();
+            long[] checksum = new long[1];
+            for (int i = 0; i < MESSAGES; )
+                if (tailer.read(m -> checksum[0] += m.get(0), 1, TimeUnit.SECONDS))
+                    i++;
+            long elapsed = System.nanoTime() - start;
+            producer.join();
+            queue.close();
+            if (print)
+                report("MappedQueue", elapsed, checksum[0]);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void report(String name, long elapsed, long checksum) {
+        System.out.printf("%-20s %6.2f Mmsg/s, %7.1f MB/s (checksum %d)%n", name,
+                MESSAGES * 1e3 / elapsed, (double) MESSAGES * MESSAGE_SIZE * 1e3 / elapsed, checksum);
+    }
+
+    private static void delete(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                Files.deleteIfExists(f.toPath());
+        Files.deleteIfExists(dir.toPath());
+    }
+}
@@ -0,0 +1,148 @@
+package com.code.queue;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * MultiQueueBenchmark
+ *
+ * desc：MultiQueue 的质量与吞吐量对比。
+ * 1. 质量：把 0..N-1 打乱后插入，再依次 poll，统计每次取出的元素在剩余元素中的排名（0 表示严格的队首），
+ * 比较不同放宽系数 c 下的平均与最大排名误差；
+ * 2. 吞吐量：1~32 个线程在预填充的队列上交替执行 offer/poll，对比加锁的 PriorityQueue 与不同 c 的 MultiQueue。
+ * 多线程结果依赖机器的核数。
+ */
+public class MultiQueueBenchmark {
+
+    private static final int QUALITY_SIZE = 1_000_000;
+
+    private static final int PREFILL = 100_000;
+
+    private static final int OPS_PER_THREAD = 1_000_000;
+
+    private static final int[] FACTORS = {1, 2, 4, 8};
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    public static void main(String[] args) throws InterruptedException {
+        quality();
+        for (int threads : THREADS) {
+            System.out.println("threads = " + threads);
+            // 先跑一轮预热
+            throughput("locked PriorityQueue", new LockedPriorityQueue<Integer>(), threads, false);
+            throughput("locked PriorityQueue", new LockedPriorityQueue<Integer>(), threads, true);
+            for (int c : FACTORS) {
+                throughput("MultiQueue(c=" + c + ")", new MultiQueue<Integer>(c, threads, null), threads, false);
+                throughput("MultiQueue(c=" + c + ")", new MultiQueue<Integer>(c, threads, null), threads, true);
+            }
+        }
+    }
+
+    /**
+     * 按 16 个线程的配置构造队列，单线程测量排名误差
+     */
+    private static void quality() {
+        Integer[] values = new Integer[QUALITY_SIZE];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i;
+        Random random = new Random(42);
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Integer t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+
+        System.out.println("rank error, " + QUALITY_SIZE + " elements, 16 threads");
+        for (int c : FACTORS) {
+            MultiQueue<Integer> queue = new MultiQueue<Integer>(c, 16, null);
+            for (Integer v : values)
+                queue.offer(v);
+            // 树状数组记录仍在队列中的元素，前缀和即为排名
+            int[] tree = new int[QUALITY_SIZE + 1];
+            for (int i = 1; i <= QUALITY_SIZE; i++) {
+                tree[i]++;
+                int parent = i + (i & -i);
+                if (parent <= QUALITY_SIZE)
+                    tree[parent] += tree[i];
+            }
+            long sum = 0;
+            int max = 0;
+            for (Integer v; (v = queue.poll()) != null; ) {
+                int rank = 0;
+                for (int i = v; i > 0; i -= i & -i)
+                    rank += tree[i];
+                for (int i = v + 1; i <= QUALITY_SIZE; i += i & -i)
+                    tree[i]--;
+                sum += rank;
+                max = Math.max(max, rank);
+            }
+            System.out.printf("  c = %d (%3d heaps): mean %8.2f, max %6d%n",
+                    c, queue.heapCount(), (double) sum / QUALITY_SIZE, max);
+        }
+    }
+
+    private static void throughput(String name, Queue<Integer> queue, int threads, boolean print)
+            throws InterruptedException {
+        Random random = new Random(42);
+        for (int i = 0; i < PREFILL; i++)
+            queue.offer(random.nextInt());
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    queue.offer(r.nextInt());
+                    queue.poll();
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers)
+            w.join();
+        long elapsed = System.nanoTime() - begin;
+
+        if (print)
+            System.out.printf("  %-22s %7.2f Mops/s%n", name, 2L * OPS_PER_THREAD * threads * 1e3 / elapsed);
+    }
+
+    /**
+     * 用一把锁保护的 PriorityQueue，作为对照
+     */
+    static final class LockedPriorityQueue<E> extends AbstractQueue<E> {
+        private final PriorityQueue<E> q = new PriorityQueue<E>();
+
+        public synchronized boolean offer(E e) {
+            return q.offer(e);
+        }
+
+        public synchronized E poll() {
+            return q.poll();
+        }
+
+        public synchronized E peek() {
+            return q.peek();
+        }
+
+        public synchronized int size() {
+            return q.size();
+        }
+
+        public Iterator<E> iterator() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
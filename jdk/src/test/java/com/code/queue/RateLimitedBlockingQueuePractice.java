@@ -0,0 +1,32 @@
+package com.code.queue;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RateLimitedBlockingQueuePractice
+ *
+ * desc：包装任意阻塞队列，消费者按令牌桶的速率取出元素：先用掉突发容量内的令牌，之后每个元素等待下一个令牌
+ */
+public class RateLimitedBlockingQueuePractice {
+
+    public static void main(String[] args) throws InterruptedException {
+        // 每秒 10 个令牌，即每 100 毫秒一个，最多积累 3 个；初始时桶是满的
+        RateLimitedBlockingQueue<Integer> queue = new RateLimitedBlockingQueue<>(new LinkedBlockingQueue<>(), 10, 3);
+
+        // 插入直接委托给被包装的队列，不受速率限制
+        for (int i = 0; i < 6; i++)
+            queue.put(i);
+        System.out.println("size = " + queue.size() + ", permits = " + queue.availablePermits());
+
+        // 前 3 个立即取出，之后每个大约间隔 100 毫秒
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            Integer x = queue.take();
+            System.out.println("take " + x + " at " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+
+        // 令牌刚用完，poll 不等待令牌，元素还在队列中也返回 null
+        System.out.println("poll = " + queue.poll() + ", size = " + queue.size());
+    }
+}
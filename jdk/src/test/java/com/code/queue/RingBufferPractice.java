@@ -0,0 +1,71 @@
+package com.code.queue;
+
+import lombok.Data;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * RingBufferPractice
+ *
+ * desc：两个消费者并行处理（广播），第三个消费者依赖前两个都处理完成后再处理
+ */
+public class RingBufferPractice {
+
+    public static void main(String[] args) throws InterruptedException {
+        RingBuffer<LongEvent> ringBuffer = RingBuffer.createMultiProducer(LongEvent::new, 1024);
+
+        // 第一级：两个消费者都能收到每个事件
+        BatchEventProcessor<LongEvent> journal = new BatchEventProcessor<>(ringBuffer, ringBuffer.newBarrier(),
+                (event, sequence, endOfBatch) -> event.setJournaled(true));
+        BatchEventProcessor<LongEvent> replicate = new BatchEventProcessor<>(ringBuffer, ringBuffer.newBarrier(),
+                (event, sequence, endOfBatch) -> event.setReplicated(true));
+
+        // 第二级：依赖第一级的两个消费者
+        final long[] sum = new long[1];
+        BatchEventProcessor<LongEvent> business = new BatchEventProcessor<>(ringBuffer,
+                ringBuffer.newBarrier(journal.getSequence(), replicate.getSequence()),
+                (event, sequence, endOfBatch) -> {
+                    if (!event.isJournaled() || !event.isReplicated())
+                        throw new IllegalStateException("stage dependency broken at " + sequence);
+                    sum[0] += event.getValue();
+                    event.setJournaled(false);
+                    event.setReplicated(false);
+                });
+
+        // 生产者不能覆盖最后一级还没处理的槽位
+        ringBuffer.addGatingSequences(business.getSequence());
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        executor.submit(journal);
+        executor.submit(replicate);
+        executor.submit(business);
+
+        int count = 1_000_000;
+        for (int i = 0; i < count; i++) {
+            long sequence = ringBuffer.next();
+            try {
+                ringBuffer.get(sequence).setValue(i);
+            } finally {
+                ringBuffer.publish(sequence);
+            }
+        }
+
+        while (business.getSequence().get() < count - 1)
+            Thread.sleep(1);
+
+        journal.halt();
+        replicate.halt();
+        business.halt();
+        executor.shutdown();
+
+        System.out.println("sum = " + sum[0] + ", expected = " + ((long) count * (count - 1) / 2));
+    }
+
+    @Data
+    public static class LongEvent {
+        private long value;
+        private boolean journaled;
+        private boolean replicated;
+    }
+}
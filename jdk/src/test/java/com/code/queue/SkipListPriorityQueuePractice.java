@@ -0,0 +1,43 @@
+package com.code.queue;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * SkipListPriorityQueuePractice
+ *
+ * desc：多个线程并发插入任务，全部插入后按优先级取出，优先级相同的任务按插入顺序取出
+ */
+public class SkipListPriorityQueuePractice {
+
+    public static void main(String[] args) throws InterruptedException {
+        // 数值越小优先级越高
+        SkipListPriorityQueue<Task> queue = new SkipListPriorityQueue<>(Comparator.comparingInt(Task::getPriority));
+
+        // 插入不加锁，多个线程可以同时插入
+        CountDownLatch done = new CountDownLatch(2);
+        for (int p = 0; p < 2; p++) {
+            final String producer = "producer-" + p;
+            new Thread(() -> {
+                for (int i = 0; i < 4; i++)
+                    queue.offer(new Task(i % 2, producer + "#" + i));
+                done.countDown();
+            }, producer).start();
+        }
+        done.await();
+
+        // 先取出全部优先级为 0 的任务，同一生产者的任务保持插入顺序
+        for (Task task; (task = queue.poll()) != null; )
+            System.out.println(task);
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class Task {
+        private int priority;
+        private String name;
+    }
+}
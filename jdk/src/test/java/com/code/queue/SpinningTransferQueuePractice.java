@@ -0,0 +1,44 @@
+package com.code.queue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SpinningTransferQueuePractice
+ *
+ * desc：队列没有容量，每次插入都是交给等待的消费者。offer 只在已有消费者等待时成功，超时 offer 最多等待给定时间，
+ * transfer 一直等到消费者取走元素
+ */
+public class SpinningTransferQueuePractice {
+
+    public static void main(String[] args) throws InterruptedException {
+        SpinningTransferQueue<String> queue = new SpinningTransferQueue<>();
+
+        // 没有消费者在等待，offer 立即返回 false，元素不会留在队列中
+        System.out.println("offer without consumer: " + queue.offer("a") + ", size = " + queue.size());
+
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                System.out.println("take: " + queue.take());
+                Thread.sleep(100);
+                System.out.println("take: " + queue.take());
+            } catch (InterruptedException ignored) {
+            }
+        }, "consumer");
+        consumer.start();
+
+        // 消费者 100 毫秒后才来取，只等待 10 毫秒的 offer 失败
+        System.out.println("offer within 10 ms: " + queue.offer("b", 10, TimeUnit.MILLISECONDS));
+
+        // transfer 阻塞到消费者取走元素为止
+        long start = System.nanoTime();
+        queue.transfer("c");
+        System.out.println("transfer returned after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        // 消费者正在等待时，offer 直接交给它
+        while (!queue.hasWaitingConsumer())
+            Thread.sleep(1);
+        System.out.println("offer to waiting consumer: " + queue.offer("d"));
+        consumer.join();
+    }
+}
@@ -0,0 +1,36 @@
+package com.code.queue;
+
+/**
+ * WorkStealingDequePractice
+ *
+ * desc：owner 在底部压入、弹出，空闲线程从顶部窃取，并把窃取到的任务放进自己的队列
+ */
+public class WorkStealingDequePractice {
+
+    public static void main(String[] args) throws InterruptedException {
+        WorkStealingDeque<Integer> deque = new WorkStealingDeque<>();
+
+        // owner：压入 8 个任务，弹出的是最近压入的任务（LIFO）
+        for (int i = 0; i < 8; i++)
+            deque.push(i);
+        System.out.println("owner pop: " + deque.pop());
+
+        Thread thief = new Thread(() -> {
+            // 窃取的是最早压入的任务（FIFO）
+            System.out.println("steal: " + deque.steal());
+
+            // 再逐个窃取剩余任务的一半，压入自己的队列，之后由自己弹出处理
+            WorkStealingDeque<Integer> own = new WorkStealingDeque<>();
+            int n = deque.stealInto(own, 16);
+            System.out.println("stolen into own deque: " + n);
+            for (Integer x; (x = own.pop()) != null; )
+                System.out.println("thief pop: " + x);
+        }, "thief");
+        thief.start();
+        thief.join();
+
+        // owner 处理剩下的任务
+        for (Integer x; (x = deque.pop()) != null; )
+            System.out.println("owner pop: " + x);
+    }
+}